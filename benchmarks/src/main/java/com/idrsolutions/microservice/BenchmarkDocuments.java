@@ -0,0 +1,368 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Generates the PDF documents the benchmarks run against, so results do not
+ * depend on files that can not be shipped with the project. The documents are
+ * generated from a fixed seed and are identical on every run.
+ */
+final class BenchmarkDocuments {
+
+    /**
+     * The kinds of document the benchmarks run against.
+     */
+    enum Shape {
+        /**
+         * 20 pages of text.
+         */
+        TEXT,
+        /**
+         * 10 pages each covered by a large photographic image.
+         */
+        IMAGES,
+        /**
+         * 1000 pages with a few lines of text each.
+         */
+        MANY_PAGES,
+        /**
+         * The text document encrypted with the user password {@link #PASSWORD}.
+         */
+        ENCRYPTED
+    }
+
+    static final String PASSWORD = "benchmark";
+
+    private static final int IMAGE_WIDTH = 1240;
+    private static final int IMAGE_HEIGHT = 1754;
+
+    private static final byte[] PASSWORD_PADDING = {
+            (byte) 0x28, (byte) 0xBF, (byte) 0x4E, (byte) 0x5E, (byte) 0x4E, (byte) 0x75, (byte) 0x8A, (byte) 0x41,
+            (byte) 0x64, (byte) 0x00, (byte) 0x4E, (byte) 0x56, (byte) 0xFF, (byte) 0xFA, (byte) 0x01, (byte) 0x08,
+            (byte) 0x2E, (byte) 0x2E, (byte) 0x00, (byte) 0xB6, (byte) 0xD0, (byte) 0x68, (byte) 0x3E, (byte) 0x80,
+            (byte) 0x2F, (byte) 0x0C, (byte) 0xA9, (byte) 0xFE, (byte) 0x64, (byte) 0x53, (byte) 0x69, (byte) 0x7A
+    };
+
+    private static final String[] WORDS = {
+            "conversion", "document", "page", "render", "service", "queue", "worker", "archive", "image",
+            "text", "benchmark", "throughput", "latency", "output", "input", "scaling", "format", "stream"
+    };
+
+    private BenchmarkDocuments() {
+    }
+
+    /**
+     * Writes a document of the given shape.
+     *
+     * @param shape the kind of document
+     * @param dir the directory to write the document to
+     * @return the document written
+     * @throws IOException if the document can not be written
+     */
+    static File create(final Shape shape, final File dir) throws IOException {
+        final File file = new File(dir, shape.name().toLowerCase() + ".pdf");
+        final byte[] pdf;
+        switch (shape) {
+            case TEXT:
+                pdf = textDocument(20, 60, false);
+                break;
+            case IMAGES:
+                pdf = imageDocument(10);
+                break;
+            case MANY_PAGES:
+                pdf = textDocument(1000, 8, false);
+                break;
+            case ENCRYPTED:
+                pdf = textDocument(20, 60, true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unrecognised shape: " + shape);
+        }
+        Files.write(file.toPath(), pdf);
+        return file;
+    }
+
+    /**
+     * Deletes a directory created by a benchmark and everything in it.
+     *
+     * @param dir the directory to delete
+     */
+    static void delete(final File dir) {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] textDocument(final int pageCount, final int lineCount, final boolean encrypted) throws IOException {
+        final PdfWriter writer = new PdfWriter(encrypted ? PASSWORD : null);
+        final Random random = new Random(pageCount);
+        final int font = writer.add("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>");
+        final int pagesRoot = writer.reserve();
+
+        final StringBuilder kids = new StringBuilder();
+        for (int page = 1; page <= pageCount; page++) {
+            final StringBuilder content = new StringBuilder("BT /F1 10 Tf 12 TL 56 790 Td\n");
+            content.append("(Page ").append(page).append(") Tj T*\n");
+            for (int line = 0; line < lineCount; line++) {
+                content.append('(').append(sentence(random)).append(") '\n");
+            }
+            content.append("ET");
+            final int contents = writer.addStream("", content.toString().getBytes(StandardCharsets.ISO_8859_1), true);
+            kids.append(writer.add("<< /Type /Page /Parent " + pagesRoot + " 0 R /MediaBox [0 0 595 842]"
+                    + " /Resources << /Font << /F1 " + font + " 0 R >> >> /Contents " + contents + " 0 R >>")).append(" 0 R ");
+        }
+        writer.set(pagesRoot, "<< /Type /Pages /Kids [" + kids + "] /Count " + pageCount + " >>");
+        return writer.toBytes(writer.add("<< /Type /Catalog /Pages " + pagesRoot + " 0 R >>"));
+    }
+
+    private static byte[] imageDocument(final int pageCount) throws IOException {
+        final PdfWriter writer = new PdfWriter(null);
+        final Random random = new Random(pageCount);
+        final int font = writer.add("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>");
+        final int pagesRoot = writer.reserve();
+
+        final StringBuilder kids = new StringBuilder();
+        for (int page = 1; page <= pageCount; page++) {
+            final int image = writer.addStream("/Type /XObject /Subtype /Image /Width " + IMAGE_WIDTH
+                    + " /Height " + IMAGE_HEIGHT + " /ColorSpace /DeviceRGB /BitsPerComponent 8",
+                    photograph(random), true);
+            final String content = "q 595 0 0 842 0 0 cm /Im1 Do Q\nBT /F1 24 Tf 56 790 Td (Image page " + page + ") Tj ET";
+            final int contents = writer.addStream("", content.getBytes(StandardCharsets.ISO_8859_1), true);
+            kids.append(writer.add("<< /Type /Page /Parent " + pagesRoot + " 0 R /MediaBox [0 0 595 842]"
+                    + " /Resources << /Font << /F1 " + font + " 0 R >> /XObject << /Im1 " + image + " 0 R >> >>"
+                    + " /Contents " + contents + " 0 R >>")).append(" 0 R ");
+        }
+        writer.set(pagesRoot, "<< /Type /Pages /Kids [" + kids + "] /Count " + pageCount + " >>");
+        return writer.toBytes(writer.add("<< /Type /Catalog /Pages " + pagesRoot + " 0 R >>"));
+    }
+
+    private static String sentence(final Random random) {
+        final StringBuilder sentence = new StringBuilder();
+        final int length = 8 + random.nextInt(6);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.toString();
+    }
+
+    /**
+     * Creates RGB samples with smooth gradients and noise, so the image
+     * compresses about as well as a photograph rather than to almost nothing.
+     */
+    private static byte[] photograph(final Random random) {
+        final byte[] samples = new byte[IMAGE_WIDTH * IMAGE_HEIGHT * 3];
+        final int phase = random.nextInt(256);
+        int i = 0;
+        for (int y = 0; y < IMAGE_HEIGHT; y++) {
+            for (int x = 0; x < IMAGE_WIDTH; x++) {
+                final int noise = random.nextInt(16);
+                samples[i++] = (byte) ((x * 255 / IMAGE_WIDTH + noise) & 0xFF);
+                samples[i++] = (byte) ((y * 255 / IMAGE_HEIGHT + noise + phase) & 0xFF);
+                samples[i++] = (byte) (((x + y) / 8 + noise) & 0xFF);
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Writes the objects of a PDF with a classic cross reference table,
+     * encrypting streams with the standard security handler (revision 2, 40 bit
+     * RC4) when a user password is given.
+     */
+    private static final class PdfWriter {
+
+        private final List<byte[]> objects = new ArrayList<>();
+        private final byte[] id;
+        private final byte[] key;
+        private final String encrypt;
+
+        PdfWriter(final String userPassword) {
+            id = md5(("jpedal-microservice-benchmark-" + userPassword).getBytes(StandardCharsets.ISO_8859_1));
+            if (userPassword == null) {
+                key = null;
+                encrypt = null;
+                return;
+            }
+
+            final byte[] paddedPassword = pad(userPassword);
+            // No owner password, so the owner key is derived from the user password
+            final byte[] ownerKey = new byte[5];
+            System.arraycopy(md5(paddedPassword), 0, ownerKey, 0, 5);
+            final byte[] owner = rc4(ownerKey, paddedPassword);
+
+            final byte[] permissions = {(byte) 0xFC, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+            key = new byte[5];
+            System.arraycopy(md5(paddedPassword, owner, permissions, id), 0, key, 0, 5);
+            final byte[] user = rc4(key, PASSWORD_PADDING);
+
+            encrypt = "<< /Filter /Standard /V 1 /R 2 /O <" + hex(owner) + "> /U <" + hex(user) + "> /P -4 >>";
+        }
+
+        int reserve() {
+            objects.add(null);
+            return objects.size();
+        }
+
+        void set(final int number, final String dictionary) {
+            objects.set(number - 1, dictionary.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        int add(final String dictionary) {
+            final int number = reserve();
+            set(number, dictionary);
+            return number;
+        }
+
+        int addStream(final String entries, final byte[] data, final boolean compress) throws IOException {
+            final int number = reserve();
+            byte[] streamData = compress ? deflate(data) : data;
+            if (key != null) {
+                streamData = rc4(objectKey(number), streamData);
+            }
+            final ByteArrayOutputStream object = new ByteArrayOutputStream(streamData.length + 128);
+            object.write(("<<" + (entries.isEmpty() ? "" : " " + entries) + (compress ? " /Filter /FlateDecode" : "") + " /Length " + streamData.length
+                    + " >>\nstream\n").getBytes(StandardCharsets.ISO_8859_1));
+            object.write(streamData);
+            object.write("\nendstream".getBytes(StandardCharsets.ISO_8859_1));
+            objects.set(number - 1, object.toByteArray());
+            return number;
+        }
+
+        byte[] toBytes(final int root) throws IOException {
+            final int encryptNumber = encrypt != null ? add(encrypt) : 0;
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("%PDF-1.4\n%\u00E2\u00E3\u00CF\u00D3\n".getBytes(StandardCharsets.ISO_8859_1));
+            final long[] offsets = new long[objects.size()];
+            for (int i = 0; i < objects.size(); i++) {
+                offsets[i] = out.size();
+                out.write(((i + 1) + " 0 obj\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.write(objects.get(i));
+                out.write("\nendobj\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            final long startXref = out.size();
+            final StringBuilder xref = new StringBuilder("xref\n0 " + (objects.size() + 1) + "\n0000000000 65535 f\r\n");
+            for (final long offset : offsets) {
+                xref.append(String.format("%010d 00000 n\r\n", offset));
+            }
+            xref.append("trailer\n<< /Size ").append(objects.size() + 1).append(" /Root ").append(root).append(" 0 R");
+            if (encryptNumber > 0) {
+                xref.append(" /Encrypt ").append(encryptNumber).append(" 0 R");
+            }
+            xref.append(" /ID [<").append(hex(id)).append("> <").append(hex(id)).append(">] >>\nstartxref\n")
+                    .append(startXref).append("\n%%EOF\n");
+            out.write(xref.toString().getBytes(StandardCharsets.ISO_8859_1));
+            return out.toByteArray();
+        }
+
+        private byte[] objectKey(final int number) {
+            final byte[] salt = {(byte) number, (byte) (number >> 8), (byte) (number >> 16), 0, 0};
+            final byte[] objectKey = new byte[key.length + 5];
+            System.arraycopy(md5(key, salt), 0, objectKey, 0, objectKey.length);
+            return objectKey;
+        }
+    }
+
+    private static byte[] pad(final String password) {
+        final byte[] bytes = password.getBytes(StandardCharsets.ISO_8859_1);
+        final byte[] padded = new byte[32];
+        final int length = Math.min(32, bytes.length);
+        System.arraycopy(bytes, 0, padded, 0, length);
+        System.arraycopy(PASSWORD_PADDING, 0, padded, length, 32 - length);
+        return padded;
+    }
+
+    private static byte[] deflate(final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+            deflater.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] md5(final byte[]... parts) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (final byte[] part : parts) {
+                digest.update(part);
+            }
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] rc4(final byte[] key, final byte[] data) {
+        final int[] state = new int[256];
+        for (int i = 0; i < 256; i++) {
+            state[i] = i;
+        }
+        for (int i = 0, j = 0; i < 256; i++) {
+            j = (j + state[i] + (key[i % key.length] & 0xFF)) & 0xFF;
+            final int swap = state[i];
+            state[i] = state[j];
+            state[j] = swap;
+        }
+
+        final byte[] result = new byte[data.length];
+        for (int n = 0, i = 0, j = 0; n < data.length; n++) {
+            i = (i + 1) & 0xFF;
+            j = (j + state[i]) & 0xFF;
+            final int swap = state[i];
+            state[i] = state[j];
+            state[j] = swap;
+            result[n] = (byte) (data[n] ^ state[(state[i] + state[j]) & 0xFF]);
+        }
+        return result;
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(String.format("%02X", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
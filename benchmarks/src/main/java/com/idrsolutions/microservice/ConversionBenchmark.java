@@ -0,0 +1,131 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Measures each conversion path of the servlet on one document, in process and
+ * without the worker pool, so the cost of JPedal itself can be compared across
+ * releases and settings.
+ * <p>
+ * Paths that the servlet splits into page ranges run through
+ * {@link PageConverter} as the workers do, the others run the same JPedal
+ * example with the same arguments the servlet passes to a worker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+    // The scaling the servlet converts at when none is requested
+    private static final float DEFAULT_SCALING = 1.52f;
+
+    @Param({"TEXT", "IMAGES", "MANY_PAGES"})
+    public BenchmarkDocuments.Shape shape;
+
+    @Param({"convertToImages", "rawImages", "clippedImages", "plainText", "wordlist", "structuredText"})
+    public String path;
+
+    private File dir;
+    private File pdf;
+    private int[] pages;
+    private File outputDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("jpedal-conversion-benchmark").toFile();
+        pdf = BenchmarkDocuments.create(shape, dir);
+        pages = IntStream.rangeClosed(1, PdfProbe.probe(pdf).getPageCount()).toArray();
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutputDir() throws IOException {
+        outputDir = Files.createTempDirectory(dir.toPath(), "output").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutputDir() {
+        BenchmarkDocuments.delete(outputDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDocuments.delete(dir);
+    }
+
+    @Benchmark
+    public void convert() throws Exception {
+        final String name = pdf.getName();
+        switch (path) {
+            case "convertToImages":
+                PageConverter.convert(PageConverter.TYPE_IMAGES, pdf, outputDir, "png", DEFAULT_SCALING, 0, 0, "", pages,
+                        new float[pages.length], new float[pages.length], (page, file) -> { });
+                break;
+            case "plainText":
+                PageConverter.convert(PageConverter.TYPE_PLAIN_TEXT, pdf, outputDir, null, 0, 0, 0, "", pages,
+                        new float[pages.length], new float[pages.length], (page, file) -> { });
+                break;
+            case "wordlist":
+                PageConverter.convert(PageConverter.TYPE_WORDLIST, pdf, outputDir, null, 0, 0, 0, "", pages,
+                        new float[pages.length], new float[pages.length], (page, file) -> { });
+                break;
+            case "rawImages":
+                runExample("org.jpedal.examples.images.ExtractImages",
+                        pdf.getAbsolutePath(), outputDir.getAbsolutePath(), "png");
+                break;
+            case "clippedImages":
+                runExample("org.jpedal.examples.images.ExtractClippedImages",
+                        pdf.getAbsolutePath(), outputDir.getAbsolutePath(), "png", "0",
+                        name.substring(0, name.lastIndexOf('.')));
+                break;
+            case "structuredText":
+                runExample("org.jpedal.examples.text.ExtractStructuredText",
+                        pdf.getAbsolutePath(), outputDir.getAbsolutePath());
+                break;
+            default:
+                throw new IllegalArgumentException("Unrecognised conversion path: " + path);
+        }
+    }
+
+    private static void runExample(final String mainClass, final String... args) throws Exception {
+        Class.forName(mainClass).getMethod("main", String[].class).invoke(null, (Object) args);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.apache.catalina.startup.Tomcat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the whole service: the built web application runs
+ * in an embedded Tomcat and each operation uploads a number of documents at
+ * once and waits until every conversion has finished. Dividing the number of
+ * jobs by the time of an operation gives the conversions per second.
+ * <p>
+ * The web application must have been built with {@code mvn package} first. Its
+ * location is read from the {@code benchmark.webapp} system property and
+ * defaults to {@code target/jpedal-microservice}, relative to the directory the
+ * benchmarks are run from. The service reads its configuration from a
+ * temporary home directory, so an existing configuration is not used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final long POLL_INTERVAL = 100;
+    private static final long JOB_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    @Param({"1", "4", "16"})
+    public int jobs;
+
+    @Param({"TEXT", "IMAGES"})
+    public BenchmarkDocuments.Shape shape;
+
+    @Param({"{\"mode\":\"convertToImages\",\"format\":\"png\"}", "{\"mode\":\"extractText\",\"type\":\"plainText\"}"})
+    public String settings;
+
+    private File dir;
+    private String userHome;
+    private Tomcat tomcat;
+    private URI endpoint;
+    private HttpClient client;
+    private byte[] pdf;
+
+    @Setup
+    public void setup() throws Exception {
+        final File webapp = new File(System.getProperty("benchmark.webapp", "target/jpedal-microservice"));
+        if (!new File(webapp, "WEB-INF").isDirectory()) {
+            throw new IllegalStateException("Web application not found at " + webapp.getAbsolutePath()
+                    + ", build it with mvn package or set benchmark.webapp");
+        }
+
+        dir = Files.createTempDirectory("jpedal-end-to-end-benchmark").toFile();
+        pdf = Files.readAllBytes(BenchmarkDocuments.create(shape, dir).toPath());
+
+        // The service reads its configuration from the home directory
+        final File configDir = new File(dir, "home/.idr/jpedal-microservice");
+        Files.createDirectories(configDir.toPath());
+        final String config = "inputPath=" + new File(dir, "input").getAbsolutePath() + '\n'
+                + "outputPath=" + new File(dir, "output").getAbsolutePath() + '\n'
+                // Results are cached by content, which would turn every upload after the first into a lookup
+                + "resultCache.maxSize=0\n"
+                + "admission.maxQueueDepth=0\n";
+        Files.write(new File(configDir, "jpedal-microservice.properties").toPath(),
+                config.getBytes(StandardCharsets.ISO_8859_1));
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", new File(dir, "home").getAbsolutePath());
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(new File(dir, "tomcat").getAbsolutePath());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        tomcat.addWebapp("", webapp.getAbsolutePath());
+        tomcat.start();
+
+        endpoint = URI.create("http://localhost:" + tomcat.getConnector().getLocalPort() + "/jpedal");
+        client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+        if (userHome != null) {
+            System.setProperty("user.home", userHome);
+        }
+        BenchmarkDocuments.delete(dir);
+    }
+
+    @Benchmark
+    public int convert() throws Exception {
+        final List<CompletableFuture<HttpResponse<String>>> uploads = new ArrayList<>(jobs);
+        for (int i = 0; i < jobs; i++) {
+            uploads.add(client.sendAsync(createUpload(i), HttpResponse.BodyHandlers.ofString()));
+        }
+
+        final Set<String> pending = new HashSet<>();
+        for (final CompletableFuture<HttpResponse<String>> upload : uploads) {
+            final HttpResponse<String> response = upload.get();
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Upload failed with " + response.statusCode() + ": " + response.body());
+            }
+            pending.add(readJson(response.body()).getString("uuid"));
+        }
+
+        final long deadline = System.currentTimeMillis() + JOB_TIMEOUT;
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(pending.size() + " conversions did not finish in time");
+            }
+            Thread.sleep(POLL_INTERVAL);
+            for (final String uuid : new ArrayList<>(pending)) {
+                final HttpResponse<String> response = client.send(
+                        HttpRequest.newBuilder(URI.create(endpoint + "?uuid=" + uuid)).GET().build(),
+                        HttpResponse.BodyHandlers.ofString());
+                final JsonObject status = readJson(response.body());
+                final String state = status.getString("state", "");
+                if ("error".equals(state)) {
+                    throw new IllegalStateException("Conversion " + uuid + " failed: " + status);
+                } else if ("processed".equals(state)) {
+                    pending.remove(uuid);
+                }
+            }
+        }
+        return jobs;
+    }
+
+    private HttpRequest createUpload(final int index) throws IOException {
+        final String boundary = UUID.randomUUID().toString();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(pdf.length + 1024);
+        writePart(body, boundary, "input", null, "upload".getBytes(StandardCharsets.UTF_8));
+        writePart(body, boundary, "settings", null, settings.getBytes(StandardCharsets.UTF_8));
+        writePart(body, boundary, "file", "document" + index + ".pdf", pdf);
+        body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        return HttpRequest.newBuilder(endpoint)
+                .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build();
+    }
+
+    private static void writePart(final ByteArrayOutputStream body, final String boundary, final String name,
+                                  final String fileName, final byte[] content) throws IOException {
+        final StringBuilder header = new StringBuilder("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"").append(name).append('"');
+        if (fileName != null) {
+            header.append("; filename=\"").append(fileName).append("\"\r\nContent-Type: application/pdf");
+        }
+        header.append("\r\n\r\n");
+        body.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JsonObject readJson(final String json) {
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            return reader.readObject();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.jpedal.PdfDecoderServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stage that reads the structure of a document before it is
+ * queued: the {@link PdfProbe} used by the servlet, against opening the
+ * document with JPedal to count its pages as the servlet did before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeBenchmark {
+
+    @Param({"TEXT", "IMAGES", "MANY_PAGES", "ENCRYPTED"})
+    public BenchmarkDocuments.Shape shape;
+
+    private File dir;
+    private File pdf;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("jpedal-probe-benchmark").toFile();
+        pdf = BenchmarkDocuments.create(shape, dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkDocuments.delete(dir);
+    }
+
+    @Benchmark
+    public Object probe() throws IOException {
+        return PdfProbe.probe(pdf);
+    }
+
+    @Benchmark
+    public int openWithDecoder() throws Exception {
+        final PdfDecoderServer decoder = new PdfDecoderServer(false);
+        try {
+            decoder.openPdfFile(pdf.getAbsolutePath());
+            decoder.setEncryptionPassword(shape == BenchmarkDocuments.Shape.ENCRYPTED ? BenchmarkDocuments.PASSWORD : "");
+            return decoder.getPageCount();
+        } finally {
+            decoder.closePdfFile();
+            decoder.dispose();
+        }
+    }
+}
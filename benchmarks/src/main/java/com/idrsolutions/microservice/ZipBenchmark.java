@@ -0,0 +1,132 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.utils.ZipHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Measures packaging the output of a conversion: the {@link OutputZipWriter}
+ * used by the servlet, which adds pages as they are written and stores images
+ * without compressing them again, against zipping the finished output
+ * directory in one go.
+ * <p>
+ * The page files stand in for converted output. Image pages are random bytes,
+ * which compress no better than encoded images do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipBenchmark {
+
+    private static final int TEXT_PAGE_SIZE = 4 * 1024;
+    private static final int IMAGE_PAGE_SIZE = 256 * 1024;
+
+    @Param({"10", "1000"})
+    public int pageCount;
+
+    @Param({"txt", "png"})
+    public String extension;
+
+    private File dir;
+    private File outputDir;
+    private File[] pageFiles;
+    private int[] pages;
+    private File outputZip;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("jpedal-zip-benchmark").toFile();
+        outputDir = new File(dir, "output");
+        final Random random = new Random(pageCount);
+        pageFiles = new File[pageCount];
+        pages = IntStream.rangeClosed(1, pageCount).toArray();
+        for (int page = 1; page <= pageCount; page++) {
+            final File pageFile = PageConverter.getPageFile(outputDir, "document.pdf", page, extension);
+            Files.createDirectories(pageFile.getParentFile().toPath());
+            Files.write(pageFile.toPath(), pageContent(random));
+            pageFiles[page - 1] = pageFile;
+        }
+        outputZip = new File(dir, "output.zip");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteZip() {
+        outputZip.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDocuments.delete(dir);
+    }
+
+    @Benchmark
+    public File outputZipWriter() throws IOException {
+        final OutputZipWriter zipWriter = new OutputZipWriter(outputDir, outputZip);
+        zipWriter.expectPages(pages);
+        for (int i = 0; i < pageFiles.length; i++) {
+            zipWriter.addPage(pages[i], pageFiles[i]);
+        }
+        zipWriter.finish();
+        return outputZip;
+    }
+
+    @Benchmark
+    public File zipFolder() throws IOException {
+        ZipHelper.zipFolder(outputDir, outputZip, false);
+        return outputZip;
+    }
+
+    private byte[] pageContent(final Random random) {
+        if ("png".equals(extension)) {
+            final byte[] content = new byte[IMAGE_PAGE_SIZE];
+            random.nextBytes(content);
+            return content;
+        }
+
+        final StringBuilder text = new StringBuilder(TEXT_PAGE_SIZE + 16);
+        while (text.length() < TEXT_PAGE_SIZE) {
+            text.append("word").append(random.nextInt(5000)).append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides whether the service can accept another conversion, based on the
+ * number of conversions already waiting or running, the memory their workers
+ * could commit and the free space left for input and output files.
+ * <p>
+ * A conversion counts towards the queue depth from the moment its upload
+ * starts until its conversion finishes. Conversions that never report
+ * finishing, for example because their request failed after validation, stop
+ * counting once they are older than the stale time.
+ */
+final class AdmissionController {
+
+    /**
+     * The reason a request was not admitted, with the HTTP status and the
+     * number of seconds after which the client should retry.
+     */
+    static final class Rejection {
+
+        private final int status;
+        private final long retryAfter;
+        private final String message;
+
+        Rejection(final int status, final long retryAfter, final String message) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+            this.message = message;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        long getRetryAfter() {
+            return retryAfter;
+        }
+
+        String getMessage() {
+            return message;
+        }
+    }
+
+    private static final long DEFAULT_DURATION = 10000;
+    private static final long MAX_RETRY_AFTER = 3600;
+
+    private final int maxQueueDepth;
+    private final int maxMemoryCommitment;
+    private final long minFreeSpace;
+    private final LongSupplier workerHeap;
+    private final int concurrency;
+    private final long staleAfter;
+    private final File[] paths;
+
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger admitting = new AtomicInteger();
+    private final AtomicLong averageDuration = new AtomicLong(DEFAULT_DURATION);
+    private final AtomicLong queueRejections = new AtomicLong();
+    private final AtomicLong memoryRejections = new AtomicLong();
+    private final AtomicLong diskRejections = new AtomicLong();
+
+    /**
+     * @param maxQueueDepth the number of conversions waiting or running above which requests are rejected, 0 for no limit
+     * @param maxMemoryCommitment the percentage of physical memory the conversion workers may commit, 0 for no limit
+     * @param minFreeSpaceMB the free space in MB that must remain on the input and output paths, 0 for no limit
+     * @param workerHeap supplies the maximum heap in bytes of a typical conversion worker, 0 if it is not limited
+     * @param concurrency the number of conversions that run at the same time
+     * @param staleAfter the time in milliseconds after which a conversion that has not finished stops counting
+     * @param paths the input and output paths
+     */
+    AdmissionController(final int maxQueueDepth, final int maxMemoryCommitment, final long minFreeSpaceMB,
+                        final LongSupplier workerHeap, final int concurrency, final long staleAfter, final File... paths) {
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxMemoryCommitment = maxMemoryCommitment;
+        this.minFreeSpace = minFreeSpaceMB * 1024 * 1024;
+        this.workerHeap = workerHeap;
+        this.concurrency = concurrency;
+        this.staleAfter = staleAfter;
+        this.paths = paths;
+    }
+
+    /**
+     * Checks whether a request can be admitted. An admitted request counts
+     * towards the queue depth until {@link #admitted()} is called, which
+     * should happen as soon as its conversion is accepted and counted by
+     * {@link #accepted(String)} instead.
+     *
+     * @param contentLength the size of the request body, or -1 if unknown
+     * @return null if the request is admitted, otherwise the reason it was rejected
+     */
+    Rejection tryAdmit(final long contentLength) {
+        purgeStale();
+        final int depth = getQueueDepth();
+
+        if (maxQueueDepth > 0 && depth >= maxQueueDepth) {
+            queueRejections.incrementAndGet();
+            // Time for the conversions above the limit to drain, running concurrency at a time
+            final long excess = depth - maxQueueDepth + 1;
+            return new Rejection(429, retryAfter(excess * averageDuration.get() / Math.max(1, concurrency)),
+                    "Too many conversions queued, try again later");
+        }
+
+        final long heapPerWorker = workerHeap.getAsLong();
+        if (maxMemoryCommitment > 0 && heapPerWorker > 0) {
+            final long physicalMemory = getPhysicalMemory();
+            final long committed = Runtime.getRuntime().maxMemory() + heapPerWorker * Math.min(depth + 1, concurrency);
+            if (physicalMemory > 0 && committed > physicalMemory / 100 * maxMemoryCommitment) {
+                memoryRejections.incrementAndGet();
+                return new Rejection(503, retryAfter(averageDuration.get() / Math.max(1, concurrency)),
+                        "Insufficient memory to accept conversions, try again later");
+            }
+        }
+
+        if (minFreeSpace > 0) {
+            final long required = minFreeSpace + Math.max(0, contentLength);
+            for (final File path : paths) {
+                final long usable = path.getUsableSpace();
+                if (usable > 0 && usable < required) {
+                    diskRejections.incrementAndGet();
+                    // Space is only freed as old output expires, so back off for longer
+                    return new Rejection(503, retryAfter(averageDuration.get() * 2),
+                            "Insufficient disk space to accept conversions, try again later");
+                }
+            }
+        }
+
+        admitting.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Marks the end of a request admitted by {@link #tryAdmit(long)}, or the
+     * point its conversion was accepted if that came first.
+     */
+    void admitted() {
+        admitting.decrementAndGet();
+    }
+
+    /**
+     * Records a conversion that has been accepted and will be queued.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    void accepted(final String uuid) {
+        inFlight.put(uuid, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the end of a conversion.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    void finished(final String uuid) {
+        final Long acceptedAt = inFlight.remove(uuid);
+        if (acceptedAt != null) {
+            final long duration = System.currentTimeMillis() - acceptedAt;
+            // Exponentially weighted so the estimate follows the current load
+            averageDuration.updateAndGet(average -> (average * 7 + duration) / 8);
+        }
+    }
+
+    /**
+     * Returns whether a conversion accepted by this node has not yet finished.
+     *
+     * @param uuid the uuid of the conversion
+     * @return true if the conversion is waiting or running
+     */
+    boolean isInFlight(final String uuid) {
+        return inFlight.containsKey(uuid);
+    }
+
+    /**
+     * @return the number of conversions uploading, waiting or running
+     */
+    int getQueueDepth() {
+        return inFlight.size() + admitting.get();
+    }
+
+    /**
+     * @return the average time in milliseconds from accepting a conversion to it finishing
+     */
+    long getAverageDuration() {
+        return averageDuration.get();
+    }
+
+    long getQueueRejections() {
+        return queueRejections.get();
+    }
+
+    long getMemoryRejections() {
+        return memoryRejections.get();
+    }
+
+    long getDiskRejections() {
+        return diskRejections.get();
+    }
+
+    private void purgeStale() {
+        final long oldest = System.currentTimeMillis() - staleAfter;
+        inFlight.values().removeIf(acceptedAt -> acceptedAt < oldest);
+    }
+
+    private static long retryAfter(final long millis) {
+        return Math.max(1, Math.min(MAX_RETRY_AFTER, (millis + 999) / 1000));
+    }
+
+    private static long getPhysicalMemory() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalMemorySize();
+        }
+        return -1;
+    }
+}
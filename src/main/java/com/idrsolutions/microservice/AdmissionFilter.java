@@ -0,0 +1,88 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rejects new conversions before their upload is read when the service is
+ * too far behind to accept them, so a load balancer can send them to another
+ * node. See {@link AdmissionController} for the limits applied.
+ */
+@WebFilter(filterName = "admission", servletNames = {"jpedal", "sync", "text", "retry"})
+public class AdmissionFilter extends HttpFilter {
+
+    /**
+     * The request attribute set while an admitted request counts towards the queue depth as admitting.
+     */
+    private static final String KEY_ADMITTING = "com.idrsolutions.microservice.admitting";
+
+    @Override
+    protected void doFilter(final HttpServletRequest request, final HttpServletResponse response,
+                            final FilterChain chain) throws IOException, ServletException {
+        final AdmissionController admissionController = (AdmissionController) getServletContext()
+                .getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        if (admissionController == null || !"POST".equals(request.getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        final AdmissionController.Rejection rejection = admissionController.tryAdmit(request.getContentLengthLong());
+        if (rejection != null) {
+            response.setHeader("Retry-After", String.valueOf(rejection.getRetryAfter()));
+            response.setHeader("Connection", "close");
+            MicroserviceUtils.sendError(response, rejection.getStatus(), rejection.getMessage());
+            return;
+        }
+
+        final AtomicBoolean admitting = new AtomicBoolean(true);
+        request.setAttribute(KEY_ADMITTING, admitting);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            if (admitting.compareAndSet(true, false)) {
+                admissionController.admitted();
+            }
+        }
+    }
+
+    /**
+     * Records a conversion accepted by a request. A request admitted by this
+     * filter stops counting as admitting at that point, so that it is only
+     * counted once, as in flight.
+     *
+     * @param request the request the conversion was submitted with
+     * @param admissionController the admission controller of the service
+     * @param uuid the uuid of the conversion
+     */
+    static void accepted(final HttpServletRequest request, final AdmissionController admissionController, final String uuid) {
+        final AtomicBoolean admitting = (AtomicBoolean) request.getAttribute(KEY_ADMITTING);
+        if (admitting != null && admitting.compareAndSet(true, false)) {
+            admissionController.admitted();
+        }
+        admissionController.accepted(uuid);
+    }
+}
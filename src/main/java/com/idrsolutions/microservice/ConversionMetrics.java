@@ -0,0 +1,232 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the time spent in each stage of a conversion, along with counts of
+ * the pages and bytes converted, and writes them in the Prometheus text format.
+ * <p>
+ * Durations are recorded into histograms with fixed buckets, so recording is a
+ * couple of atomic additions and the memory used only grows with the number of
+ * distinct label values. Metrics are labelled with the mode, type and format of
+ * the conversion.
+ */
+final class ConversionMetrics {
+
+    /**
+     * Upper bounds in seconds of the duration histogram buckets.
+     */
+    private static final double[] BUCKETS = {
+            0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600
+    };
+
+    private final Map<String, Histogram> stageDurations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> conversions = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> pages = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> inputBytes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> outputBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Starts timing a conversion. The stages are timed one after another from
+     * this point.
+     *
+     * @return the timer of the conversion
+     */
+    Timer startTimer() {
+        return new Timer();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format.
+     *
+     * @param writer the writer to write the metrics to
+     */
+    void write(final PrintWriter writer) {
+        writer.println("# HELP jpedal_stage_duration_seconds Time spent in each stage of a conversion.");
+        writer.println("# TYPE jpedal_stage_duration_seconds histogram");
+        for (final Map.Entry<String, Histogram> entry : new TreeMap<>(stageDurations).entrySet()) {
+            entry.getValue().write(writer, "jpedal_stage_duration_seconds", entry.getKey());
+        }
+
+        writeCounter(writer, "jpedal_conversions_total", "Conversions finished, by final state.", conversions);
+        writeCounter(writer, "jpedal_pages_converted_total", "Pages converted.", pages);
+        writeCounter(writer, "jpedal_input_bytes_total", "Size of the input files converted.", inputBytes);
+        writeCounter(writer, "jpedal_output_bytes_total", "Size of the output archives produced.", outputBytes);
+    }
+
+    /**
+     * Writes a gauge in the Prometheus text format.
+     *
+     * @param writer the writer to write the gauge to
+     * @param name the name of the gauge
+     * @param help the description of the gauge
+     * @param value the current value
+     */
+    static void writeGauge(final PrintWriter writer, final String name, final String help, final double value) {
+        writer.println("# HELP " + name + ' ' + help);
+        writer.println("# TYPE " + name + " gauge");
+        writer.println(name + ' ' + format(value));
+    }
+
+    /**
+     * Writes a counter in the Prometheus text format.
+     *
+     * @param writer the writer to write the counter to
+     * @param name the name of the counter
+     * @param help the description of the counter
+     * @param value the current total
+     */
+    static void writeCounter(final PrintWriter writer, final String name, final String help, final double value) {
+        writer.println("# HELP " + name + ' ' + help);
+        writer.println("# TYPE " + name + " counter");
+        writer.println(name + ' ' + format(value));
+    }
+
+    private static void writeCounter(final PrintWriter writer, final String name, final String help,
+                                     final Map<String, LongAdder> counter) {
+        writer.println("# HELP " + name + ' ' + help);
+        writer.println("# TYPE " + name + " counter");
+        for (final Map.Entry<String, LongAdder> entry : new TreeMap<>(counter).entrySet()) {
+            writer.println(name + '{' + entry.getKey() + "} " + entry.getValue().sum());
+        }
+    }
+
+    private static String format(final double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Times the stages of one conversion. Each call to {@link #stage(String)}
+     * records the time since the previous stage ended.
+     */
+    final class Timer {
+
+        private final long start = System.nanoTime();
+        private long mark = start;
+        private String labels = "mode=\"\",type=\"\",format=\"\"";
+
+        /**
+         * Sets the labels recorded with every stage, once the settings of the
+         * conversion are known.
+         *
+         * @param mode the conversion mode
+         * @param type the type setting, or null
+         * @param format the format setting, or null
+         */
+        synchronized void setLabels(final String mode, final String type, final String format) {
+            labels = "mode=\"" + escape(mode != null ? mode : "") + "\",type=\"" + escape(type != null ? type : "")
+                    + "\",format=\"" + escape(format != null ? format : "") + '"';
+        }
+
+        /**
+         * Records the time since the previous stage as the given stage.
+         *
+         * @param stage the name of the stage that just ended
+         */
+        synchronized void stage(final String stage) {
+            final long now = System.nanoTime();
+            record(stage, now - mark);
+            mark = now;
+        }
+
+        /**
+         * Records a stage that was timed elsewhere.
+         *
+         * @param stage the name of the stage
+         * @param nanos the duration of the stage in nanoseconds
+         */
+        synchronized void record(final String stage, final long nanos) {
+            stageDurations.computeIfAbsent("stage=\"" + stage + "\"," + labels, key -> new Histogram())
+                    .observe(nanos / 1e9);
+        }
+
+        /**
+         * Starts timing the next stage from now, so time since the previous
+         * stage is not recorded.
+         */
+        synchronized void skip() {
+            mark = System.nanoTime();
+        }
+
+        /**
+         * Records the total duration of the conversion and its final state.
+         *
+         * @param state the final state of the conversion
+         */
+        synchronized void finish(final String state) {
+            record("total", System.nanoTime() - start);
+            conversions.computeIfAbsent(labels + ",state=\"" + escape(state) + '"', key -> new LongAdder()).increment();
+        }
+
+        void addPages(final long count) {
+            pages.computeIfAbsent(labels, key -> new LongAdder()).add(count);
+        }
+
+        void addInputBytes(final long count) {
+            inputBytes.computeIfAbsent(labels, key -> new LongAdder()).add(count);
+        }
+
+        void addOutputBytes(final long count) {
+            outputBytes.computeIfAbsent(labels, key -> new LongAdder()).add(count);
+        }
+    }
+
+    private static final class Histogram {
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(final double seconds) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(seconds);
+        }
+
+        void write(final PrintWriter writer, final String name, final String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                final String bound = i < BUCKETS.length ? format(BUCKETS[i]) : "+Inf";
+                writer.println(name + "_bucket{" + labels + ",le=\"" + bound + "\"} " + cumulative);
+            }
+            writer.println(name + "_sum{" + labels + "} " + sum.sum());
+            writer.println(name + "_count{" + labels + "} " + cumulative);
+        }
+    }
+}
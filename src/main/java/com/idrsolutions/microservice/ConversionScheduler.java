@@ -0,0 +1,471 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Decides the order in which conversions get a conversion thread, and the
+ * order in which they get a slot on the {@link WorkerPool}.
+ * <p>
+ * Conversions waiting for a conversion thread are ordered by weighted fair
+ * queuing between tenants on their estimated cost, so the order is decided
+ * before a thread is taken rather than by the order they were submitted in.
+ * <p>
+ * Each request for a slot has an estimated cost. Requests are ordered by
+ * weighted fair queuing between tenants, so a tenant submitting many large
+ * documents only gets its share of the slots while other tenants have work
+ * waiting. Requests whose cost is below the small job threshold go into a
+ * separate lane that is served shortest job first, so single page documents
+ * are not held up behind long conversions. The small job lane can never take
+ * the last free slot while large jobs are waiting and none are running.
+ * <p>
+ * A tenant is identified by the X-Client-Key header of the conversion request
+ * when the key is one of the configured client keys, or the host of its
+ * callback url, or failing that its remote address.
+ */
+final class ConversionScheduler {
+
+    /**
+     * The request header identifying the tenant a conversion belongs to.
+     */
+    static final String CLIENT_KEY_HEADER = "X-Client-Key";
+
+    private final int slots;
+    private final double smallJobCost;
+    private final long submissionRetention;
+
+    private final PriorityQueue<Request> fairLane = new PriorityQueue<>(
+            Comparator.comparingDouble((Request request) -> request.finishTag).thenComparingLong(request -> request.sequence));
+    private final PriorityQueue<Request> smallLane = new PriorityQueue<>(
+            Comparator.comparingDouble((Request request) -> request.cost).thenComparingLong(request -> request.sequence));
+    private final Map<String, Double> tenantFinishTags = new HashMap<>();
+    private final Map<String, Submission> submissions = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor conversionExecutor;
+    // Conversions are charged again for the slots they use, so waiting for a thread is accounted separately
+    private final Map<String, Double> conversionFinishTags = new HashMap<>();
+    private double conversionVirtualTime;
+
+    private int running;
+    private int runningLarge;
+    private double virtualTime;
+    private long sequence;
+
+    /**
+     * @param slots the number of conversions that can run at the same time
+     * @param conversionThreads the number of conversion threads
+     * @param smallJobCost the estimated cost below which a request goes into the small job lane, 0 disables the lane
+     * @param submissionRetention the time in milliseconds a submission is remembered for if its conversion never starts
+     */
+    ConversionScheduler(final int slots, final int conversionThreads, final double smallJobCost, final long submissionRetention) {
+        this.slots = slots;
+        this.smallJobCost = smallJobCost;
+        this.submissionRetention = submissionRetention;
+        final AtomicInteger threadCount = new AtomicInteger();
+        conversionExecutor = new ThreadPoolExecutor(conversionThreads, conversionThreads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    final Thread thread = new Thread(runnable, "jpedal-conversion-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Estimates the cost of a conversion in page equivalents, where one page is
+     * roughly the cost of rendering an A4 page at the default scaling.
+     *
+     * @param pageCount the number of pages in the document
+     * @param fileSize the size of the PDF in bytes
+     * @param mode the conversion mode
+     * @param scaling the scaling requested by the client, 1 if not set
+     * @return the estimated cost
+     */
+    static double estimateCost(final int pageCount, final long fileSize, final String mode, final float scaling) {
+        final double pageCost;
+        switch (mode) {
+            case "convertToImages":
+                // Rendering cost grows with the number of pixels
+                pageCost = Math.max(0.1, scaling * scaling);
+                break;
+            case "extractImages":
+                pageCost = 0.5;
+                break;
+            default:
+                pageCost = 0.2;
+                break;
+        }
+        // Large files cost more to parse and decompress regardless of their page count
+        return 1 + pageCount * pageCost + fileSize / (1024.0 * 1024.0);
+    }
+
+    /**
+     * Records the tenant of a conversion when its request is accepted, so the
+     * time the conversion spends queued is measured from submission.
+     *
+     * @param uuid the uuid of the conversion
+     * @param tenant the tenant the conversion belongs to
+     */
+    void submitted(final String uuid, final String tenant) {
+        submitted(uuid, tenant, System.currentTimeMillis());
+    }
+
+    /**
+     * Records the tenant of a conversion accepted earlier, possibly by another
+     * node, so the time the conversion spends queued is measured from when it
+     * was accepted.
+     *
+     * @param uuid the uuid of the conversion
+     * @param tenant the tenant the conversion belongs to
+     * @param submittedAt the time in milliseconds the conversion was accepted
+     */
+    void submitted(final String uuid, final String tenant, final long submittedAt) {
+        final long now = System.currentTimeMillis();
+        submissions.values().removeIf(submission -> submission.submittedAt < now - submissionRetention);
+        submissions.put(uuid, new Submission(tenant, submittedAt));
+    }
+
+    /**
+     * Returns the tenant a conversion belongs to.
+     *
+     * @param uuid the uuid of the conversion
+     * @return the tenant, or null if the conversion is not known or has started
+     */
+    String getTenant(final String uuid) {
+        final Submission submission = submissions.get(uuid);
+        return submission != null ? submission.tenant : null;
+    }
+
+    /**
+     * Returns when a conversion was submitted.
+     *
+     * @param uuid the uuid of the conversion
+     * @return the submission time in milliseconds, or -1 if the conversion is not known or has started
+     */
+    long getSubmittedAt(final String uuid) {
+        final Submission submission = submissions.get(uuid);
+        return submission != null ? submission.submittedAt : -1;
+    }
+
+    /**
+     * Runs a conversion on a conversion thread once it is its turn, without
+     * holding a thread while it waits.
+     *
+     * @param uuid the uuid of the conversion, whose tenant is recorded by {@link #submitted(String, String)}
+     * @param cost the estimated cost of the conversion
+     * @param conversion the conversion to run
+     * @throws java.util.concurrent.RejectedExecutionException if the scheduler has been shut down
+     */
+    void execute(final String uuid, final double cost, final Runnable conversion) {
+        final Submission submission = submissions.get(uuid);
+        final String tenant = submission != null ? submission.tenant : "";
+        final Conversion queued;
+        synchronized (this) {
+            final double startTag = Math.max(conversionVirtualTime, conversionFinishTags.getOrDefault(tenant, 0.0));
+            final double finishTag = startTag + cost;
+            conversionFinishTags.put(tenant, finishTag);
+            queued = new Conversion(sequence++, startTag, finishTag, conversion);
+        }
+        conversionExecutor.execute(queued);
+    }
+
+    /**
+     * @return the number of conversions waiting for a conversion thread
+     */
+    int getConversionsWaiting() {
+        return conversionExecutor.getQueue().size();
+    }
+
+    /**
+     * Stops the conversion threads once the conversions they are running
+     * finish. Conversions still waiting for a thread are not run.
+     */
+    void shutdown() {
+        conversionExecutor.getQueue().clear();
+        conversionExecutor.shutdown();
+    }
+
+    /**
+     * Starts scheduling a conversion.
+     *
+     * @param uuid the uuid of the conversion
+     * @param cost the estimated cost of the whole conversion
+     * @param onStart notified with the time in milliseconds the conversion was queued for when it gets its first slot
+     * @return the job to pass to the worker pool
+     */
+    Job startJob(final String uuid, final double cost, final LongConsumer onStart) {
+        final Submission submission = submissions.remove(uuid);
+        return submission != null
+                ? new Job(uuid, submission.tenant, cost, submission.submittedAt, onStart)
+                : new Job(uuid, "", cost, System.currentTimeMillis(), onStart);
+    }
+
+    /**
+     * Waits for a slot to run part of a job on.
+     *
+     * @param job the job the slot is for
+     * @param cost the estimated cost of the work run on the slot
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the slot, which must be released when the work finishes, or null if no slot became free in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    Slot acquire(final Job job, final double cost, final long timeout) throws InterruptedException {
+        final Request request;
+        synchronized (this) {
+            final boolean small = cost < smallJobCost;
+            final double startTag = Math.max(virtualTime, tenantFinishTags.getOrDefault(job.tenant, 0.0));
+            final double finishTag = startTag + cost;
+            tenantFinishTags.put(job.tenant, finishTag);
+            request = new Request(sequence++, job.tenant, cost, startTag, finishTag, small);
+            (small ? smallLane : fairLane).add(request);
+            dispatch();
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                while (!request.granted) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        withdraw(request);
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (final InterruptedException e) {
+                if (request.granted) {
+                    release(new Slot(request.small));
+                } else {
+                    withdraw(request);
+                }
+                throw e;
+            }
+        }
+        job.started();
+        return new Slot(request.small);
+    }
+
+    /**
+     * Returns a slot so the next waiting request can run.
+     *
+     * @param slot the slot returned by {@link #acquire(Job, double, long)}
+     */
+    synchronized void release(final Slot slot) {
+        running--;
+        if (!slot.small) {
+            runningLarge--;
+        }
+        if (tenantFinishTags.size() > 1024) {
+            tenantFinishTags.values().removeIf(finishTag -> finishTag <= virtualTime);
+        }
+        dispatch();
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    synchronized int getQueueDepth() {
+        return fairLane.size() + smallLane.size();
+    }
+
+    /**
+     * @return the number of slots in use
+     */
+    synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Removes a request that gave up waiting, no longer charging its tenant
+     * for work that never ran.
+     */
+    private void withdraw(final Request request) {
+        (request.small ? smallLane : fairLane).remove(request);
+        tenantFinishTags.computeIfPresent(request.tenant, (tenant, finishTag) -> finishTag - request.cost);
+        dispatch();
+    }
+
+    private void dispatch() {
+        boolean granted = false;
+        while (running < slots) {
+            final Request next;
+            final boolean reserveForLarge = !fairLane.isEmpty() && runningLarge == 0 && slots - running == 1;
+            if (!smallLane.isEmpty() && !reserveForLarge) {
+                next = smallLane.poll();
+            } else if (!fairLane.isEmpty()) {
+                next = fairLane.poll();
+                runningLarge++;
+            } else {
+                break;
+            }
+            // Start time fair queuing, virtual time follows the start tag of the request in service
+            virtualTime = Math.max(virtualTime, next.startTag);
+            running++;
+            next.granted = true;
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * A conversion being scheduled, which may acquire several slots when its
+     * pages are converted in parallel.
+     */
+    static final class Job {
+
+        private final String uuid;
+        private final String tenant;
+        private final double cost;
+        private final long submittedAt;
+        private final LongConsumer onStart;
+        private final AtomicBoolean started;
+
+        Job(final String uuid, final String tenant, final double cost, final long submittedAt, final LongConsumer onStart) {
+            this(uuid, tenant, cost, submittedAt, onStart, new AtomicBoolean());
+        }
+
+        private Job(final String uuid, final String tenant, final double cost, final long submittedAt,
+                    final LongConsumer onStart, final AtomicBoolean started) {
+            this.uuid = uuid;
+            this.tenant = tenant;
+            this.cost = cost;
+            this.submittedAt = submittedAt;
+            this.onStart = onStart;
+            this.started = started;
+        }
+
+        /**
+         * Creates the job of one document in a batch. It is scheduled for the
+         * same tenant, and the start of whichever document in the batch gets a
+         * slot first is reported as the start of the batch.
+         *
+         * @param documentCost the estimated cost of converting the document
+         * @return the job to pass to the worker pool for the document
+         */
+        Job forDocument(final double documentCost) {
+            return new Job(uuid, tenant, documentCost, submittedAt, onStart, started);
+        }
+
+        String getUuid() {
+            return uuid;
+        }
+
+        double getCost() {
+            return cost;
+        }
+
+        /**
+         * Reports the job as started. Called when it gets its first slot, or
+         * directly by conversions that run without a worker.
+         */
+        void started() {
+            if (started.compareAndSet(false, true) && onStart != null) {
+                onStart.accept(System.currentTimeMillis() - submittedAt);
+            }
+        }
+    }
+
+    /**
+     * A slot acquired from the scheduler.
+     */
+    static final class Slot {
+
+        private final boolean small;
+
+        private Slot(final boolean small) {
+            this.small = small;
+        }
+    }
+
+    /**
+     * A conversion waiting for a conversion thread, ordered by its finish tag.
+     */
+    private final class Conversion implements Runnable, Comparable<Conversion> {
+
+        private final long sequence;
+        private final double startTag;
+        private final double finishTag;
+        private final Runnable conversion;
+
+        Conversion(final long sequence, final double startTag, final double finishTag, final Runnable conversion) {
+            this.sequence = sequence;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.conversion = conversion;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ConversionScheduler.this) {
+                conversionVirtualTime = Math.max(conversionVirtualTime, startTag);
+                if (conversionFinishTags.size() > 1024) {
+                    conversionFinishTags.values().removeIf(tag -> tag <= conversionVirtualTime);
+                }
+            }
+            conversion.run();
+        }
+
+        @Override
+        public int compareTo(final Conversion other) {
+            final int order = Double.compare(finishTag, other.finishTag);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class Request {
+
+        private final long sequence;
+        private final String tenant;
+        private final double cost;
+        private final double startTag;
+        private final double finishTag;
+        private final boolean small;
+        private boolean granted;
+
+        Request(final long sequence, final String tenant, final double cost, final double startTag, final double finishTag,
+                final boolean small) {
+            this.sequence = sequence;
+            this.tenant = tenant;
+            this.cost = cost;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.small = small;
+        }
+    }
+
+    private static final class Submission {
+
+        private final String tenant;
+        private final long submittedAt;
+
+        Submission(final String tenant, final long submittedAt) {
+            this.tenant = tenant;
+            this.submittedAt = submittedAt;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Entry point for the long-lived conversion worker JVMs managed by {@link WorkerPool}.
+ * <p>
+ * The worker reads jobs from stdin and replies on stdout, so the JPedal examples
+ * it runs have their own stdout redirected to stderr to keep the channel clean.
+ * Each job either names the JPedal example to run and its arguments, or asks for
+ * a selection of pages to be converted by {@link PageConverter}, in which case a
+ * message is sent back as each page is written. Both carry the system properties
+ * to set for the duration of the job. When a job finishes the worker reports
+ * its committed heap and the peak live heap of the job, which the pool uses to
+ * size the heap of later jobs. The live heap is measured after each garbage
+ * collection, so it follows the memory the job needed rather than the garbage
+ * it left between collections, which grows with the maximum heap size.
+ * <p>
+ * This class runs outside of the servlet container and must only depend on the
+ * JDK and JPedal.
+ */
+public final class ConversionWorker {
+
+    private static final Logger LOG = Logger.getLogger(ConversionWorker.class.getName());
+
+    static final byte OP_RUN = 1;
+    static final byte OP_SHUTDOWN = 2;
+    static final byte OP_RUN_PAGES = 3;
+
+    static final byte MSG_READY = 1;
+    static final byte MSG_DONE = 2;
+    static final byte MSG_PAGE = 3;
+
+    static final byte STATUS_SUCCESS = 0;
+    static final byte STATUS_ERROR = 1;
+    static final byte STATUS_OUT_OF_MEMORY = 2;
+
+    /**
+     * JPedal examples loaded when the worker starts so the first job does not
+     * pay for class loading.
+     */
+    private static final String[] PRELOAD_CLASSES = {
+            "org.jpedal.examples.images.ConvertPagesToImages",
+            "org.jpedal.examples.images.ExtractImages",
+            "org.jpedal.examples.images.ExtractClippedImages",
+            "org.jpedal.examples.text.ExtractTextInRectangle",
+            "org.jpedal.examples.text.ExtractTextAsWordlist",
+            "org.jpedal.examples.text.ExtractStructuredText"
+    };
+
+    /**
+     * The largest heap in use after a garbage collection since the last reset.
+     */
+    private static final AtomicLong peakLiveHeap = new AtomicLong();
+
+    private ConversionWorker() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+        for (final String className : PRELOAD_CLASSES) {
+            try {
+                Class.forName(className);
+            } catch (final ClassNotFoundException e) {
+                LOG.log(Level.WARNING, "Unable to preload {0}", className);
+            }
+        }
+
+        watchCollections();
+
+        out.writeByte(MSG_READY);
+        out.flush();
+
+        while (true) {
+            final byte op;
+            try {
+                op = in.readByte();
+            } catch (final EOFException e) {
+                return;
+            }
+
+            resetPeakHeap();
+
+            final byte status;
+            if (op == OP_RUN) {
+                final String mainClass = in.readUTF();
+                final String[] jobArgs = readStrings(in);
+                final Map<String, String> properties = readProperties(in);
+                status = runJob(properties, () -> Class.forName(mainClass).getMethod("main", String[].class).invoke(null, (Object) jobArgs));
+            } else if (op == OP_RUN_PAGES) {
+                final String type = in.readUTF();
+                final File inputPdf = new File(in.readUTF());
+                final File outputDir = new File(in.readUTF());
+                final String format = in.readUTF();
+                final float scaling = in.readFloat();
+                final int maxWidth = in.readInt();
+                final int maxHeight = in.readInt();
+                final String password = in.readUTF();
+                final int[] pages = new int[in.readInt()];
+                final float[] pageWidths = new float[pages.length];
+                final float[] pageHeights = new float[pages.length];
+                for (int i = 0; i < pages.length; i++) {
+                    pages[i] = in.readInt();
+                    pageWidths[i] = in.readFloat();
+                    pageHeights[i] = in.readFloat();
+                }
+                final Map<String, String> properties = readProperties(in);
+                status = runJob(properties, () -> PageConverter.convert(type, inputPdf, outputDir, format, scaling, maxWidth, maxHeight, password,
+                        pages, pageWidths, pageHeights, (page, file) -> {
+                    out.writeByte(MSG_PAGE);
+                    out.writeInt(page);
+                    out.writeUTF(file.getAbsolutePath());
+                    out.flush();
+                }));
+            } else {
+                return;
+            }
+
+            out.writeByte(MSG_DONE);
+            out.writeByte(status);
+            out.writeLong(Runtime.getRuntime().totalMemory());
+            out.writeLong(getPeakHeap());
+            out.flush();
+
+            if (status == STATUS_OUT_OF_MEMORY) {
+                // The heap can not be trusted after an OutOfMemoryError
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the heap in use after every garbage collection.
+     */
+    private static void watchCollections() {
+        final Set<String> heapPools = new HashSet<>();
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                    if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                        return;
+                    }
+                    final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    long used = 0;
+                    for (final Map.Entry<String, MemoryUsage> usage : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                        if (heapPools.contains(usage.getKey())) {
+                            used += usage.getValue().getUsed();
+                        }
+                    }
+                    peakLiveHeap.accumulateAndGet(used, Math::max);
+                }, null, null);
+            }
+        }
+    }
+
+    private static void resetPeakHeap() {
+        peakLiveHeap.set(0);
+    }
+
+    /**
+     * Returns the largest heap in use after a garbage collection since the last
+     * reset. A job that finished without a collection never filled the young
+     * generation, so the heap in use at its end is returned instead.
+     */
+    private static long getPeakHeap() {
+        final long peak = peakLiveHeap.get();
+        if (peak > 0) {
+            return peak;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String[] readStrings(final DataInputStream in) throws IOException {
+        final String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readUTF();
+        }
+        return values;
+    }
+
+    private static Map<String, String> readProperties(final DataInputStream in) throws IOException {
+        final Map<String, String> properties = new HashMap<>();
+        final int propertyCount = in.readInt();
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put(in.readUTF(), in.readUTF());
+        }
+        return properties;
+    }
+
+    private static byte runJob(final Map<String, String> properties, final Job job) {
+        final Map<String, String> previous = new HashMap<>();
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            previous.put(entry.getKey(), System.setProperty(entry.getKey(), entry.getValue()));
+        }
+
+        try {
+            job.run();
+            return STATUS_SUCCESS;
+        } catch (final InvocationTargetException e) {
+            if (e.getCause() instanceof OutOfMemoryError) {
+                return STATUS_OUT_OF_MEMORY;
+            }
+            LOG.log(Level.SEVERE, "Conversion failed", e.getCause());
+            return STATUS_ERROR;
+        } catch (final OutOfMemoryError e) {
+            return STATUS_OUT_OF_MEMORY;
+        } catch (final Exception e) {
+            LOG.log(Level.SEVERE, "Conversion failed", e);
+            return STATUS_ERROR;
+        } finally {
+            for (final Map.Entry<String, String> entry : previous.entrySet()) {
+                if (entry.getValue() == null) {
+                    System.clearProperty(entry.getKey());
+                } else {
+                    System.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private interface Job {
+        void run() throws Exception;
+    }
+}
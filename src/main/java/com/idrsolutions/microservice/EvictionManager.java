@@ -0,0 +1,492 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the input and output paths within a space budget by deleting the
+ * files of the conversions whose output was downloaded least recently.
+ * <p>
+ * The files of each finished conversion are measured once, when it finishes,
+ * and kept in an index ordered by when its output was last downloaded.
+ * Eviction starts when the space used passes the high water mark and deletes
+ * whole conversions from the least recently downloaded until it is back under
+ * the low water mark, sparing conversions that finished or were downloaded
+ * within a minimum age so output is never deleted just as it is ready. The
+ * budget is either a fixed size for the files of
+ * conversions or, when none is set, the volumes holding the input and output
+ * paths, whose usage is read from the file system so other files on them are
+ * accounted for.
+ * <p>
+ * The index is a journal in the output path that is appended to as
+ * conversions finish, are downloaded and are evicted, and compacted when it
+ * has grown well past the number of conversions it holds. The directories are
+ * only scanned when the index does not exist yet.
+ */
+final class EvictionManager {
+
+    /**
+     * The name of the index file in the output path.
+     */
+    static final String INDEX_NAME = ".eviction-index";
+
+    private static final Logger LOG = Logger.getLogger(EvictionManager.class.getName());
+
+    // Downloads closer together than this move a conversion in the order without being journaled again
+    private static final long TOUCH_RESOLUTION = 60000;
+
+    private final File inputDir;
+    private final File outputDir;
+    private final File indexFile;
+    private final long maxBytes;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final long minAge;
+    private final JobStateWriter stateWriter;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Conversions in least recently downloaded order, keyed by uuid.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private Writer journal;
+    private int journalLines;
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * Creates the manager, reading the index left by a previous run or
+     * building it from the input and output paths when there is none.
+     *
+     * @param inputDir the input path of the service
+     * @param outputDir the output path of the service
+     * @param maxSizeMB the space budget in MB for the files of conversions, 0 budgets the volumes of the input and
+     * output paths
+     * @param highWaterMark the percentage of the budget above which conversions are evicted
+     * @param lowWaterMark the percentage of the budget eviction stops at
+     * @param minAge the time in milliseconds after a conversion finishes or is downloaded before it can be evicted
+     * @param stateWriter the writer used to mark evicted conversions
+     */
+    EvictionManager(final File inputDir, final File outputDir, final long maxSizeMB, final int highWaterMark,
+                    final int lowWaterMark, final long minAge, final JobStateWriter stateWriter) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.indexFile = new File(outputDir, INDEX_NAME);
+        this.maxBytes = maxSizeMB * 1024L * 1024L;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        this.minAge = minAge;
+        this.stateWriter = stateWriter;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "eviction-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (indexFile.isFile()) {
+            readIndex();
+        } else {
+            scan();
+        }
+        compact();
+    }
+
+    /**
+     * Starts checking the space used on an interval.
+     *
+     * @param interval the time in milliseconds between checks
+     */
+    void start(final long interval) {
+        executor.scheduleWithFixedDelay(this::evict, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a conversion that has finished to the index, measuring its files.
+     * Eviction is started straight away if they take the space used past the
+     * high water mark.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    void record(final String uuid) {
+        final long size = measure(uuid);
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            final Entry previous = entries.put(uuid, new Entry(size, now));
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += size;
+            append("A\t" + uuid + '\t' + size + '\t' + now);
+        }
+        if (getExcess(highWaterMark) > 0) {
+            try {
+                executor.execute(this::evict);
+            } catch (final RejectedExecutionException e) {
+                LOG.log(Level.FINE, "Eviction manager has stopped", e);
+            }
+        }
+    }
+
+    /**
+     * Removes a conversion that is running again from the index, so its files
+     * are not evicted while it runs. It is added back when it finishes.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    synchronized void forget(final String uuid) {
+        final Entry entry = entries.remove(uuid);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            append("D\t" + uuid);
+        }
+    }
+
+    /**
+     * Records a download of the output of a conversion, moving it to the back
+     * of the eviction order.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    synchronized void touch(final String uuid) {
+        final Entry entry = entries.get(uuid);
+        if (entry == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - entry.journaledAccess >= TOUCH_RESOLUTION) {
+            entry.journaledAccess = now;
+            append("T\t" + uuid + '\t' + now);
+        }
+    }
+
+    /**
+     * Stops checking the space used and closes the index.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            closeJournal();
+        }
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Evicts conversions from the least recently downloaded once the space
+     * used is past the high water mark, until it is under the low water mark
+     * or the conversions left are all younger than the minimum age.
+     */
+    private void evict() {
+        try {
+            if (getExcess(highWaterMark) <= 0) {
+                return;
+            }
+            final long evictionsBefore = evictions.get();
+            final long reclaimedBefore = reclaimedBytes.get();
+            // Bounded by the space that was needed, as deleting files still linked from elsewhere frees nothing
+            final long needed = getExcess(lowWaterMark);
+            while (getExcess(lowWaterMark) > 0 && reclaimedBytes.get() - reclaimedBefore < needed) {
+                final String uuid;
+                synchronized (this) {
+                    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        LOG.log(Level.WARNING, "Space used is above the eviction high water mark but no conversions are left to evict");
+                        break;
+                    }
+                    final Map.Entry<String, Entry> eldest = iterator.next();
+                    // Every later conversion was finished or downloaded after the eldest, so is no older
+                    if (System.currentTimeMillis() - eldest.getValue().journaledAccess < minAge) {
+                        LOG.log(Level.WARNING, "Space used is above the eviction high water mark but the conversions left are younger than the minimum age");
+                        break;
+                    }
+                    iterator.remove();
+                    uuid = eldest.getKey();
+                    totalBytes -= eldest.getValue().size;
+                    append("D\t" + uuid);
+                }
+                delete(uuid);
+            }
+            LOG.log(Level.INFO, "Evicted {0} conversions, reclaiming {1} bytes",
+                    new Object[]{evictions.get() - evictionsBefore, reclaimedBytes.get() - reclaimedBefore});
+        } catch (final RuntimeException e) {
+            LOG.log(Level.SEVERE, "Eviction failed", e);
+        }
+    }
+
+    /**
+     * Returns how far the space used is above a percentage of the budget, the
+     * furthest of the two volumes when the budget is the volumes.
+     */
+    private long getExcess(final int percentage) {
+        if (maxBytes > 0) {
+            synchronized (this) {
+                return totalBytes - maxBytes / 100 * percentage;
+            }
+        }
+        long excess = Long.MIN_VALUE;
+        for (final File dir : new File[]{inputDir, outputDir}) {
+            final long total = dir.getTotalSpace();
+            if (total > 0) {
+                excess = Math.max(excess, total - dir.getUsableSpace() - total / 100 * percentage);
+            }
+        }
+        return excess;
+    }
+
+    /**
+     * Deletes the files of an evicted conversion. A conversion whose files
+     * were already deleted, for example by the file deletion service, is only
+     * dropped from the index.
+     */
+    private void delete(final String uuid) {
+        long reclaimed = 0;
+        for (final File file : getFiles(uuid)) {
+            if (file.exists()) {
+                reclaimed += sizeOf(file);
+                try {
+                    deleteRecursively(file);
+                } catch (final IOException | UncheckedIOException e) {
+                    LOG.log(Level.WARNING, "Failed to evict " + file.getAbsolutePath(), e);
+                }
+            }
+        }
+        if (reclaimed == 0) {
+            return;
+        }
+        evictions.incrementAndGet();
+        reclaimedBytes.addAndGet(reclaimed);
+        try {
+            stateWriter.setCustomValue(uuid, "evicted", "true");
+        } catch (final RuntimeException e) {
+            LOG.log(Level.FINE, "Unable to mark " + uuid + " as evicted", e);
+        }
+    }
+
+    private File[] getFiles(final String uuid) {
+        return new File[]{
+                new File(inputDir, uuid),
+                new File(outputDir, uuid),
+                new File(outputDir, uuid + ".zip"),
+                new File(outputDir, uuid + ".ndjson")
+        };
+    }
+
+    private long measure(final String uuid) {
+        long size = 0;
+        for (final File file : getFiles(uuid)) {
+            size += sizeOf(file);
+        }
+        return size;
+    }
+
+    private static long sizeOf(final File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        if (!file.isDirectory()) {
+            return 0;
+        }
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (final IOException | UncheckedIOException e) {
+            LOG.log(Level.FINE, "Unable to measure " + file.getAbsolutePath(), e);
+            return 0;
+        }
+    }
+
+    private static void deleteRecursively(final File file) throws IOException {
+        try (Stream<Path> paths = Files.walk(file.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Replays the journal into the index. A line cut short by a crash is
+     * ignored.
+     */
+    private void readIndex() {
+        final Map<String, Entry> replayed = new HashMap<>();
+        try {
+            for (final String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                final String[] parts = line.split("\t");
+                try {
+                    if (parts.length == 4 && "A".equals(parts[0])) {
+                        replayed.put(parts[1], new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    } else if (parts.length == 3 && "T".equals(parts[0]) && replayed.containsKey(parts[1])) {
+                        replayed.get(parts[1]).journaledAccess = Long.parseLong(parts[2]);
+                    } else if (parts.length == 2 && "D".equals(parts[0])) {
+                        replayed.remove(parts[1]);
+                    }
+                } catch (final NumberFormatException e) {
+                    LOG.log(Level.FINE, "Ignoring invalid eviction index line {0}", line);
+                }
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Failed to read the eviction index, rebuilding it from the input and output paths", e);
+            scan();
+            return;
+        }
+        addInAccessOrder(replayed);
+    }
+
+    /**
+     * Builds the index from the conversions found in the input and output
+     * paths, ordered by when their files were last modified.
+     */
+    private void scan() {
+        final Map<String, Entry> found = new HashMap<>();
+        for (final File dir : new File[]{inputDir, outputDir}) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (final File file : files) {
+                final String name = file.getName();
+                // Skips the result cache and the working directories of synchronous requests
+                if (name.startsWith(".") || name.startsWith("sync-") || name.startsWith("text-")
+                        || (dir == outputDir && "cache".equals(name))) {
+                    continue;
+                }
+                final String uuid = file.isFile() && name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+                final Entry entry = found.computeIfAbsent(uuid, id -> new Entry(measure(id), 0));
+                entry.journaledAccess = Math.max(entry.journaledAccess, file.lastModified());
+            }
+        }
+        LOG.log(Level.INFO, "Built the eviction index from {0} conversions", found.size());
+        addInAccessOrder(found);
+    }
+
+    private void addInAccessOrder(final Map<String, Entry> found) {
+        final List<Map.Entry<String, Entry>> sorted = new ArrayList<>(found.entrySet());
+        sorted.sort(Comparator.comparingLong(entry -> entry.getValue().journaledAccess));
+        for (final Map.Entry<String, Entry> entry : sorted) {
+            entries.put(entry.getKey(), entry.getValue());
+            totalBytes += entry.getValue().size;
+        }
+    }
+
+    /**
+     * Appends an update to the journal, compacting it once it holds many more
+     * lines than there are conversions in the index.
+     */
+    private void append(final String line) {
+        if (journalLines > entries.size() * 2 + 1024) {
+            compact();
+        }
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(line);
+            journal.write('\n');
+            journal.flush();
+            journalLines++;
+        } catch (final IOException e) {
+            // The index is rebuilt from the paths on the next start if the journal is incomplete
+            LOG.log(Level.WARNING, "Failed to write to the eviction index " + indexFile.getAbsolutePath(), e);
+            closeJournal();
+            if (!indexFile.delete() && indexFile.exists()) {
+                LOG.log(Level.WARNING, "Failed to delete {0}", indexFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with one line for each conversion in the index.
+     */
+    private synchronized void compact() {
+        closeJournal();
+        final File tempFile = new File(outputDir, INDEX_NAME + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.write("A\t" + entry.getKey() + '\t' + entry.getValue().size + '\t' + entry.getValue().journaledAccess + '\n');
+                }
+            }
+            Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal = new BufferedWriter(Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND));
+            journalLines = entries.size();
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Failed to write the eviction index " + indexFile.getAbsolutePath(), e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Failed to close " + indexFile.getAbsolutePath(), e);
+            }
+            journal = null;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long size;
+        private long journaledAccess;
+
+        Entry(final long size, final long journaledAccess) {
+            this.size = size;
+            this.journaledAccess = journaledAccess;
+        }
+    }
+}
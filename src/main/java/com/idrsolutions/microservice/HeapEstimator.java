@@ -0,0 +1,125 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Predicts the heap a conversion needs from what the probe knows about the
+ * document, and corrects its predictions with the peak heap usage reported by
+ * the workers that ran earlier conversions.
+ * <p>
+ * The prediction is a fixed base plus the cost of holding the document
+ * structure, the decoded images of a page and, when rendering, the page image
+ * itself. Image density is taken from the average compressed size of a page,
+ * as scanned documents are large for their page count. The ratio between the
+ * observed peak and the prediction is tracked for each kind of conversion as a
+ * moving average, and applied with some headroom to later predictions.
+ */
+final class HeapEstimator {
+
+    private static final double MB = 1024 * 1024;
+    private static final long BASE_HEAP_MB = 96;
+    private static final double HEADROOM = 1.25;
+    private static final double LEARNING_RATE = 0.2;
+
+    // Letter size, used when the page sizes are not known
+    private static final float DEFAULT_PAGE_AREA = 612 * 792;
+
+    private final Map<String, Double> corrections = new ConcurrentHashMap<>();
+
+    /**
+     * Predicts the heap needed by a conversion.
+     *
+     * @param kind the kind of conversion, such as the mode and type, predictions are corrected separately for each kind
+     * @param pdfInfo the probe result of the document, or null if the probe could not read it
+     * @param fileSize the size of the PDF in bytes
+     * @param pageCount the number of pages in the document
+     * @param scaling the scaling the pages are rendered at, or 0 if the conversion does not render pages
+     * @return the estimate, which should be told the outcome of the conversion
+     */
+    Estimate estimate(final String kind, final PdfProbe.Info pdfInfo, final long fileSize, final int pageCount,
+                      final float scaling) {
+        // Object caches and cross reference data grow with the file
+        double bytes = fileSize * 2.0;
+
+        // Decoded images are typically several times larger than their compressed data
+        bytes += fileSize / (double) Math.max(1, pageCount) * 8;
+
+        if (scaling > 0) {
+            final float pageArea = pdfInfo != null ? pdfInfo.getMaxPageArea() : DEFAULT_PAGE_AREA;
+            // An ARGB image of the page plus a copy made by the encoder
+            bytes += pageArea * scaling * scaling * 4 * 2.0;
+        }
+
+        return new Estimate(kind, BASE_HEAP_MB + (long) Math.ceil(bytes / MB));
+    }
+
+    private double getCorrection(final String kind) {
+        return corrections.getOrDefault(kind, 1.0);
+    }
+
+    private void learn(final String kind, final double ratio) {
+        corrections.merge(kind, ratio, (current, observed) -> current + (observed - current) * LEARNING_RATE);
+    }
+
+    /**
+     * A heap prediction for one conversion.
+     */
+    final class Estimate {
+
+        private final String kind;
+        private final long rawMB;
+
+        private Estimate(final String kind, final long rawMB) {
+            this.kind = kind;
+            this.rawMB = rawMB;
+        }
+
+        /**
+         * @return the heap in MB the conversion is expected to need, including headroom
+         */
+        long getRequiredMB() {
+            return (long) Math.ceil(rawMB * getCorrection(kind) * HEADROOM);
+        }
+
+        /**
+         * Records the peak heap usage of a conversion that completed.
+         *
+         * @param peakBytes the peak heap usage reported by the worker
+         */
+        void completed(final long peakBytes) {
+            if (peakBytes > 0) {
+                learn(kind, peakBytes / MB / rawMB);
+            }
+        }
+
+        /**
+         * Records a conversion that ran out of memory, so later conversions of
+         * the same kind are predicted to need at least half as much again.
+         *
+         * @param heapMB the maximum heap the conversion ran with
+         */
+        void outOfMemory(final long heapMB) {
+            final double ratio = heapMB * 1.5 / rawMB;
+            corrections.merge(kind, Math.max(1.0, ratio), (current, raised) -> Math.max(current, ratio));
+        }
+    }
+}
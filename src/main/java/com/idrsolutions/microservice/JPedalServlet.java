@@ -24,26 +24,52 @@ import com.idrsolutions.microservice.storage.Storage;
 import com.idrsolutions.microservice.utils.LibreOfficeHelper;
 import com.idrsolutions.microservice.utils.ProcessUtils;
 import com.idrsolutions.microservice.utils.SettingsValidator;
-import com.idrsolutions.microservice.utils.ZipHelper;
 import org.jpedal.PdfDecoderServer;
 import org.jpedal.exception.PdfException;
 
 import javax.json.stream.JsonParsingException;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * Provides an API to use JPedal on its own dedicated app server. See the API
@@ -51,7 +77,7 @@ import java.util.logging.Logger;
  * 
  * @see BaseServlet
  */
-@WebServlet(name = "jpedal", urlPatterns = "/jpedal")
+@WebServlet(name = "jpedal", urlPatterns = "/jpedal", loadOnStartup = 1)
 @MultipartConfig
 public class JPedalServlet extends BaseServlet {
 
@@ -69,12 +95,87 @@ public class JPedalServlet extends BaseServlet {
     private static final Logger LOG = Logger.getLogger(JPedalServlet.class.getName());
     private static final String SEPARATOR = FileSystems.getDefault().getSeparator();
 
+    // The scaling pages are rendered at when none is requested
+    private static final float DEFAULT_SCALING = 1.52f;
+
+    // Comma separated pages and page ranges, where a range without an end runs to the last page
+    private static final String PAGES_PATTERN = "[1-9]\\d*(-([1-9]\\d*)?)?(,[1-9]\\d*(-([1-9]\\d*)?)?)*";
+
+    // Conversions being retried, so a retry requested twice only runs once
+    private final Set<String> retrying = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts running conversions claimed from the job queue when one is
+     * shared with other nodes. The servlet is loaded on startup so a node
+     * takes conversions from the queue before it has received any itself.
+     * <p>
+     * Also registers the retrier {@link RetryServlet} runs retried
+     * conversions with.
+     *
+     * @throws ServletException if the servlet can not be initialized
+     */
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        final JobQueue jobQueue = (JobQueue) getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_QUEUE);
+        if (jobQueue != null) {
+            jobQueue.start(this::convertQueued);
+        }
+
+        getServletContext().setAttribute(JPedalServletContextListener.KEY_CONVERSION_RETRIER, (RetryServlet.Retrier) this::retry);
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(JPedalServletContextListener.KEY_CONVERSION_RETRIER);
+        super.destroy();
+    }
+
+    /**
+     * Runs a conversion again in the background, continuing from the pages
+     * checkpointed by its earlier run. The retry is added to the job queue or
+     * handed to the scheduler like a new conversion, so it runs on the same
+     * bounded conversion threads.
+     *
+     * @return false if the conversion is already being retried
+     */
+    private boolean retry(final String uuid, final File inputFile, final String contextUrl, final Runnable accepted) {
+        if (!retrying.add(uuid)) {
+            return false;
+        }
+        try {
+            accepted.run();
+            final JobQueue jobQueue = (JobQueue) getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_QUEUE);
+            if (jobQueue != null) {
+                try {
+                    enqueue(jobQueue, uuid, inputFile, contextUrl);
+                } finally {
+                    retrying.remove(uuid);
+                }
+            } else {
+                dispatch(uuid, inputFile, contextUrl, () -> retrying.remove(uuid));
+            }
+        } catch (final RuntimeException e) {
+            retrying.remove(uuid);
+            throw e;
+        }
+        return true;
+    }
+
     /**
      * Converts given pdf file or office document to images using JPedal.
      * <p>
      * LibreOffice is used to preconvert office documents to PDF for JPedal to
      * process.
      * <p>
+     * A zip file is converted as a batch of the documents it contains.
+     * <p>
+     * When a job queue is shared with other nodes, the conversion is added to
+     * the queue instead and run by whichever node claims it. Otherwise it is
+     * handed to the {@link ConversionScheduler}, which runs it on one of its
+     * conversion threads once it is its turn, so conversions are ordered
+     * between tenants before a thread is taken.
+     * <p>
      * See API docs for information on how this method communicates via the
      * individual object to the client.
      * 
@@ -84,16 +185,164 @@ public class JPedalServlet extends BaseServlet {
      */
     @Override
     protected void convert(final String uuid, final File inputFile, final String contextUrl) {
+        final JobQueue jobQueue = (JobQueue) getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_QUEUE);
+        if (jobQueue != null) {
+            enqueue(jobQueue, uuid, inputFile, contextUrl);
+            return;
+        }
+        dispatch(uuid, inputFile, contextUrl, () -> { });
+    }
+
+    /**
+     * Hands a conversion to the scheduler to run once it is its turn.
+     *
+     * @param finished run once the conversion finishes, or if it can not be scheduled
+     */
+    private void dispatch(final String uuid, final File inputFile, final String contextUrl, final Runnable finished) {
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        try {
+            workerPool.getScheduler().execute(uuid, estimateSubmissionCost(uuid, inputFile), () -> {
+                try {
+                    convertLocally(uuid, inputFile, contextUrl);
+                } finally {
+                    finished.run();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            finished.run();
+            LOG.log(Level.SEVERE, "Unable to schedule conversion " + uuid, e);
+            final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+            admissionController.finished(uuid);
+            getStateWriter().setError(uuid, 500, "The service is shutting down");
+        }
+    }
+
+    /**
+     * Estimates the cost of a conversion before it is given a conversion
+     * thread, from the pages the probe finds in a PDF, or from the file size
+     * alone for other documents, which are only read once the conversion runs.
+     */
+    private static double estimateSubmissionCost(final String uuid, final File inputFile) {
+        Map<String, String> conversionParams;
+        try {
+            conversionParams = DBHandler.getInstance().getSettings(uuid);
+        } catch (final SQLException e) {
+            conversionParams = null;
+        }
+        if (conversionParams == null) {
+            conversionParams = new HashMap<>();
+        }
+        int pageCount = 1;
+        if (inputFile.getName().toLowerCase().endsWith(".pdf")) {
+            try {
+                pageCount = Math.max(1, getPages(conversionParams, PdfProbe.probe(inputFile).getPageCount()).length);
+            } catch (final IOException | ConversionException e) {
+                // The conversion reports the problem once it runs
+                LOG.log(Level.FINE, "Unable to count the pages of " + uuid, e);
+            }
+        }
+        return ConversionScheduler.estimateCost(pageCount, inputFile.length(), conversionParams.getOrDefault("mode", ""),
+                getScaling(conversionParams) / DEFAULT_SCALING);
+    }
+
+    /**
+     * Adds a conversion accepted by this node to the shared job queue. The
+     * conversion no longer counts towards the load of this node, the node
+     * that claims it counts it instead.
+     */
+    private void enqueue(final JobQueue jobQueue, final String uuid, final File inputFile, final String contextUrl) {
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        final ConversionScheduler scheduler = ((WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL)).getScheduler();
+        final long submittedAt = scheduler.getSubmittedAt(uuid);
+        try {
+            jobQueue.enqueue(uuid, inputFile, contextUrl, scheduler.getTenant(uuid),
+                    submittedAt > 0 ? submittedAt : System.currentTimeMillis());
+        } catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Failed to copy the input of " + uuid + " to the shared path", e);
+            getStateWriter().setError(uuid, 500, "File system failure");
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Failed to add " + uuid + " to the job queue", e);
+            getStateWriter().setError(uuid, 500, "Database failure");
+        } finally {
+            admissionController.finished(uuid);
+            // The input left in the input path for retries counts towards the eviction budget
+            final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+            if (evictionManager != null) {
+                evictionManager.record(uuid);
+            }
+        }
+    }
+
+    /**
+     * Runs a conversion this node claimed from the shared job queue, which may
+     * have been accepted by another node.
+     *
+     * @param job the claimed conversion
+     */
+    private void convertQueued(final JobQueue.ClaimedJob job) {
+        final String uuid = job.getUuid();
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        workerPool.getScheduler().submitted(uuid, job.getTenant() != null ? job.getTenant() : "queue", job.getSubmittedAt());
+        admissionController.accepted(uuid);
+        // A conversion abandoned by another node continues from the pages that node checkpointed
+        convertLocally(uuid, job.getInputFile(), job.getContextUrl());
+    }
+
+    private void convertLocally(final String uuid, final File inputFile, final String contextUrl) {
+        final PageRegistry pageRegistry = (PageRegistry) getServletContext().getAttribute(JPedalServletContextListener.KEY_PAGE_REGISTRY);
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        final ConversionMetrics metrics = (ConversionMetrics) getServletContext().getAttribute(JPedalServletContextListener.KEY_METRICS);
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+        // A retried conversion is not evicted while it runs
+        if (evictionManager != null) {
+            evictionManager.forget(uuid);
+        }
+
+        // Time between submission and now is spent downloading the input and waiting for a conversion thread
+        final ConversionMetrics.Timer timer = metrics.startTimer();
+        final long submittedAt = workerPool.getScheduler().getSubmittedAt(uuid);
+        final long pendingNanos = submittedAt > 0 ? (System.currentTimeMillis() - submittedAt) * 1000000 : -1;
+
+        pageRegistry.register(uuid);
+        try {
+            convertDocument(uuid, inputFile, contextUrl, pageRegistry, timer, pendingNanos);
+        } finally {
+            admissionController.finished(uuid);
+            String state;
+            try {
+                state = DBHandler.getInstance().getStatus(uuid).get("state");
+            } catch (final Exception e) {
+                state = "error";
+            }
+            pageRegistry.complete(uuid, state != null ? state : "error");
+            timer.finish(state != null ? state : "error");
+            if (evictionManager != null) {
+                evictionManager.record(uuid);
+            }
+        }
+    }
+
+    private void convertDocument(final String uuid, final File inputFile, final String contextUrl,
+                                 final PageRegistry pageRegistry, final ConversionMetrics.Timer timer,
+                                 final long pendingNanos) {
 
         final Map<String, String> conversionParams;
         try {
             final Map<String, String> settings = DBHandler.getInstance().getSettings(uuid);
             conversionParams = settings != null ? settings : new HashMap<>();
         } catch (final SQLException e) {
-            DBHandler.getInstance().setError(uuid, 500, "Database failure");
+            getStateWriter().setError(uuid, 500, "Database failure");
             return;
         }
 
+        timer.setLabels(conversionParams.get("mode"), conversionParams.get("type"), conversionParams.get("format"));
+        if (pendingNanos >= 0) {
+            timer.record("pending", pendingNanos);
+        }
+        timer.addInputBytes(inputFile.length());
+
         final String fileName = inputFile.getName();
         final String ext = fileName.substring(fileName.lastIndexOf(".") + 1);
 
@@ -101,121 +350,739 @@ public class JPedalServlet extends BaseServlet {
 
         final File inputPdf;
         final File outputDir = new File(getOutputPath(), uuid);
+        // Text extracted as JSON is published as a single file, everything else as a zip
+        final boolean ndjsonOutput = isNdjsonOutput(conversionParams) && !"zip".equalsIgnoreCase(ext);
+        final File outputFile = new File(outputDir.getParentFile(), uuid + (ndjsonOutput ? ".ndjson" : ".zip"));
+
+        final ResultCache resultCache = (ResultCache) getServletContext().getAttribute(JPedalServletContextListener.KEY_RESULT_CACHE);
+        String cacheKey = null;
+        // Output of office documents is named after the uuid of the conversion, so it is never served to another
+        if (resultCache != null && (ext.equalsIgnoreCase("pdf") || ext.equalsIgnoreCase("zip"))) {
+            final Map<String, String> cacheSettings = new HashMap<>(conversionParams);
+            cacheSettings.put(JPedalServletContextListener.KEY_PROPERTY_INCLUDE_OFFICE_PDF,
+                    properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_INCLUDE_OFFICE_PDF));
+            cacheSettings.put(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED,
+                    properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED));
+            // Output is written to a folder named after the document
+            cacheSettings.put("fileName", fileName);
+            try {
+                cacheKey = ResultCache.computeKey(inputFile, cacheSettings);
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to compute result cache key for " + uuid, e);
+            }
+
+            final boolean cacheHit = cacheKey != null && resultCache.restore(cacheKey, outputFile);
+            timer.stage("cache");
+            if (cacheHit) {
+                LOG.log(Level.INFO, "Conversion {0} served from the result cache", uuid);
+                getStateWriter().setCustomValue(uuid, "cacheHit", "true");
+                if (!"zip".equalsIgnoreCase(ext)) {
+                    setCachedPageCount(uuid, inputFile, conversionParams);
+                }
+                completeConversion(uuid, outputFile, contextUrl, timer);
+                return;
+            }
+        }
+
+        // Output of an earlier run is only kept when its pages can be resumed
+        final boolean resuming = PageCheckpoint.exists(outputDir);
+        if (outputDir.exists() && !resuming) {
+            MicroserviceUtils.deleteDirectory(outputDir);
+        }
 
         //Makes the directory for the output file
-        if (!outputDir.mkdirs()) {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
             LOG.log(Level.SEVERE, "Failed to create output directory: {0}", outputDir.getAbsolutePath());
-            DBHandler.getInstance().setError(uuid, 500, "File system failure");
+            getStateWriter().setError(uuid, 500, "File system failure");
+            return;
+        }
+
+        if ("zip".equalsIgnoreCase(ext)) {
+            convertBatch(uuid, inputFile, outputDir, outputFile, contextUrl, conversionParams, timer, resultCache, cacheKey);
             return;
         }
 
         final boolean isPDF = ext.toLowerCase().endsWith("pdf");
+        timer.skip();
         if (!isPDF) {
             final boolean includeOfficePdf = "true".equalsIgnoreCase(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_INCLUDE_OFFICE_PDF));
             final File officeOutputDir = includeOfficePdf ? outputDir : inputFile.getParentFile();
-            final String libreOfficePath = properties.getProperty(BaseServletContextListener.KEY_PROPERTY_LIBRE_OFFICE);
-            final long libreOfficeTimeout = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_LIBRE_OFFICE_TIMEOUT));
-            final ProcessUtils.Result libreOfficeConversionResult = LibreOfficeHelper.convertDocToPDF(libreOfficePath, inputFile, uuid, libreOfficeTimeout, officeOutputDir);
-            switch (libreOfficeConversionResult) {
-                case TIMEOUT:
-                    DBHandler.getInstance().setError(uuid, libreOfficeConversionResult.getCode(), "Maximum conversion duration exceeded.");
-                    return;
-                case ERROR:
-                    DBHandler.getInstance().setError(uuid, libreOfficeConversionResult.getCode(), "Internal error processing file");
-                    return;
-                case SUCCESS:
-                    inputPdf = new File(officeOutputDir, uuid + ".pdf");
-                    if (!inputPdf.exists()) {
-                        LOG.log(Level.SEVERE, "LibreOffice error found while converting to PDF: {0}", inputPdf.getAbsolutePath());
-                        DBHandler.getInstance().setError(uuid, 1080, "Error processing PDF");
-                        return;
-                    }
-                    break;
-                default:
-                    LOG.log(Level.SEVERE, "Unexpected error has occurred converting office document: {0}", libreOfficeConversionResult.getCode() + " using LibreOffice");
-                    DBHandler.getInstance().setError(uuid, libreOfficeConversionResult.getCode(), "Failed to convert office document to PDF");
+            final File officePdf = new File(officeOutputDir, uuid + ".pdf");
+            if (resuming && officePdf.isFile()) {
+                // Converting the document again would change the PDF the resumed pages came from
+                inputPdf = officePdf;
+            } else {
+                try {
+                    inputPdf = convertOfficeDocument(uuid, inputFile, officeOutputDir);
+                } catch (final ConversionException e) {
+                    getStateWriter().setError(uuid, e.getCode(), e.getMessage());
                     return;
+                } finally {
+                    timer.stage("libreoffice");
+                }
             }
         } else {
             inputPdf = inputFile;
         }
 
+        final PdfProbe.Info pdfInfo = probe(inputPdf);
         final int pageCount;
         try {
-            final PdfDecoderServer decoder = new PdfDecoderServer(false);
-            decoder.openPdfFile(inputPdf.getAbsolutePath());
-
-            decoder.setEncryptionPassword(conversionParams.getOrDefault("org.jpedal.pdf2html.password", ""));
+            pageCount = pdfInfo != null ? pdfInfo.getPageCount()
+                    : openPageCount(inputPdf, conversionParams.getOrDefault("org.jpedal.pdf2html.password", ""));
+        } catch (final ConversionException e) {
+            getStateWriter().setError(uuid, e.getCode(), e.getMessage());
+            return;
+        }
+        final int[] pages;
+        try {
+            pages = getPages(conversionParams, pageCount);
+        } catch (final ConversionException e) {
+            getStateWriter().setError(uuid, e.getCode(), e.getMessage());
+            return;
+        }
+        timer.stage("probe");
 
-            if (decoder.isEncrypted() && !decoder.isPasswordSupplied()) {
-                LOG.log(Level.SEVERE, "Invalid Password");
-                DBHandler.getInstance().setError(uuid, 1070, "Invalid password supplied.");
-                return;
+        // Pages converted by an earlier run are kept, only the missing pages are converted
+        final boolean pageBased = getPageOutputType(conversionParams, properties) != null;
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        Map<Integer, File> checkpointedPages = Collections.emptyMap();
+        if (pageBased && !ndjsonOutput) {
+            try {
+                checkpointedPages = checkpoint.resume(pages, inputFile.length());
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Unable to checkpoint the pages of " + uuid, e);
             }
+        }
+        final Map<Integer, File> resumedPages = checkpointedPages;
+        final int[] remainingPages = Arrays.stream(pages).filter(page -> !resumedPages.containsKey(page)).toArray();
+        if (!resumedPages.isEmpty()) {
+            LOG.log(Level.INFO, "Resuming conversion {0} with {1} of {2} pages already converted",
+                    new Object[]{uuid, resumedPages.size(), pages.length});
+        }
+        getStateWriter().setCustomValue(uuid, "pageCount", String.valueOf(pages.length));
+        getStateWriter().setCustomValue(uuid, "pagesConverted", String.valueOf(resumedPages.size()));
 
-            pageCount = decoder.getPageCount();
-            DBHandler.getInstance().setCustomValue(uuid, "pageCount", String.valueOf(pageCount));
-            DBHandler.getInstance().setCustomValue(uuid, "pagesConverted", "0");
-            decoder.closePdfFile();
-            decoder.dispose();
-        } catch (final PdfException e) {
-            LOG.log(Level.SEVERE, "Invalid PDF", e);
-            DBHandler.getInstance().setError(uuid, 1060, "Invalid PDF");
+        // The conversion stays queued until the scheduler gives it a worker
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        timer.skip();
+        final double cost = ConversionScheduler.estimateCost(remainingPages.length, inputPdf.length(), conversionParams.get("mode"),
+                getRequestedScaling(conversionParams, pdfInfo, pages));
+        final ConversionScheduler.Job job = workerPool.getScheduler().startJob(uuid, cost, queueWaitTime -> {
+            timer.stage("schedule");
+            getStateWriter().setCustomValue(uuid, "queueWaitTime", String.valueOf(queueWaitTime));
+            getStateWriter().setState(uuid, "processing");
+        });
+
+        if (ndjsonOutput) {
+            // Text is extracted inside the service, so the conversion does not wait for a worker
+            job.started();
+            extractText(uuid, inputPdf, outputFile, pages, conversionParams, contextUrl, timer, resultCache, cacheKey);
             return;
         }
-        DBHandler.getInstance().setState(uuid, "processing");
 
+        OutputZipWriter zipWriter = null;
         try {
-            final String servletDirectory = getServletContext().getRealPath("");
-            final String webappDirectory;
-            if (servletDirectory != null) {
-                webappDirectory = servletDirectory + File.separator + "WEB-INF/lib/jpedal.jar";
-            } else {
-                webappDirectory = "WEB-INF/lib/jpedal.jar";
-            }
-
             final long maxDuration = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_MAX_CONVERSION_DURATION));
 
-            final ProcessUtils.Result result = convertFile(conversionParams, uuid, webappDirectory, inputPdf, outputDir, maxDuration);
+            // The output zip is built as pages are written, so it is ready as soon as the last page lands
+            final OutputZipWriter outputZipWriter = createZipWriter(uuid, outputDir, outputFile);
+            zipWriter = outputZipWriter;
+            final WorkerPool.PageListener outputListener = (page, file) -> {
+                pageRegistry.pageConverted(uuid, page, file);
+                try {
+                    // The download url is only published by completeConversion, as the conversion can still time out or fail
+                    outputZipWriter.addPage(page, file);
+                } catch (final IOException e) {
+                    LOG.log(Level.SEVERE, "Failed to add page " + page + " to the output zip of " + uuid, e);
+                }
+            };
+            final AtomicInteger pagesConverted = new AtomicInteger(resumedPages.size());
+            final WorkerPool.PageListener pageListener = (page, file) -> {
+                checkpoint.record(page, file);
+                getStateWriter().setCustomValue(uuid, "pagesConverted", String.valueOf(pagesConverted.incrementAndGet()));
+                timer.addPages(1);
+                outputListener.pageConverted(page, file);
+            };
+
+            // Resumed pages go into the zip first, in the same order and with the same files as an uninterrupted run
+            if (pageBased) {
+                outputZipWriter.expectPages(pages);
+            }
+            resumedPages.forEach(outputListener::pageConverted);
+
+            final ProcessUtils.Result result;
+            if (remainingPages.length > 0) {
+                result = convertFile(conversionParams, job, inputPdf, outputDir, pageCount, remainingPages, pdfInfo,
+                        maxDuration, pageListener);
+            } else {
+                job.started();
+                result = ProcessUtils.Result.SUCCESS;
+            }
+            timer.stage("convert");
 
-            if ("1230".equals(DBHandler.getInstance().getStatus(uuid).get("errorCode"))) {
+            if (isTimedOut(uuid)) {
                 final String message = String.format("Conversion %s exceeded max duration of %dms", uuid, maxDuration);
                 LOG.log(Level.INFO, message);
+                zipWriter.abort();
                 return;
             }
 
             switch (result) {
                 case SUCCESS:
-                    final File outputZip = new File(outputDir.getParentFile(), uuid + ".zip");
-                    ZipHelper.zipFolder(outputDir, outputZip, false);
-
-                    DBHandler.getInstance().setCustomValue(uuid, "downloadUrl", contextUrl + "/output/" + uuid + ".zip");
-
-                    final Storage storage = (Storage) getServletContext().getAttribute("storage");
+                    zipWriter.finish();
+                    checkpoint.delete();
+                    timer.stage("zip");
+                    if (!pageBased) {
+                        // Conversions run by the JPedal examples do not report pages as they go
+                        timer.addPages(pages.length);
+                    }
 
-                    if (storage != null) {
-                    final String remoteUrl = storage.put(outputZip, uuid + ".zip", uuid);
-                        DBHandler.getInstance().setCustomValue(uuid, "remoteUrl", remoteUrl);
+                    if (cacheKey != null && outputFile.exists()) {
+                        resultCache.store(cacheKey, outputFile);
+                        timer.stage("cacheStore");
                     }
 
-                    DBHandler.getInstance().setState(uuid, "processed");
+                    completeConversion(uuid, outputFile, zipWriter.getUpload(), contextUrl, timer);
 
                     break;
                 case TIMEOUT:
                     final String message = String.format("Conversion %s exceeded max duration of %dms", uuid, maxDuration);
                     LOG.log(Level.INFO, message);
-                    DBHandler.getInstance().setError(uuid, 1230, "Conversion exceeded max duration of " + maxDuration + "ms");
+                    getStateWriter().setError(uuid, 1230, "Conversion exceeded max duration of " + maxDuration + "ms");
+                    zipWriter.abort();
                     break;
                 case ERROR:
                     LOG.log(Level.SEVERE, "An error occurred during the conversion");
-                    DBHandler.getInstance().setError(uuid, 1220, "An error occurred during the conversion");
+                    getStateWriter().setError(uuid, 1220, "An error occurred during the conversion");
+                    zipWriter.abort();
                     break;
 
                 }
             } catch (final Throwable ex) {
+                if (zipWriter != null) {
+                    zipWriter.abort();
+                }
                 LOG.log(Level.SEVERE, "Exception thrown when converting input", ex);
-                DBHandler.getInstance().setError(uuid, 1220, "Exception thrown when converting input: " + ex.getMessage());
+                getStateWriter().setError(uuid, 1220, "Exception thrown when converting input: " + ex.getMessage());
+            } finally {
+                // Kept after a failure, so a retry continues from the pages converted so far
+                checkpoint.close();
+            }
+    }
+
+    /**
+     * Converts each document in an uploaded zip file with the settings of the
+     * batch, into a single output zip with a folder for each document.
+     * <p>
+     * Documents are converted in parallel, each scheduled as its own job for
+     * the tenant of the batch so the batch gets the same share of the workers
+     * as any other conversion of that tenant. A document that fails is left out
+     * of the output and counted in the status, the batch itself only fails if
+     * no document could be converted.
+     *
+     * @param uuid the uuid of the batch
+     * @param inputZip the uploaded zip file
+     * @param outputDir the output directory of the batch
+     * @param outputZip the output zip of the batch
+     * @param contextUrl the context that this servlet is running in
+     * @param conversionParams the settings of the batch
+     * @param timer the timer of the batch
+     * @param resultCache the result cache, or null if it is disabled
+     * @param cacheKey the key to store the output under in the result cache, or null
+     */
+    private void convertBatch(final String uuid, final File inputZip, final File outputDir, final File outputZip,
+                              final String contextUrl, final Map<String, String> conversionParams,
+                              final ConversionMetrics.Timer timer, final ResultCache resultCache, final String cacheKey) {
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final int maxDocuments = Integer.parseInt(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_BATCH_MAX_DOCUMENTS));
+        final long maxSize = Long.parseLong(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_BATCH_MAX_SIZE)) * 1024 * 1024;
+
+        timer.skip();
+        final List<File> documents;
+        try {
+            documents = extractBatch(inputZip, new File(inputZip.getParentFile(), "documents"), maxDocuments, maxSize);
+        } catch (final ConversionException e) {
+            getStateWriter().setError(uuid, e.getCode(), e.getMessage());
+            return;
+        }
+        timer.stage("extract");
+
+        final AtomicInteger documentsConverted = new AtomicInteger();
+        final AtomicInteger documentsFailed = new AtomicInteger();
+        getStateWriter().setCustomValue(uuid, "documentsTotal", String.valueOf(documents.size()));
+        getStateWriter().setCustomValue(uuid, "documentsConverted", "0");
+        getStateWriter().setCustomValue(uuid, "documentsFailed", "0");
+
+        // The batch stays queued until the scheduler gives one of its documents a worker
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final ConversionScheduler.Job batchJob = workerPool.getScheduler().startJob(uuid, 0, queueWaitTime -> {
+            timer.stage("schedule");
+            getStateWriter().setCustomValue(uuid, "queueWaitTime", String.valueOf(queueWaitTime));
+            getStateWriter().setState(uuid, "processing");
+        });
+
+        OutputZipWriter zipWriter = null;
+        // Documents wait for the scheduler on these threads, so more would only queue there instead
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(documents.size(), workerPool.getConcurrency())));
+        try {
+            final long maxDuration = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_MAX_CONVERSION_DURATION));
+            final boolean includeOfficePdf = "true".equalsIgnoreCase(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_INCLUDE_OFFICE_PDF));
+            zipWriter = createZipWriter(uuid, outputDir, outputZip);
+
+            final List<Callable<Boolean>> conversions = new ArrayList<>();
+            for (final File document : documents) {
+                conversions.add(() -> {
+                    final boolean converted = convertBatchDocument(uuid, document, outputDir, new HashMap<>(conversionParams),
+                            batchJob, maxDuration, includeOfficePdf, timer);
+                    if (converted) {
+                        getStateWriter().setCustomValue(uuid, "documentsConverted", String.valueOf(documentsConverted.incrementAndGet()));
+                    } else {
+                        getStateWriter().setCustomValue(uuid, "documentsFailed", String.valueOf(documentsFailed.incrementAndGet()));
+                    }
+                    return converted;
+                });
+            }
+            executor.invokeAll(conversions);
+            timer.stage("convert");
+
+            if (isTimedOut(uuid)) {
+                LOG.log(Level.INFO, "Batch {0} exceeded max duration of {1}ms", new Object[]{uuid, maxDuration});
+                zipWriter.abort();
+                return;
+            }
+
+            if (documentsConverted.get() == 0) {
+                getStateWriter().setError(uuid, 1220, "None of the documents in the batch could be converted");
+                zipWriter.abort();
+                return;
+            }
+
+            zipWriter.finish();
+            timer.stage("zip");
+
+            if (cacheKey != null && outputZip.exists()) {
+                resultCache.store(cacheKey, outputZip);
+                timer.stage("cacheStore");
+            }
+
+            completeConversion(uuid, outputZip, zipWriter.getUpload(), contextUrl, timer);
+        } catch (final Throwable ex) {
+            if (zipWriter != null) {
+                zipWriter.abort();
+            }
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            LOG.log(Level.SEVERE, "Exception thrown when converting batch", ex);
+            getStateWriter().setError(uuid, 1220, "Exception thrown when converting batch: " + ex.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Converts one document of a batch. Its output is written to a folder named
+     * after the document in the output directory of the batch, which is
+     * removed again if the conversion fails.
+     *
+     * @param uuid the uuid of the batch
+     * @param document the document to convert
+     * @param outputDir the output directory of the batch
+     * @param conversionParams a copy of the settings of the batch
+     * @param batchJob the scheduler job of the batch
+     * @param maxDuration the maximum duration of the conversion in milliseconds
+     * @param includeOfficePdf whether the PDF of an office document is added to its output
+     * @param timer the timer of the batch
+     * @return true if the document was converted
+     */
+    private boolean convertBatchDocument(final String uuid, final File document, final File outputDir,
+                                         final Map<String, String> conversionParams, final ConversionScheduler.Job batchJob,
+                                         final long maxDuration, final boolean includeOfficePdf,
+                                         final ConversionMetrics.Timer timer) {
+        final String fileName = document.getName();
+        final String documentName = fileName.substring(0, fileName.lastIndexOf('.'));
+        final File documentOutputDir = new File(outputDir, documentName);
+        try {
+            final File inputPdf;
+            if (!fileName.toLowerCase().endsWith(".pdf")) {
+                // LibreOffice output is named after the uuid, so each document is converted in a directory of its own
+                final File officeOutputDir = new File(new File(document.getParentFile().getParentFile(), "office"), documentName);
+                Files.createDirectories(officeOutputDir.toPath());
+                final File officePdf = convertOfficeDocument(uuid, document, officeOutputDir);
+                // Output is written to a folder named after the PDF
+                inputPdf = new File(officeOutputDir, documentName + ".pdf");
+                Files.move(officePdf.toPath(), inputPdf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (includeOfficePdf) {
+                    Files.createDirectories(documentOutputDir.toPath());
+                    Files.copy(inputPdf.toPath(), new File(documentOutputDir, inputPdf.getName()).toPath());
+                }
+            } else {
+                inputPdf = document;
+            }
+
+            final PdfProbe.Info pdfInfo = probe(inputPdf);
+            final int pageCount = pdfInfo != null ? pdfInfo.getPageCount()
+                    : openPageCount(inputPdf, conversionParams.getOrDefault("org.jpedal.pdf2html.password", ""));
+            final int[] pages = getPages(conversionParams, pageCount);
+
+            if (isNdjsonOutput(conversionParams)) {
+                // Text is extracted inside the service, so the document does not wait for a worker
+                batchJob.started();
+                Files.createDirectories(documentOutputDir.toPath());
+                final File outputFile = new File(documentOutputDir, documentName + ".ndjson");
+                final TextExtractor textExtractor = (TextExtractor) getServletContext().getAttribute(JPedalServletContextListener.KEY_TEXT_EXTRACTOR);
+                try (Writer out = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+                    textExtractor.extract(getPageConversionType(conversionParams.get("mode"), conversionParams.get("type")),
+                            inputPdf, conversionParams.getOrDefault("password", ""), pages, out, maxDuration, page -> timer.addPages(1));
+                }
+                return true;
+            }
+
+            final double cost = ConversionScheduler.estimateCost(pages.length, inputPdf.length(), conversionParams.get("mode"),
+                    getRequestedScaling(conversionParams, pdfInfo, pages));
+            final AtomicInteger pagesConverted = new AtomicInteger();
+            final ProcessUtils.Result result = convertFile(conversionParams, batchJob.forDocument(cost), inputPdf, outputDir,
+                    pageCount, pages, pdfInfo, maxDuration, (page, file) -> {
+                        pagesConverted.incrementAndGet();
+                        timer.addPages(1);
+                    });
+
+            if (result == ProcessUtils.Result.SUCCESS) {
+                if (pagesConverted.get() == 0) {
+                    // Conversions run by the JPedal examples do not report pages as they go
+                    timer.addPages(pages.length);
+                }
+                return true;
             }
+            LOG.log(Level.WARNING, "Document {0} of batch {1} failed to convert: {2}", new Object[]{fileName, uuid, result});
+        } catch (final ConversionException e) {
+            LOG.log(Level.WARNING, "Document {0} of batch {1} failed to convert: {2}", new Object[]{fileName, uuid, e.getMessage()});
+        } catch (final TimeoutException e) {
+            LOG.log(Level.WARNING, "Document {0} of batch {1} exceeded max duration of {2}ms", new Object[]{fileName, uuid, maxDuration});
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Document " + fileName + " of batch " + uuid + " failed to convert", e);
+        }
+
+        MicroserviceUtils.deleteDirectory(documentOutputDir);
+        return false;
+    }
+
+    /**
+     * Extracts the documents from an uploaded batch. Folders in the zip are
+     * ignored, and documents with the same name are renamed so every document
+     * gets its own output folder.
+     *
+     * @param inputZip the uploaded zip file
+     * @param documentsDir the directory to extract the documents to
+     * @param maxDocuments the maximum number of documents allowed in the batch
+     * @param maxSize the maximum total size in bytes of the extracted documents
+     * @return the extracted documents
+     * @throws ConversionException if the zip can not be read, is empty or exceeds the limits
+     */
+    private static List<File> extractBatch(final File inputZip, final File documentsDir, final int maxDocuments,
+                                           final long maxSize) throws ConversionException {
+        final List<File> documents = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        final byte[] buffer = new byte[65536];
+        long totalSize = 0;
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(inputZip)))) {
+            Files.createDirectories(documentsDir.toPath());
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                // Only the file name is used, so entries can not be written outside the documents directory
+                final String entryName = entry.getName().replace('\\', '/');
+                final String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+                final int extensionIndex = fileName.lastIndexOf('.');
+                if (entry.isDirectory() || entryName.startsWith("__MACOSX/") || fileName.startsWith(".") || extensionIndex <= 0) {
+                    continue;
+                }
+
+                if (documents.size() == maxDocuments) {
+                    throw new ConversionException(1240, "Batch contains more than " + maxDocuments + " documents");
+                }
+
+                final String baseName = fileName.substring(0, extensionIndex);
+                final String extension = fileName.substring(extensionIndex);
+                String documentName = baseName;
+                for (int suffix = 2; !names.add(documentName.toLowerCase()); suffix++) {
+                    documentName = baseName + '-' + suffix;
+                }
+
+                final File document = new File(documentsDir, documentName + extension);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(document))) {
+                    int read;
+                    while ((read = zip.read(buffer)) != -1) {
+                        // Checked as the data is inflated, as the sizes in the zip can not be trusted
+                        totalSize += read;
+                        if (totalSize > maxSize) {
+                            throw new ConversionException(1240, "Batch exceeds the maximum size of " + maxSize / (1024 * 1024) + "MB");
+                        }
+                        out.write(buffer, 0, read);
+                    }
+                }
+                documents.add(document);
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Unable to extract batch " + inputZip.getAbsolutePath(), e);
+            throw new ConversionException(1240, "Invalid batch zip file");
+        }
+
+        if (documents.isEmpty()) {
+            throw new ConversionException(1240, "Batch contains no documents");
+        }
+        return documents;
+    }
+
+    /**
+     * Converts an office document to PDF using LibreOffice.
+     *
+     * @param uuid the uuid of the conversion, which the PDF is named after
+     * @param inputFile the office document to convert
+     * @param officeOutputDir the directory to write the PDF to
+     * @return the PDF
+     * @throws ConversionException if the document could not be converted
+     */
+    private File convertOfficeDocument(final String uuid, final File inputFile, final File officeOutputDir) throws ConversionException {
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final String libreOfficePath = properties.getProperty(BaseServletContextListener.KEY_PROPERTY_LIBRE_OFFICE);
+        final long libreOfficeTimeout = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_LIBRE_OFFICE_TIMEOUT));
+        final LibreOfficePool libreOfficePool = (LibreOfficePool) getServletContext().getAttribute(JPedalServletContextListener.KEY_LIBRE_OFFICE_POOL);
+        final ProcessUtils.Result libreOfficeConversionResult = libreOfficePool != null
+                ? libreOfficePool.convertDocToPDF(inputFile, uuid, officeOutputDir)
+                : LibreOfficeHelper.convertDocToPDF(libreOfficePath, inputFile, uuid, libreOfficeTimeout, officeOutputDir);
+        switch (libreOfficeConversionResult) {
+            case TIMEOUT:
+                throw new ConversionException(libreOfficeConversionResult.getCode(), "Maximum conversion duration exceeded.");
+            case ERROR:
+                throw new ConversionException(libreOfficeConversionResult.getCode(), "Internal error processing file");
+            case SUCCESS:
+                final File inputPdf = new File(officeOutputDir, uuid + ".pdf");
+                if (!inputPdf.exists()) {
+                    LOG.log(Level.SEVERE, "LibreOffice error found while converting to PDF: {0}", inputPdf.getAbsolutePath());
+                    throw new ConversionException(1080, "Error processing PDF");
+                }
+                return inputPdf;
+            default:
+                LOG.log(Level.SEVERE, "Unexpected error has occurred converting office document: {0}", libreOfficeConversionResult.getCode() + " using LibreOffice");
+                throw new ConversionException(libreOfficeConversionResult.getCode(), "Failed to convert office document to PDF");
+        }
+    }
+
+    /**
+     * Reports every page of a conversion served from the result cache as
+     * converted, as a conversion would once finished.
+     */
+    private void setCachedPageCount(final String uuid, final File inputPdf, final Map<String, String> conversionParams) {
+        final PdfProbe.Info pdfInfo = probe(inputPdf);
+        try {
+            final int pageCount = pdfInfo != null ? pdfInfo.getPageCount()
+                    : openPageCount(inputPdf, conversionParams.getOrDefault("org.jpedal.pdf2html.password", ""));
+            final String pages = String.valueOf(getPages(conversionParams, pageCount).length);
+            getStateWriter().setCustomValue(uuid, "pageCount", pages);
+            getStateWriter().setCustomValue(uuid, "pagesConverted", pages);
+        } catch (final ConversionException e) {
+            LOG.log(Level.WARNING, "Unable to count the pages of cached conversion {0}: {1}", new Object[]{uuid, e.getMessage()});
+        }
+    }
+
+    /**
+     * Reads the structure of a PDF without opening it with JPedal.
+     *
+     * @param inputPdf the PDF to read
+     * @return the probe result, or null if the PDF is encrypted or could not be read
+     */
+    private static PdfProbe.Info probe(final File inputPdf) {
+        // The probe reads only the structure of the file, JPedal is needed to check passwords and repair damaged files
+        try {
+            final PdfProbe.Info pdfInfo = PdfProbe.probe(inputPdf);
+            return pdfInfo.isEncrypted() ? null : pdfInfo;
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to probe " + inputPdf.getAbsolutePath() + ", opening it with JPedal", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a PDF with JPedal to count its pages, for documents the probe
+     * could not read.
+     *
+     * @param inputPdf the PDF to open
+     * @param password the password of the PDF, or an empty string if there is none
+     * @return the number of pages in the PDF
+     * @throws ConversionException if the PDF is invalid or the password is wrong
+     */
+    private static int openPageCount(final File inputPdf, final String password) throws ConversionException {
+        final PdfDecoderServer decoder = new PdfDecoderServer(false);
+        try {
+            decoder.openPdfFile(inputPdf.getAbsolutePath());
+
+            decoder.setEncryptionPassword(password);
+
+            if (decoder.isEncrypted() && !decoder.isPasswordSupplied()) {
+                LOG.log(Level.SEVERE, "Invalid Password");
+                throw new ConversionException(1070, "Invalid password supplied.");
+            }
+
+            return decoder.getPageCount();
+        } catch (final PdfException e) {
+            LOG.log(Level.SEVERE, "Invalid PDF", e);
+            throw new ConversionException(1060, "Invalid PDF");
+        } finally {
+            decoder.closePdfFile();
+            decoder.dispose();
+        }
+    }
+
+    /**
+     * Extracts the text of a document inside the service as newline-delimited
+     * JSON, written to a single output file that is published without zipping.
+     *
+     * @param uuid the uuid of the conversion
+     * @param inputPdf the PDF to extract text from
+     * @param outputFile the file the JSON lines are written to
+     * @param pages the pages to extract
+     * @param conversionParams the settings of the conversion
+     * @param contextUrl the context that this servlet is running in
+     * @param timer the timer of the conversion
+     * @param resultCache the result cache, or null if it is disabled
+     * @param cacheKey the key to store the output under in the result cache, or null
+     */
+    private void extractText(final String uuid, final File inputPdf, final File outputFile, final int[] pages,
+                             final Map<String, String> conversionParams, final String contextUrl,
+                             final ConversionMetrics.Timer timer, final ResultCache resultCache, final String cacheKey) {
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final long maxDuration = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_MAX_CONVERSION_DURATION));
+        final TextExtractor textExtractor = (TextExtractor) getServletContext().getAttribute(JPedalServletContextListener.KEY_TEXT_EXTRACTOR);
+
+        final AtomicInteger pagesConverted = new AtomicInteger();
+        try (Writer out = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+            textExtractor.extract(getPageConversionType(conversionParams.get("mode"), conversionParams.get("type")),
+                    inputPdf, conversionParams.getOrDefault("password", ""), pages, out, maxDuration, page -> {
+                        getStateWriter().setCustomValue(uuid, "pagesConverted", String.valueOf(pagesConverted.incrementAndGet()));
+                        timer.addPages(1);
+                    });
+        } catch (final TimeoutException e) {
+            LOG.log(Level.INFO, "Conversion {0} exceeded max duration of {1}ms", new Object[]{uuid, maxDuration});
+            getStateWriter().setError(uuid, 1230, "Conversion exceeded max duration of " + maxDuration + "ms");
+            outputFile.delete();
+            return;
+        } catch (final IOException e) {
+            LOG.log(Level.SEVERE, "An error occurred during the text extraction of " + uuid, e);
+            getStateWriter().setError(uuid, 1220, "An error occurred during the conversion");
+            outputFile.delete();
+            return;
+        }
+        timer.stage("convert");
+
+        if (cacheKey != null) {
+            resultCache.store(cacheKey, outputFile);
+            timer.stage("cacheStore");
+        }
+
+        completeConversion(uuid, outputFile, contextUrl, timer);
+    }
+
+    /**
+     * Returns whether the text of a conversion is extracted inside the service
+     * as newline-delimited JSON instead of one file per page.
+     *
+     * @param conversionParams the settings of the conversion
+     * @return true if the output setting is ndjson
+     */
+    static boolean isNdjsonOutput(final Map<String, String> conversionParams) {
+        return "ndjson".equals(conversionParams.get("output"));
+    }
+
+    /**
+     * Creates the writer of the output zip of a conversion. When multipart
+     * uploads are enabled the zip is uploaded as it is written, as well as
+     * being written to the output path.
+     *
+     * @param uuid the uuid of the conversion
+     * @param outputDir the output directory of the conversion
+     * @param outputZip the output zip of the conversion
+     * @return the zip writer
+     * @throws IOException if the zip or its upload can not be created
+     */
+    private OutputZipWriter createZipWriter(final String uuid, final File outputDir, final File outputZip) throws IOException {
+        final MultipartUploader multipartUploader = (MultipartUploader) getServletContext().getAttribute(JPedalServletContextListener.KEY_MULTIPART_UPLOADER);
+        if (multipartUploader == null) {
+            return new OutputZipWriter(outputDir, outputZip);
+        }
+        return new OutputZipWriter(outputDir, outputZip, multipartUploader.start(outputZip.getName(), uuid));
+    }
+
+    /**
+     * Returns whether the service failed a conversion for exceeding the
+     * maximum duration while it was running. An error code left by an earlier
+     * run of a retried conversion is ignored, as the state is no longer error.
+     *
+     * @param uuid the uuid of the conversion
+     * @return true if the conversion has been failed with error code 1230
+     * @throws SQLException if the state can not be read
+     */
+    private static boolean isTimedOut(final String uuid) throws SQLException {
+        final Map<String, String> status = DBHandler.getInstance().getStatus(uuid);
+        return "error".equals(status.get("state")) && "1230".equals(status.get("errorCode"));
+    }
+
+    /**
+     * Returns the writer the state of conversions is written to the database
+     * through. Progress is written behind the conversion, while the final
+     * state of a conversion is written immediately.
+     *
+     * @return the job state writer
+     */
+    private JobStateWriter getStateWriter() {
+        return (JobStateWriter) getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_STATE_WRITER);
+    }
+
+    private void completeConversion(final String uuid, final File outputFile, final String contextUrl,
+                                    final ConversionMetrics.Timer timer) {
+        completeConversion(uuid, outputFile, null, contextUrl, timer);
+    }
+
+    /**
+     * Publishes the output of a conversion, uploading it to the configured
+     * storage if it was not uploaded as it was written, and marks the
+     * conversion as processed.
+     *
+     * @param uuid the uuid of the conversion
+     * @param outputFile the output zip, or JSON file, of the conversion
+     * @param upload the completed upload of the output, or null if it was not uploaded as it was written
+     * @param contextUrl the context that this servlet is running in
+     * @param timer the timer of the conversion
+     */
+    private void completeConversion(final String uuid, final File outputFile, final MultipartUploader.UploadStream upload,
+                                    final String contextUrl, final ConversionMetrics.Timer timer) {
+        getStateWriter().setCustomValue(uuid, "downloadUrl", contextUrl + "/output/" + outputFile.getName());
+        timer.addOutputBytes(outputFile.length());
+
+        String remoteUrl = upload != null ? upload.getRemoteUrl() : null;
+        if (remoteUrl == null) {
+            final MultipartUploader multipartUploader = (MultipartUploader) getServletContext().getAttribute(JPedalServletContextListener.KEY_MULTIPART_UPLOADER);
+            final Storage storage = (Storage) getServletContext().getAttribute("storage");
+            if (multipartUploader != null || storage != null) {
+                try {
+                    timer.skip();
+                    remoteUrl = multipartUploader != null
+                            ? multipartUploader.upload(outputFile, outputFile.getName(), uuid)
+                            : storage.put(outputFile, outputFile.getName(), uuid);
+                    timer.stage("storage");
+                } catch (final Exception e) {
+                    LOG.log(Level.SEVERE, "Failed to upload output to storage", e);
+                    getStateWriter().setError(uuid, 1220, "Failed to upload output to storage");
+                    return;
+                }
+            }
+        }
+
+        if (remoteUrl != null) {
+            getStateWriter().setCustomValue(uuid, "remoteUrl", remoteUrl);
+        }
+
+        getStateWriter().setState(uuid, "processed");
     }
 
     /**
@@ -241,6 +1108,33 @@ public class JPedalServlet extends BaseServlet {
             return false;
         }
 
+        final SettingsValidator settingsValidator = validateSettings(settings);
+
+        if (!settingsValidator.isValid()) {
+            doError(request, response, "Invalid settings detected.\n" + settingsValidator.getMessage(), 400);
+            return false;
+        }
+
+        request.setAttribute("com.idrsolutions.microservice.settings", settings);
+
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        workerPool.getScheduler().submitted(uuid, getTenant(request, properties));
+
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        AdmissionFilter.accepted(request, admissionController, uuid);
+
+        return true;
+    }
+
+    /**
+     * Validates the settings of a conversion against the settings allowed for
+     * its mode.
+     *
+     * @param settings the settings of the conversion
+     * @return the validator, holding whether the settings are valid and the reasons if not
+     */
+    static SettingsValidator validateSettings(final Map<String, String> settings) {
         final SettingsValidator settingsValidator = new SettingsValidator(settings);
 
         final String mode = settingsValidator.validateString("mode", validModes, true);
@@ -249,6 +1143,9 @@ public class JPedalServlet extends BaseServlet {
                 case convertToImages:
                     settingsValidator.validateString("format", validEncoderFormats, true);
                     settingsValidator.validateFloat("scaling", new float[]{0.1f, 10}, false);
+                    settingsValidator.validateString("pages", PAGES_PATTERN, false);
+                    settingsValidator.validateString("maxWidth", "[1-9]\\d{0,4}", false);
+                    settingsValidator.validateString("maxHeight", "[1-9]\\d{0,4}", false);
                     settingsValidator.validateString("password", ".*", false);
                     break;
                 case extractImages:
@@ -258,108 +1155,161 @@ public class JPedalServlet extends BaseServlet {
                     settingsValidator.validateString("password", ".*", false);
                     break;
                 case extractText:
-                    settingsValidator.validateString("type",
+                    final String textType = settingsValidator.validateString("type",
                             new String[]{"plainText", "wordlist", "structuredText"}, true);
+                    // Structured text is a single document rather than one output per page
+                    settingsValidator.validateString("output", "structuredText".equals(textType)
+                            ? new String[]{"files"} : new String[]{"files", "ndjson"}, false);
                     settingsValidator.validateString("password", ".*", false);
                     break;
             }
         }
 
-        if (!settingsValidator.isValid()) {
-            doError(request, response, "Invalid settings detected.\n" + settingsValidator.getMessage(), 400);
-            return false;
-        }
-
-        request.setAttribute("com.idrsolutions.microservice.settings", settings);
+        return settingsValidator;
+    }
 
-        return true;
+    /**
+     * Identifies the tenant a conversion request belongs to for fair scheduling,
+     * from its client key header, the host of its callback url or its remote address.
+     * The client key header is only used when the key is one of the configured
+     * client keys, so a client cannot claim a new tenant with every request.
+     *
+     * @param request the request for this conversion
+     * @param properties the properties of the service
+     * @return the tenant of the request
+     */
+    static String getTenant(final HttpServletRequest request, final Properties properties) {
+        final String clientKey = request.getHeader(ConversionScheduler.CLIENT_KEY_HEADER);
+        if (clientKey != null && !clientKey.isEmpty()) {
+            final String clientKeys = properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_SCHEDULER_CLIENT_KEYS, "");
+            for (final String key : clientKeys.split(",")) {
+                if (clientKey.equals(key.trim())) {
+                    return "key:" + clientKey;
+                }
+            }
+        }
+        final String callbackUrl = request.getParameter("callbackUrl");
+        if (callbackUrl != null && !callbackUrl.isEmpty()) {
+            try {
+                final String host = new URI(callbackUrl).getHost();
+                if (host != null) {
+                    return "callback:" + host.toLowerCase();
+                }
+            } catch (final URISyntaxException e) {
+                LOG.log(Level.FINE, "Invalid callback url " + callbackUrl, e);
+            }
+        }
+        return "address:" + request.getRemoteAddr();
     }
 
     private ProcessUtils.Result convertFile(final Map<String, String> conversionParams,
-        final String uuid, final String webappDirectory, final File inputPdf,
-        final File outputDir, final long maxDuration) {
-
+        final ConversionScheduler.Job job, final File inputPdf, final File outputDir, final int pageCount, final int[] pages,
+        final PdfProbe.Info pdfInfo, final long maxDuration, final WorkerPool.PageListener pageListener) {
 
-        final ArrayList<String> commandArgs = new ArrayList<>();
-        commandArgs.add("java");
+        final float scaling = getScaling(conversionParams);
+        final int maxWidth = Integer.parseInt(conversionParams.getOrDefault("maxWidth", "0"));
+        final int maxHeight = Integer.parseInt(conversionParams.getOrDefault("maxHeight", "0"));
 
-        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
-        final int memoryLimit = Integer.parseInt(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_CONVERSION_MEMORY));
+        final Mode mode = Mode.valueOf(conversionParams.get("mode"));
 
-        final int remoteTrackerPort = Integer.parseInt((String) properties.get(BaseServletContextListener.KEY_PROPERTY_REMOTE_TRACKING_PORT));
+        //Set settings
+        final Map<String, String> systemProperties = getSystemProperties(conversionParams);
 
-        final float scaling = (conversionParams.containsKey("scaling") ? Float.parseFloat(conversionParams.remove("scaling")) * 1.52f : 1.52f);
-        if (memoryLimit > 0) {
-            commandArgs.add("-Xmx" + memoryLimit + "M");
-        }
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
 
-        //Set settings
-        commandArgs.add("-Dcom.idrsolutions.remoteTracker.port=" + remoteTrackerPort);
-        commandArgs.add("-Dcom.idrsolutions.remoteTracker.uuid=" + uuid);
+        // Only rendering pages needs memory for the page image, so only it depends on the scaling
+        final HeapEstimator.Estimate heapEstimate = workerPool.getHeapEstimator().estimate(
+                mode.name() + '/' + conversionParams.getOrDefault("type", conversionParams.get("format")),
+                pdfInfo, inputPdf.length(), pageCount, mode == Mode.convertToImages ? getRenderScaling(conversionParams, pdfInfo, pages) : 0);
 
-        final Mode mode = Mode.valueOf((conversionParams.remove("mode")));
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final String pageType = getPageOutputType(conversionParams, properties);
+        if (pageType != null) {
+            final int shardMinPages = Integer.parseInt(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_SHARD_MIN_PAGES));
+            final int shardCount = shardMinPages > 0 ? Math.max(1, Math.min(workerPool.getConcurrency(), pages.length / shardMinPages)) : 1;
 
-        if (!conversionParams.isEmpty()) {
-            final Set<String> keys = conversionParams.keySet();
-            for (final String key : keys) {
-                if (!key.equals("type") && !key.equals("format")) {
-                    final String value = conversionParams.get(key);
-                    commandArgs.add("-D" + key + '=' + value);
+            final String format = mode == Mode.convertToImages ? conversionParams.get("format") : "";
+            final String password = conversionParams.getOrDefault("password", "");
+            // Rendering cost grows with the rendered area, so image shards are balanced by it when the page sizes are known
+            final float[] pageWeights = new float[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                final int page = pages[i];
+                if (pdfInfo != null && mode == Mode.convertToImages) {
+                    final float width = pdfInfo.getPageWidth(page);
+                    final float height = pdfInfo.getPageHeight(page);
+                    final float pageScaling = maxWidth > 0 || maxHeight > 0
+                            ? PageConverter.getBoundedScaling(width, height, scaling, maxWidth, maxHeight) : scaling;
+                    pageWeights[i] = width * height * pageScaling * pageScaling;
+                } else {
+                    pageWeights[i] = 1;
                 }
             }
+            final List<int[]> shards = splitPages(pages, pageWeights, shardCount);
+            final List<WorkerPool.PageTask> tasks = new ArrayList<>();
+            for (final int[] shard : shards) {
+                final WorkerPool.PageTask task = new WorkerPool.PageTask(pageType, inputPdf, outputDir, format, scaling,
+                        maxWidth, maxHeight, password, shard, pdfInfo, systemProperties);
+                task.setHeapEstimate(heapEstimate);
+                tasks.add(task);
+            }
+            return workerPool.runAll(tasks, job, maxDuration, pageListener);
         }
 
-        //Add jar and input / output
-        commandArgs.add("-cp");
-        commandArgs.add(webappDirectory);
+        //Add input / output
+        final String mainClass;
+        final ArrayList<String> args = new ArrayList<>();
 
         switch (mode) {
             case convertToImages:
-                commandArgs.add("org.jpedal.examples.images.ConvertPagesToImages");
-                commandArgs.add(inputPdf.getAbsolutePath());
-                commandArgs.add(outputDir.getAbsolutePath());
-                commandArgs.add(conversionParams.get("format"));
-                commandArgs.add(String.valueOf(scaling));
+                mainClass = "org.jpedal.examples.images.ConvertPagesToImages";
+                args.add(inputPdf.getAbsolutePath());
+                args.add(outputDir.getAbsolutePath());
+                args.add(conversionParams.get("format"));
+                args.add(String.valueOf(scaling));
                 break;
             case extractImages:
                 final String type = conversionParams.get("type");
                 switch (type) {
                     case "rawImages" :
-                        commandArgs.add("org.jpedal.examples.images.ExtractImages");
-                        commandArgs.add(inputPdf.getAbsolutePath());
-                        commandArgs.add(outputDir.getAbsolutePath());
-                        commandArgs.add(conversionParams.get("format"));
+                        mainClass = "org.jpedal.examples.images.ExtractImages";
+                        args.add(inputPdf.getAbsolutePath());
+                        args.add(outputDir.getAbsolutePath());
+                        args.add(conversionParams.get("format"));
 
                         break;
                     case "clippedImages" :
                         String name = inputPdf.getName();
-                        commandArgs.add("org.jpedal.examples.images.ExtractClippedImages");
-                        commandArgs.add(inputPdf.getAbsolutePath());
-                        commandArgs.add(outputDir.getAbsolutePath());
-                        commandArgs.add(conversionParams.get("format"));
-                        commandArgs.add("0");
-                        commandArgs.add(name.substring(0, name.lastIndexOf(".")));
+                        mainClass = "org.jpedal.examples.images.ExtractClippedImages";
+                        args.add(inputPdf.getAbsolutePath());
+                        args.add(outputDir.getAbsolutePath());
+                        args.add(conversionParams.get("format"));
+                        args.add("0");
+                        args.add(name.substring(0, name.lastIndexOf(".")));
                         break;
+                    default:
+                        throw new RuntimeException("Unrecognised type specified: " + type);
                 }
                 break;
             case extractText:
                 final String textType = conversionParams.get("type");
                 switch (textType) {
                     case "plainText" :
-                        commandArgs.add("org.jpedal.examples.text.ExtractTextInRectangle");
-                        commandArgs.add(inputPdf.getAbsolutePath());
-                        commandArgs.add(outputDir.getAbsolutePath() + SEPARATOR);
+                        mainClass = "org.jpedal.examples.text.ExtractTextInRectangle";
+                        args.add(inputPdf.getAbsolutePath());
+                        args.add(outputDir.getAbsolutePath() + SEPARATOR);
                         break;
                     case "wordlist" :
-                        commandArgs.add("org.jpedal.examples.text.ExtractTextAsWordlist");
-                        commandArgs.add(inputPdf.getAbsolutePath());
-                        commandArgs.add(outputDir.getAbsolutePath());
+                        mainClass = "org.jpedal.examples.text.ExtractTextAsWordlist";
+                        args.add(inputPdf.getAbsolutePath());
+                        args.add(outputDir.getAbsolutePath());
                         break;
                     case "structuredText" :
-                        commandArgs.add("org.jpedal.examples.text.ExtractStructuredText");
-                        commandArgs.add(inputPdf.getAbsolutePath());
-                        commandArgs.add(outputDir.getAbsolutePath());
+                        mainClass = "org.jpedal.examples.text.ExtractStructuredText";
+                        args.add(inputPdf.getAbsolutePath());
+                        args.add(outputDir.getAbsolutePath());
                         break;
+                    default:
+                        throw new RuntimeException("Unrecognised type specified: " + textType);
                 }
                 break;
                 default:
@@ -367,9 +1317,219 @@ public class JPedalServlet extends BaseServlet {
 
                 }
 
+                final WorkerPool.ExampleTask task = new WorkerPool.ExampleTask(mainClass, args, systemProperties);
+                task.setHeapEstimate(heapEstimate);
+                return workerPool.run(task, job, maxDuration, null);
+    }
 
-                final String[] commands = commandArgs.toArray(new String[0]);
+    /**
+     * Returns the {@link PageConverter} type used for the given mode and type, for
+     * conversions that produce one output per page and can therefore be split
+     * into page ranges.
+     *
+     * @param mode the conversion mode
+     * @param type the type setting of the conversion, may be null
+     * @return the page conversion type, or null if the conversion is not page based
+     */
+    static String getPageConversionType(final String mode, final String type) {
+        switch (Mode.valueOf(mode)) {
+            case convertToImages:
+                return PageConverter.TYPE_IMAGES;
+            case extractText:
+                if ("plainText".equals(type)) {
+                    return PageConverter.TYPE_PLAIN_TEXT;
+                } else if ("wordlist".equals(type)) {
+                    return PageConverter.TYPE_WORDLIST;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
 
-                return ProcessUtils.runProcess(commands, inputPdf.getParentFile(), uuid, "JPedal Conversion", maxDuration);
+    /**
+     * Returns the {@link PageConverter} type used for a conversion written to a
+     * zip, or null if it is written by the JPedal example programs. Pages are
+     * only written one at a time, in the layout of {@link PageConverter}, when
+     * the pageOutput.enabled property is set or the conversion selects or
+     * bounds its pages, which the examples can not do, so existing clients keep
+     * the layout of the examples.
+     *
+     * @param conversionParams the settings of the conversion
+     * @param properties the properties of the service
+     * @return the page conversion type, or null if the conversion is run by the JPedal examples
+     */
+    static String getPageOutputType(final Map<String, String> conversionParams, final Properties properties) {
+        boolean pageOutput = Boolean.parseBoolean(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED));
+        for (final String key : new String[]{"pages", "maxWidth", "maxHeight"}) {
+            pageOutput |= !conversionParams.getOrDefault(key, "").isEmpty();
+        }
+        return pageOutput ? getPageConversionType(conversionParams.get("mode"), conversionParams.get("type")) : null;
+    }
+
+    /**
+     * Returns the scaling pages are rendered at, from the scaling setting of
+     * the conversion.
+     *
+     * @param conversionParams the settings of the conversion
+     * @return the scaling passed to JPedal
+     */
+    static float getScaling(final Map<String, String> conversionParams) {
+        return conversionParams.containsKey("scaling") ? Float.parseFloat(conversionParams.get("scaling")) * DEFAULT_SCALING : DEFAULT_SCALING;
+    }
+
+    /**
+     * Returns the largest scaling any of the given pages is rendered at. Pages
+     * fitted to a maximum width or height are rendered at the scaling that fits
+     * them, up to the scaling setting, or at the scaling setting if their size
+     * is not known in advance.
+     *
+     * @param conversionParams the settings of the conversion
+     * @param pdfInfo the structure of the document, or null if it could not be probed
+     * @param pages the pages being converted
+     * @return the largest scaling passed to JPedal
+     */
+    static float getRenderScaling(final Map<String, String> conversionParams, final PdfProbe.Info pdfInfo, final int[] pages) {
+        final int maxWidth = Integer.parseInt(conversionParams.getOrDefault("maxWidth", "0"));
+        final int maxHeight = Integer.parseInt(conversionParams.getOrDefault("maxHeight", "0"));
+        if ((maxWidth == 0 && maxHeight == 0) || pdfInfo == null) {
+            return getScaling(conversionParams);
+        }
+        final float scaling = getScaling(conversionParams);
+        float renderScaling = 0;
+        for (final int page : pages) {
+            renderScaling = Math.max(renderScaling, PageConverter.getBoundedScaling(pdfInfo.getPageWidth(page),
+                    pdfInfo.getPageHeight(page), scaling, maxWidth, maxHeight));
+        }
+        return renderScaling;
+    }
+
+    /**
+     * Returns the scaling of a conversion relative to the default, as used to
+     * estimate its cost.
+     *
+     * @param conversionParams the settings of the conversion
+     * @param pdfInfo the structure of the document, or null if it could not be probed
+     * @param pages the pages being converted
+     * @return the scaling relative to the default scaling
+     */
+    static float getRequestedScaling(final Map<String, String> conversionParams, final PdfProbe.Info pdfInfo, final int[] pages) {
+        return getRenderScaling(conversionParams, pdfInfo, pages) / DEFAULT_SCALING;
+    }
+
+    /**
+     * Returns the pages selected by the pages setting of a conversion, or every
+     * page of the document if it has none.
+     *
+     * @param conversionParams the settings of the conversion
+     * @param pageCount the number of pages in the document
+     * @return the selected page numbers in ascending order, without duplicates
+     * @throws ConversionException if a range is reversed or a page is beyond the end of the document
+     */
+    private static int[] getPages(final Map<String, String> conversionParams, final int pageCount) throws ConversionException {
+        try {
+            return parsePages(conversionParams.get("pages"), pageCount);
+        } catch (final IllegalArgumentException e) {
+            throw new ConversionException(1250, e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a page selection such as {@code 1,3,5-7,10-} into page numbers.
+     * A range without an end runs to the last page of the document.
+     *
+     * @param pages the page selection, matching {@link #PAGES_PATTERN}, or null for every page
+     * @param pageCount the number of pages in the document
+     * @return the selected page numbers in ascending order, without duplicates
+     * @throws IllegalArgumentException if a range is reversed or a page is beyond the end of the document
+     */
+    static int[] parsePages(final String pages, final int pageCount) {
+        if (pages == null || pages.isEmpty()) {
+            return IntStream.rangeClosed(1, pageCount).toArray();
+        }
+        final BitSet selected = new BitSet(pageCount + 1);
+        for (final String range : pages.split(",")) {
+            final int dash = range.indexOf('-');
+            final int first = Integer.parseInt(dash == -1 ? range : range.substring(0, dash));
+            final int last = dash == -1 ? first : dash == range.length() - 1 ? pageCount : Integer.parseInt(range.substring(dash + 1));
+            if (first > last && dash != range.length() - 1) {
+                throw new IllegalArgumentException("Invalid page range " + range);
+            }
+            if (first > pageCount || last > pageCount) {
+                throw new IllegalArgumentException("Page range " + range + " is beyond the last page " + pageCount);
+            }
+            selected.set(first, last + 1);
+        }
+        return selected.stream().toArray();
+    }
+
+    /**
+     * Returns the settings of a conversion that are passed to JPedal as system
+     * properties, which are all except those that select the conversion.
+     *
+     * @param conversionParams the settings of the conversion
+     * @return the system properties to set while the conversion runs
+     */
+    static Map<String, String> getSystemProperties(final Map<String, String> conversionParams) {
+        final Map<String, String> systemProperties = new HashMap<>();
+        for (final Map.Entry<String, String> entry : conversionParams.entrySet()) {
+            final String key = entry.getKey();
+            if (!key.equals("mode") && !key.equals("scaling") && !key.equals("type") && !key.equals("format")
+                    && !key.equals("pages") && !key.equals("maxWidth") && !key.equals("maxHeight") && !key.equals("output")) {
+                systemProperties.put(key, entry.getValue());
+            }
+        }
+        return systemProperties;
+    }
+
+    /**
+     * Splits the pages of a document into consecutive ranges of (almost) equal
+     * total weight. Every range contains at least one page.
+     *
+     * @param pages the page numbers to convert, in ascending order
+     * @param pageWeights the relative cost of converting each of the pages
+     * @param shardCount the number of ranges to split the pages into
+     * @return the page numbers of each range
+     */
+    static List<int[]> splitPages(final int[] pages, final float[] pageWeights, final int shardCount) {
+        final int pageCount = pages.length;
+        double totalWeight = 0;
+        for (final float weight : pageWeights) {
+            totalWeight += weight;
+        }
+
+        final List<int[]> shards = new ArrayList<>();
+        int page = 1;
+        double weightSoFar = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            final int first = page;
+            final double target = totalWeight * (shard + 1) / shardCount;
+            final int lastAllowed = pageCount - (shardCount - shard - 1);
+            do {
+                weightSoFar += pageWeights[page - 1];
+                page++;
+            } while (page <= lastAllowed && (shard == shardCount - 1 || weightSoFar + pageWeights[page - 1] / 2 <= target));
+
+            shards.add(Arrays.copyOfRange(pages, first - 1, page - 1));
+        }
+        return shards;
+    }
+
+    /**
+     * A conversion step that failed, with the error code and message reported
+     * to the client.
+     */
+    private static final class ConversionException extends Exception {
+
+        private final int code;
+
+        ConversionException(final int code, final String message) {
+            super(message);
+            this.code = code;
+        }
+
+        int getCode() {
+            return code;
+        }
     }
 }
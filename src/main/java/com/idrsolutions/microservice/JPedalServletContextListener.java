@@ -20,8 +20,17 @@ package com.idrsolutions.microservice;
 
 import com.idrsolutions.microservice.db.DBHandler;
 
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.annotation.WebListener;
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,11 +47,298 @@ public class JPedalServletContextListener extends BaseServletContextListener {
      */
     public static final String KEY_PROPERTY_INCLUDE_OFFICE_PDF = "includeOfficePdf";
 
+    /**
+     * The configuration property key used to specify the number of conversion worker JVMs kept running.
+     */
+    public static final String KEY_PROPERTY_WORKER_POOL_SIZE = "workerPool.size";
+
+    /**
+     * The configuration property key used to specify the number of jobs a conversion worker runs before it is recycled.
+     */
+    public static final String KEY_PROPERTY_WORKER_POOL_MAX_JOBS = "workerPool.maxJobs";
+
+    /**
+     * The configuration property key used to specify the committed heap size (in MB) at which a conversion worker is
+     * recycled.
+     */
+    public static final String KEY_PROPERTY_WORKER_POOL_MAX_HEAP = "workerPool.maxHeap";
+
+    /**
+     * The configuration property key used to specify whether convertToImages, plainText and wordlist conversions are
+     * written one page at a time, in a layout of one file per page, instead of by the JPedal example programs. Only
+     * conversions written one page at a time are split between workers, resumed and report their pages as they go.
+     */
+    public static final String KEY_PROPERTY_PAGE_OUTPUT_ENABLED = "pageOutput.enabled";
+
+    /**
+     * The configuration property key used to specify the minimum number of pages in each page range when a document is
+     * split to be converted in parallel.
+     */
+    public static final String KEY_PROPERTY_PAGE_SHARD_MIN_PAGES = "pageShard.minPages";
+
+    /**
+     * The configuration property key used to specify the estimated cost (in page equivalents) below which a conversion
+     * is scheduled shortest job first, 0 schedules every conversion fairly between tenants.
+     */
+    public static final String KEY_PROPERTY_SCHEDULER_SMALL_JOB_COST = "scheduler.smallJobCost";
+
+    /**
+     * The configuration property key used to specify the comma separated client keys accepted in the X-Client-Key
+     * header as the tenant of a conversion. The header is ignored when none are set.
+     */
+    public static final String KEY_PROPERTY_SCHEDULER_CLIENT_KEYS = "scheduler.clientKeys";
+
+    /**
+     * The configuration property key used to specify the number of conversions uploading, queued or running above which
+     * new conversions are rejected, 0 for no limit.
+     */
+    public static final String KEY_PROPERTY_ADMISSION_MAX_QUEUE_DEPTH = "admission.maxQueueDepth";
+
+    /**
+     * The configuration property key used to specify the percentage of physical memory that the conversion workers may
+     * commit before new conversions are rejected, 0 for no limit.
+     */
+    public static final String KEY_PROPERTY_ADMISSION_MAX_MEMORY_COMMITMENT = "admission.maxMemoryCommitment";
+
+    /**
+     * The configuration property key used to specify the free space (in MB) that must remain on the input and output
+     * paths for new conversions to be accepted, 0 for no limit.
+     */
+    public static final String KEY_PROPERTY_ADMISSION_MIN_FREE_SPACE = "admission.minFreeSpace";
+
+    /**
+     * The configuration property key used to specify the maximum size (in MB) of the conversion result cache, 0
+     * disables the cache.
+     */
+    public static final String KEY_PROPERTY_RESULT_CACHE_MAX_SIZE = "resultCache.maxSize";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) after which an unused entry is evicted
+     * from the conversion result cache.
+     */
+    public static final String KEY_PROPERTY_RESULT_CACHE_MAX_AGE = "resultCache.maxAge";
+
+    /**
+     * The configuration property key used to specify the maximum number of documents in a batch upload.
+     */
+    public static final String KEY_PROPERTY_BATCH_MAX_DOCUMENTS = "batch.maxDocuments";
+
+    /**
+     * The configuration property key used to specify the maximum total size (in MB) of the documents extracted from a
+     * batch upload.
+     */
+    public static final String KEY_PROPERTY_BATCH_MAX_SIZE = "batch.maxSize";
+
+    /**
+     * The configuration property key used to specify the maximum number of pages of a document converted
+     * synchronously, 0 passes every synchronous request on to the asynchronous API.
+     */
+    public static final String KEY_PROPERTY_SYNC_MAX_PAGES = "sync.maxPages";
+
+    /**
+     * The configuration property key used to specify the maximum size (in KB) of a document converted synchronously.
+     */
+    public static final String KEY_PROPERTY_SYNC_MAX_FILE_SIZE = "sync.maxFileSize";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) a synchronous conversion may take,
+     * including waiting for a worker, before it is stopped and converted again from the start by the asynchronous API.
+     */
+    public static final String KEY_PROPERTY_SYNC_TIMEOUT = "sync.timeout";
+
+    /**
+     * The configuration property key used to specify the number of threads extracting text inside the service JVM
+     * for conversions with newline-delimited JSON output.
+     */
+    public static final String KEY_PROPERTY_TEXT_EXTRACTION_PARALLELISM = "textExtraction.parallelism";
+
+    /**
+     * The configuration property key used to specify the directory of a local stand-in object store that output is
+     * uploaded to in parts while it is written, empty disables multipart uploads.
+     */
+    public static final String KEY_PROPERTY_MULTIPART_STORAGE_LOCAL_PATH = "multipartStorage.localPath";
+
+    /**
+     * The configuration property key used to specify the size (in MB) of the parts output is uploaded in.
+     */
+    public static final String KEY_PROPERTY_MULTIPART_STORAGE_PART_SIZE = "multipartStorage.partSize";
+
+    /**
+     * The configuration property key used to specify the maximum number of parts of one output being uploaded at once.
+     */
+    public static final String KEY_PROPERTY_MULTIPART_STORAGE_MAX_IN_FLIGHT = "multipartStorage.maxInFlight";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) progress updates of conversions are
+     * held for before being written to the database, 0 writes every update immediately.
+     */
+    public static final String KEY_PROPERTY_STATE_WRITER_FLUSH_INTERVAL = "stateWriter.flushInterval";
+
+    /**
+     * The configuration property key used to specify the JDBC url of a database shared by every node that holds the
+     * queue of conversions, empty unless the queue is used.
+     */
+    public static final String KEY_PROPERTY_QUEUE_JDBC_URL = "queue.jdbcUrl";
+
+    /**
+     * The configuration property key used to specify the JNDI name of a data source for the database holding the
+     * queue of conversions, used instead of queue.jdbcUrl when set.
+     */
+    public static final String KEY_PROPERTY_QUEUE_DATA_SOURCE = "queue.dataSource";
+
+    /**
+     * The configuration property key used to specify the directory shared by every node that the inputs of queued
+     * conversions are copied to.
+     */
+    public static final String KEY_PROPERTY_QUEUE_SHARED_PATH = "queue.sharedPath";
+
+    /**
+     * The configuration property key used to specify the number of queued conversions a node runs at once.
+     */
+    public static final String KEY_PROPERTY_QUEUE_CONCURRENCY = "queue.concurrency";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) between polls of the queue.
+     */
+    public static final String KEY_PROPERTY_QUEUE_POLL_INTERVAL = "queue.pollInterval";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) after which a conversion claimed by
+     * a node that stopped renewing its claim is claimed by another node.
+     */
+    public static final String KEY_PROPERTY_QUEUE_LEASE_TIME = "queue.leaseTime";
+
+    /**
+     * The configuration property key used to specify the number of times a queued conversion is claimed before it is
+     * failed.
+     */
+    public static final String KEY_PROPERTY_QUEUE_MAX_ATTEMPTS = "queue.maxAttempts";
+
+    /**
+     * The configuration property key used to specify the space (in MB) the files of conversions in the input and
+     * output paths may take before they are evicted, 0 uses the volumes holding the paths as the budget.
+     */
+    public static final String KEY_PROPERTY_EVICTION_MAX_SIZE = "eviction.maxSize";
+
+    /**
+     * The configuration property key used to specify the percentage of the eviction budget above which the least
+     * recently downloaded conversions are evicted, 0 disables eviction. Eviction is not run when the job queue is
+     * enabled, as the nodes share the output path but each only knows the conversions it ran.
+     */
+    public static final String KEY_PROPERTY_EVICTION_HIGH_WATER_MARK = "eviction.highWaterMark";
+
+    /**
+     * The configuration property key used to specify the percentage of the eviction budget that eviction stops at.
+     */
+    public static final String KEY_PROPERTY_EVICTION_LOW_WATER_MARK = "eviction.lowWaterMark";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) between checks of the space used
+     * against the eviction budget.
+     */
+    public static final String KEY_PROPERTY_EVICTION_INTERVAL = "eviction.interval";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) after a conversion finishes or its
+     * output is downloaded before it can be evicted.
+     */
+    public static final String KEY_PROPERTY_EVICTION_MIN_AGE = "eviction.minAge";
+
+    /**
+     * The configuration property key used to specify the number of LibreOffice instances used to convert office
+     * documents, 0 starts LibreOffice with a new profile for every document. The pool is not started when the
+     * LibreOffice executable can not be found.
+     */
+    public static final String KEY_PROPERTY_LIBRE_OFFICE_POOL_SIZE = "libreOfficePool.size";
+
+    /**
+     * The configuration property key used to specify the time (in milliseconds) between health checks of idle
+     * LibreOffice instances.
+     */
+    public static final String KEY_PROPERTY_LIBRE_OFFICE_POOL_HEALTH_CHECK = "libreOfficePool.healthCheckInterval";
+
+    /**
+     * The servlet context attribute holding the {@link WorkerPool} used to run conversions.
+     */
+    public static final String KEY_WORKER_POOL = "com.idrsolutions.microservice.workerPool";
+
+    /**
+     * The servlet context attribute holding the {@link ResultCache}, absent when the cache is disabled.
+     */
+    public static final String KEY_RESULT_CACHE = "com.idrsolutions.microservice.resultCache";
+
+    /**
+     * The servlet context attribute holding the {@link PageRegistry} used to serve pages before a conversion finishes.
+     */
+    public static final String KEY_PAGE_REGISTRY = "com.idrsolutions.microservice.pageRegistry";
+
+    /**
+     * The servlet context attribute holding the {@link LibreOfficePool}, absent when the pool is disabled.
+     */
+    public static final String KEY_LIBRE_OFFICE_POOL = "com.idrsolutions.microservice.libreOfficePool";
+
+    /**
+     * The servlet context attribute holding the {@link AdmissionController} used to reject conversions under load.
+     */
+    public static final String KEY_ADMISSION_CONTROLLER = "com.idrsolutions.microservice.admissionController";
+
+    /**
+     * The servlet context attribute holding the {@link ConversionMetrics} exposed by {@link MetricsServlet}.
+     */
+    public static final String KEY_METRICS = "com.idrsolutions.microservice.metrics";
+
+    /**
+     * The servlet context attribute holding the {@link TextExtractor} used to extract text inside the service JVM.
+     */
+    public static final String KEY_TEXT_EXTRACTOR = "com.idrsolutions.microservice.textExtractor";
+
+    /**
+     * The servlet context attribute holding the {@link MultipartUploader}, absent when multipart uploads are disabled.
+     */
+    public static final String KEY_MULTIPART_UPLOADER = "com.idrsolutions.microservice.multipartUploader";
+
+    /**
+     * The servlet context attribute holding the {@link JobStateWriter} used to write the state of conversions.
+     */
+    public static final String KEY_JOB_STATE_WRITER = "com.idrsolutions.microservice.jobStateWriter";
+
+    /**
+     * The servlet context attribute holding the {@link JobQueue} shared with other nodes, absent when conversions
+     * are run by the node that accepted them.
+     */
+    public static final String KEY_JOB_QUEUE = "com.idrsolutions.microservice.jobQueue";
+
+    /**
+     * The servlet context attribute holding the {@link RetryServlet.Retrier} that runs retried conversions,
+     * registered by the conversion servlet once it has started.
+     */
+    public static final String KEY_CONVERSION_RETRIER = "com.idrsolutions.microservice.conversionRetrier";
+
+    /**
+     * The servlet context attribute holding the {@link EvictionManager}, absent when eviction is disabled.
+     */
+    public static final String KEY_EVICTION_MANAGER = "com.idrsolutions.microservice.evictionManager";
+
     /**
      * Logger instance used for logging messages within this class.
      */
     private static final Logger LOG = Logger.getLogger(JPedalServletContextListener.class.getName());
 
+    /**
+     * The largest thread or process count accepted in the configuration.
+     */
+    private static final long MAX_THREADS = 1024;
+
+    /**
+     * The longest duration in milliseconds accepted in the configuration, one year.
+     */
+    private static final long MAX_DURATION = 365L * 24 * 60 * 60 * 1000;
+
+    /**
+     * The largest size in megabytes accepted in the configuration, which can still be converted to bytes.
+     */
+    private static final long MAX_MEGABYTES = Long.MAX_VALUE >> 20;
+
     /**
      * Retrieves the configuration path used by the application, which is "~/.idr/jpedal-microservice/".
      *
@@ -78,6 +374,89 @@ public class JPedalServletContextListener extends BaseServletContextListener {
         final Properties propertiesFile = (Properties) servletContextEvent.getServletContext().getAttribute(KEY_PROPERTIES);
         OutputFileServlet.setBasePath(propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH));
 
+        final ServletContext servletContext = servletContextEvent.getServletContext();
+        final WorkerPool workerPool = createWorkerPool(servletContext, propertiesFile);
+        workerPool.start();
+        servletContext.setAttribute(KEY_WORKER_POOL, workerPool);
+
+        final int libreOfficePoolSize = Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_LIBRE_OFFICE_POOL_SIZE));
+        final String libreOfficePath = propertiesFile.getProperty(KEY_PROPERTY_LIBRE_OFFICE);
+        if (libreOfficePoolSize > 0 && !LibreOfficePool.isInstalled(libreOfficePath)) {
+            LOG.log(Level.WARNING, "LibreOffice was not found at \"{0}\". The LibreOffice pool has been disabled", libreOfficePath);
+        } else if (libreOfficePoolSize > 0) {
+            // Kept with the inputs of this instance, so instances on one host never share a profile
+            final File profilesDir = new File(propertiesFile.getProperty(KEY_PROPERTY_INPUT_PATH), "libreoffice-profiles");
+            final LibreOfficePool libreOfficePool = new LibreOfficePool(libreOfficePath,
+                    profilesDir, libreOfficePoolSize, Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_LIBRE_OFFICE_TIMEOUT)));
+            libreOfficePool.start(Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_LIBRE_OFFICE_POOL_HEALTH_CHECK)));
+            servletContext.setAttribute(KEY_LIBRE_OFFICE_POOL, libreOfficePool);
+        }
+
+        // A conversion that has not finished after twice the maximum duration has been lost
+        final long maxConversionDuration = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_MAX_CONVERSION_DURATION));
+        servletContext.setAttribute(KEY_ADMISSION_CONTROLLER, new AdmissionController(
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_ADMISSION_MAX_QUEUE_DEPTH)),
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_ADMISSION_MAX_MEMORY_COMMITMENT)),
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_ADMISSION_MIN_FREE_SPACE)),
+                workerPool::getAverageWorkerHeap, workerPool.getConcurrency(), maxConversionDuration * 2,
+                new File(propertiesFile.getProperty(KEY_PROPERTY_INPUT_PATH)),
+                new File(propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH))));
+
+        final long individualTTL = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_INDIVIDUAL_TTL));
+        servletContext.setAttribute(KEY_PAGE_REGISTRY, new PageRegistry(individualTTL));
+        servletContext.setAttribute(KEY_METRICS, new ConversionMetrics());
+        final JobStateWriter jobStateWriter = new JobStateWriter(
+                Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_STATE_WRITER_FLUSH_INTERVAL)));
+        servletContext.setAttribute(KEY_JOB_STATE_WRITER, jobStateWriter);
+        servletContext.setAttribute(KEY_TEXT_EXTRACTOR, new TextExtractor(
+                Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_TEXT_EXTRACTION_PARALLELISM))));
+
+        final MultipartUploader multipartUploader = createMultipartUploader(propertiesFile);
+        if (multipartUploader != null) {
+            servletContext.setAttribute(KEY_MULTIPART_UPLOADER, multipartUploader);
+        }
+
+        final long resultCacheSize = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_RESULT_CACHE_MAX_SIZE));
+        if (resultCacheSize > 0) {
+            final File cacheDir = new File(propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH), "cache");
+            final long resultCacheAge = Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_RESULT_CACHE_MAX_AGE));
+            servletContext.setAttribute(KEY_RESULT_CACHE, new ResultCache(cacheDir, resultCacheSize, resultCacheAge));
+        }
+
+        final JobQueue.ConnectionFactory queueConnectionFactory = getQueueConnectionFactory(propertiesFile);
+        if (queueConnectionFactory != null) {
+            try {
+                servletContext.setAttribute(KEY_JOB_QUEUE, new JobQueue(queueConnectionFactory,
+                        new File(propertiesFile.getProperty(KEY_PROPERTY_QUEUE_SHARED_PATH)),
+                        Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_QUEUE_CONCURRENCY)),
+                        Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_QUEUE_POLL_INTERVAL)),
+                        Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_QUEUE_LEASE_TIME)),
+                        Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_QUEUE_MAX_ATTEMPTS)),
+                        jobStateWriter));
+                if (DBHandler.isUsingMemoryDatabase()) {
+                    LOG.log(Level.WARNING, "The job queue is shared with other nodes but the state of conversions is held in the internal database of this node, so their status can only be read from the node that ran them");
+                }
+            } catch (final SQLException e) {
+                LOG.log(Level.SEVERE, "Unable to use the job queue database, conversions are run by the node that accepted them", e);
+            }
+        }
+
+        final int evictionHighWaterMark = Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_HIGH_WATER_MARK));
+        if (evictionHighWaterMark > 0 && servletContext.getAttribute(KEY_JOB_QUEUE) != null) {
+            LOG.log(Level.WARNING, "Eviction is disabled as the job queue is enabled, other nodes run conversions in the shared output path that the eviction index of this node does not hold");
+        } else if (evictionHighWaterMark > 0) {
+            final EvictionManager evictionManager = new EvictionManager(
+                    new File(propertiesFile.getProperty(KEY_PROPERTY_INPUT_PATH)),
+                    new File(propertiesFile.getProperty(KEY_PROPERTY_OUTPUT_PATH)),
+                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_MAX_SIZE)),
+                    evictionHighWaterMark,
+                    Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_LOW_WATER_MARK)),
+                    Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_MIN_AGE)),
+                    jobStateWriter);
+            evictionManager.start(Long.parseLong(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_INTERVAL)));
+            servletContext.setAttribute(KEY_EVICTION_MANAGER, evictionManager);
+        }
+
         if (DBHandler.isUsingMemoryDatabase()) {
             final String message = "It is recommended to set your own database instead of using the default internal database as it will allow you to more easily scale the service in the future.\n" +
                     "More details on the benefits and how to do this can be found here https://support.idrsolutions.com/jpedal/tutorials/cloud/options/external-state-database";
@@ -85,6 +464,127 @@ public class JPedalServletContextListener extends BaseServletContextListener {
         }
     }
 
+    /**
+     * Returns claimed conversions to the job queue, stops the conversion workers, text extraction and upload threads,
+     * LibreOffice health checks and eviction, ends open page event streams and writes held conversion state when the
+     * application shuts down.
+     *
+     * @param servletContextEvent the event containing the servlet context that is being destroyed
+     */
+    @Override
+    public void contextDestroyed(final ServletContextEvent servletContextEvent) {
+        // Stopped first, so conversions interrupted by the shutdown are returned to the queue rather than failed
+        final JobQueue jobQueue = (JobQueue) servletContextEvent.getServletContext().getAttribute(KEY_JOB_QUEUE);
+        if (jobQueue != null) {
+            jobQueue.shutdown();
+        }
+        final WorkerPool workerPool = (WorkerPool) servletContextEvent.getServletContext().getAttribute(KEY_WORKER_POOL);
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+        final LibreOfficePool libreOfficePool = (LibreOfficePool) servletContextEvent.getServletContext().getAttribute(KEY_LIBRE_OFFICE_POOL);
+        if (libreOfficePool != null) {
+            libreOfficePool.shutdown();
+        }
+        final TextExtractor textExtractor = (TextExtractor) servletContextEvent.getServletContext().getAttribute(KEY_TEXT_EXTRACTOR);
+        if (textExtractor != null) {
+            textExtractor.shutdown();
+        }
+        final MultipartUploader multipartUploader = (MultipartUploader) servletContextEvent.getServletContext().getAttribute(KEY_MULTIPART_UPLOADER);
+        if (multipartUploader != null) {
+            multipartUploader.shutdown();
+        }
+        final PageRegistry pageRegistry = (PageRegistry) servletContextEvent.getServletContext().getAttribute(KEY_PAGE_REGISTRY);
+        if (pageRegistry != null) {
+            pageRegistry.shutdown();
+        }
+        final EvictionManager evictionManager = (EvictionManager) servletContextEvent.getServletContext().getAttribute(KEY_EVICTION_MANAGER);
+        if (evictionManager != null) {
+            evictionManager.shutdown();
+        }
+        // Written after the workers stop, so the last progress they reported is not lost
+        final JobStateWriter jobStateWriter = (JobStateWriter) servletContextEvent.getServletContext().getAttribute(KEY_JOB_STATE_WRITER);
+        if (jobStateWriter != null) {
+            jobStateWriter.shutdown();
+        }
+        super.contextDestroyed(servletContextEvent);
+    }
+
+    /**
+     * Returns how to connect to the database holding the job queue, from the JNDI data source when one is set and the
+     * JDBC url otherwise.
+     *
+     * @param properties the validated configuration properties
+     * @return the connection factory, or null if the job queue is not used or its data source can not be found
+     */
+    private static JobQueue.ConnectionFactory getQueueConnectionFactory(final Properties properties) {
+        final String dataSourceName = properties.getProperty(KEY_PROPERTY_QUEUE_DATA_SOURCE);
+        if (!dataSourceName.isEmpty()) {
+            try {
+                final String jndiName = dataSourceName.startsWith("java:") ? dataSourceName : "java:comp/env/" + dataSourceName;
+                final DataSource dataSource = (DataSource) new InitialContext().lookup(jndiName);
+                return dataSource::getConnection;
+            } catch (final NamingException e) {
+                LOG.log(Level.SEVERE, "Unable to find the job queue data source, conversions are run by the node that accepted them", e);
+                return null;
+            }
+        }
+        final String jdbcUrl = properties.getProperty(KEY_PROPERTY_QUEUE_JDBC_URL);
+        if (!jdbcUrl.isEmpty()) {
+            return () -> DriverManager.getConnection(jdbcUrl);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the pool of conversion worker JVMs. Workers run with at most the configured conversion memory limit and
+     * report their progress to the remote tracker, in the same way as the one-off conversion processes they replace.
+     *
+     * @param servletContext the servlet context used to locate JPedal and the worker classes
+     * @param properties the validated configuration properties
+     * @return the worker pool, which has not been started yet
+     */
+    private static WorkerPool createWorkerPool(final ServletContext servletContext, final Properties properties) {
+        final List<String> jvmArgs = new ArrayList<>();
+        jvmArgs.add("-Dcom.idrsolutions.remoteTracker.port=" + properties.getProperty(KEY_PROPERTY_REMOTE_TRACKING_PORT));
+
+        final String servletDirectory = servletContext.getRealPath("");
+        final String webInfDirectory = servletDirectory != null ? servletDirectory + File.separator + "WEB-INF" : "WEB-INF";
+        final String classPath = webInfDirectory + File.separator + "lib" + File.separator + "jpedal.jar"
+                + File.pathSeparator + webInfDirectory + File.separator + "classes";
+
+        return new WorkerPool(jvmArgs, classPath,
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_WORKER_POOL_SIZE)),
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_CONVERSION_MEMORY)),
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_WORKER_POOL_MAX_JOBS)),
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_WORKER_POOL_MAX_HEAP)),
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_CONVERSION_THREADS)),
+                Integer.parseInt(properties.getProperty(KEY_PROPERTY_SCHEDULER_SMALL_JOB_COST)),
+                Long.parseLong(properties.getProperty(KEY_PROPERTY_INDIVIDUAL_TTL)));
+    }
+
+    /**
+     * Creates the uploader output is uploaded in parts with while it is written,
+     * when a local stand-in object store is configured. The output is written
+     * to the output path as well, as the files in the stand-in can not be
+     * downloaded by clients.
+     * <p>
+     * The storage providers of the base microservice only take whole files, so
+     * they are given the output once it is complete instead.
+     *
+     * @param properties the validated configuration properties
+     * @return the uploader, or null if output is not uploaded in parts
+     */
+    private static MultipartUploader createMultipartUploader(final Properties properties) {
+        final String localPath = properties.getProperty(KEY_PROPERTY_MULTIPART_STORAGE_LOCAL_PATH);
+        if (localPath.isEmpty()) {
+            return null;
+        }
+        final int partSize = Integer.parseInt(properties.getProperty(KEY_PROPERTY_MULTIPART_STORAGE_PART_SIZE)) * 1024 * 1024;
+        final int maxInFlight = Integer.parseInt(properties.getProperty(KEY_PROPERTY_MULTIPART_STORAGE_MAX_IN_FLIGHT));
+        return new MultipartUploader(new LocalObjectStore(new File(localPath)), partSize, maxInFlight);
+    }
+
     /**
      * Validates the configuration values provided in the Properties object by invoking specific validation methods for
      * individual properties. Ensures that the required configuration properties have appropriate values and applies
@@ -94,11 +594,163 @@ public class JPedalServletContextListener extends BaseServletContextListener {
      */
     @Override
     protected void validateConfigFileValues(final Properties propertiesFile) {
+        validateConversionThreadCount(propertiesFile);
         super.validateConfigFileValues(propertiesFile);
 
+        final String processors = String.valueOf(Runtime.getRuntime().availableProcessors());
+
         validateLibreOfficePath(propertiesFile);
         validateLibreOfficeTimeout(propertiesFile);
         validateLibreOfficePdf(propertiesFile);
+        // One instance per conversion thread, so conversions never wait for an instance
+        validateOptionalNumber(propertiesFile, KEY_PROPERTY_LIBRE_OFFICE_POOL_SIZE, 0, MAX_THREADS,
+                propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_THREADS));
+        validateNumber(propertiesFile, KEY_PROPERTY_LIBRE_OFFICE_POOL_HEALTH_CHECK, 1, MAX_DURATION, "300000");
+        validateOptionalNumber(propertiesFile, KEY_PROPERTY_WORKER_POOL_SIZE, 0, MAX_THREADS, processors);
+        validateNumber(propertiesFile, KEY_PROPERTY_WORKER_POOL_MAX_JOBS, 0, Integer.MAX_VALUE, "50");
+        validateNumber(propertiesFile, KEY_PROPERTY_WORKER_POOL_MAX_HEAP, 0, Integer.MAX_VALUE,
+                String.valueOf(Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_CONVERSION_MEMORY)) * 3 / 4));
+        validatePageOutputEnabled(propertiesFile);
+        validateNumber(propertiesFile, KEY_PROPERTY_PAGE_SHARD_MIN_PAGES, 0, Integer.MAX_VALUE, "50");
+        validateNumber(propertiesFile, KEY_PROPERTY_SCHEDULER_SMALL_JOB_COST, 0, Integer.MAX_VALUE, "10");
+        checkSchedulerQueue(propertiesFile);
+        validateSchedulerClientKeys(propertiesFile);
+        validateNumber(propertiesFile, KEY_PROPERTY_ADMISSION_MAX_QUEUE_DEPTH, 0, Integer.MAX_VALUE, "100");
+        validateNumber(propertiesFile, KEY_PROPERTY_ADMISSION_MAX_MEMORY_COMMITMENT, 0, 100, "90");
+        validateNumber(propertiesFile, KEY_PROPERTY_ADMISSION_MIN_FREE_SPACE, 0, MAX_MEGABYTES, "1024");
+        validateNumber(propertiesFile, KEY_PROPERTY_RESULT_CACHE_MAX_SIZE, 0, MAX_MEGABYTES, "1024");
+        validateNumber(propertiesFile, KEY_PROPERTY_RESULT_CACHE_MAX_AGE, 0, MAX_DURATION, "86400000");
+        validateNumber(propertiesFile, KEY_PROPERTY_BATCH_MAX_DOCUMENTS, 0, Integer.MAX_VALUE, "1000");
+        validateNumber(propertiesFile, KEY_PROPERTY_BATCH_MAX_SIZE, 0, MAX_MEGABYTES, "1024");
+        validateNumber(propertiesFile, KEY_PROPERTY_SYNC_MAX_PAGES, 0, Integer.MAX_VALUE, "10");
+        validateNumber(propertiesFile, KEY_PROPERTY_SYNC_MAX_FILE_SIZE, 0, MAX_MEGABYTES * 1024, "2048");
+        validateNumber(propertiesFile, KEY_PROPERTY_SYNC_TIMEOUT, 0, MAX_DURATION, "10000");
+        validateOptionalNumber(propertiesFile, KEY_PROPERTY_TEXT_EXTRACTION_PARALLELISM, 1, MAX_THREADS, processors);
+        validateMultipartStorageLocalPath(propertiesFile);
+        // Object stores do not accept parts smaller than 5MB other than the last
+        validateNumber(propertiesFile, KEY_PROPERTY_MULTIPART_STORAGE_PART_SIZE, 5, 1024, "8");
+        validateNumber(propertiesFile, KEY_PROPERTY_MULTIPART_STORAGE_MAX_IN_FLIGHT, 1, MAX_THREADS, "4");
+        validateNumber(propertiesFile, KEY_PROPERTY_STATE_WRITER_FLUSH_INTERVAL, 0, MAX_DURATION, "500");
+        validateQueueDatabase(propertiesFile);
+        validateQueueSharedPath(propertiesFile);
+        validateOptionalNumber(propertiesFile, KEY_PROPERTY_QUEUE_CONCURRENCY, 1, MAX_THREADS, processors);
+        validateNumber(propertiesFile, KEY_PROPERTY_QUEUE_POLL_INTERVAL, 1, MAX_DURATION, "1000");
+        validateNumber(propertiesFile, KEY_PROPERTY_QUEUE_LEASE_TIME, 3000, MAX_DURATION, "60000");
+        validateNumber(propertiesFile, KEY_PROPERTY_QUEUE_MAX_ATTEMPTS, 1, 1000, "3");
+        validateNumber(propertiesFile, KEY_PROPERTY_EVICTION_MAX_SIZE, 0, MAX_MEGABYTES, "0");
+        validateNumber(propertiesFile, KEY_PROPERTY_EVICTION_HIGH_WATER_MARK, 0, 100, "0");
+        // Only bounded by the high water mark once eviction is enabled, so the low water mark can be set ahead of it
+        final int highWaterMark = Integer.parseInt(propertiesFile.getProperty(KEY_PROPERTY_EVICTION_HIGH_WATER_MARK));
+        final int maxLowWaterMark = highWaterMark > 0 ? highWaterMark : 100;
+        validateNumber(propertiesFile, KEY_PROPERTY_EVICTION_LOW_WATER_MARK, 0, maxLowWaterMark, String.valueOf(Math.min(75, maxLowWaterMark)));
+        validateNumber(propertiesFile, KEY_PROPERTY_EVICTION_INTERVAL, 1, MAX_DURATION, "60000");
+        validateNumber(propertiesFile, KEY_PROPERTY_EVICTION_MIN_AGE, 0, MAX_DURATION, "3600000");
+    }
+
+    /**
+     * Assigns the "conversionThreadCount" property a default of twice the number of available processors when it is
+     * not set, before the base listener validates it. Conversions wait for a conversion worker on their conversion
+     * thread, and also use it to convert office documents and write their output, so more conversion threads than
+     * worker slots keep the workers busy.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validateConversionThreadCount(final Properties properties) {
+        final String conversionThreads = properties.getProperty(KEY_PROPERTY_CONVERSION_THREADS);
+        if (conversionThreads == null || conversionThreads.trim().isEmpty()) {
+            final String defaultValue = String.valueOf(Runtime.getRuntime().availableProcessors() * 2);
+            properties.setProperty(KEY_PROPERTY_CONVERSION_THREADS, defaultValue);
+            LOG.log(Level.CONFIG, "Properties value for \"conversionThreadCount\" was left empty. Using a value of \"{0}\"", defaultValue);
+        }
+    }
+
+    /**
+     * Logs a warning if there are fewer conversion threads than worker slots, in which case some of the workers are
+     * never used.
+     *
+     * @param properties the validated configuration properties
+     */
+    private static void checkSchedulerQueue(final Properties properties) {
+        final int conversionThreads = Integer.parseInt(properties.getProperty(KEY_PROPERTY_CONVERSION_THREADS));
+        final int workerPoolSize = Integer.parseInt(properties.getProperty(KEY_PROPERTY_WORKER_POOL_SIZE));
+        final int workerSlots = workerPoolSize > 0 ? workerPoolSize : Runtime.getRuntime().availableProcessors();
+        if (conversionThreads < workerSlots) {
+            LOG.log(Level.WARNING, "Properties value for \"conversionThreadCount\" is below the {0} conversion worker " +
+                    "slots, so some conversion workers are never used", workerSlots);
+        }
+    }
+
+    /**
+     * Validates the "scheduler.clientKeys" property in the provided Properties object.
+     * If the property is not set, it assigns an empty value, which ignores the X-Client-Key header.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validateSchedulerClientKeys(final Properties properties) {
+        final String clientKeys = properties.getProperty(KEY_PROPERTY_SCHEDULER_CLIENT_KEYS);
+        if (clientKeys == null) {
+            properties.setProperty(KEY_PROPERTY_SCHEDULER_CLIENT_KEYS, "");
+        }
+    }
+
+    /**
+     * Validates a whole number property in the provided Properties object.
+     * If the property is not set, is not a whole number or is outside the given range, it assigns the default value
+     * and logs a warning saying which.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     * @param key the key of the property
+     * @param min the lowest value allowed
+     * @param max the highest value allowed
+     * @param defaultValue the value to use when the property is not valid
+     */
+    private static void validateNumber(final Properties properties, final String key, final long min, final long max, final String defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            properties.setProperty(key, defaultValue);
+            LOG.log(Level.WARNING, String.format("Properties value for \"%s\" was not set. Using a value of \"%s\"", key, defaultValue));
+            return;
+        }
+
+        final long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            properties.setProperty(key, defaultValue);
+            LOG.log(Level.WARNING, String.format("Properties value for \"%s\" was set to \"%s\" but should be a whole " +
+                    "number between %d and %d. Using a value of \"%s\"", key, value, min, max, defaultValue));
+            return;
+        }
+
+        if (number < min || number > max) {
+            properties.setProperty(key, defaultValue);
+            LOG.log(Level.WARNING, String.format("Properties value for \"%s\" was set to \"%s\" but should be between " +
+                    "%d and %d. Using a value of \"%s\"", key, value, min, max, defaultValue));
+            return;
+        }
+
+        properties.setProperty(key, String.valueOf(number));
+    }
+
+    /**
+     * Validates a whole number property whose documented default is to be left empty, as
+     * {@link #validateNumber(Properties, String, long, long, String)} does, but assigns the default value without a
+     * warning when the property is not set or empty.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     * @param key the key of the property
+     * @param min the lowest value allowed
+     * @param max the highest value allowed
+     * @param defaultValue the value to use when the property is empty or not valid
+     */
+    private static void validateOptionalNumber(final Properties properties, final String key, final long min, final long max, final String defaultValue) {
+        final String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            properties.setProperty(key, defaultValue);
+            LOG.log(Level.CONFIG, "Properties value for \"{0}\" was left empty. Using a value of \"{1}\"", new Object[] {key, defaultValue});
+            return;
+        }
+        validateNumber(properties, key, min, max, defaultValue);
     }
 
     /**
@@ -149,4 +801,69 @@ public class JPedalServletContextListener extends BaseServletContextListener {
         }
     }
 
+    /**
+     * Validates the "pageOutput.enabled" property in the provided Properties object.
+     * If the property is not set or is not "true" or "false", it assigns a default value of "false" and logs a warning.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validatePageOutputEnabled(final Properties properties) {
+        final String enabled = properties.getProperty(KEY_PROPERTY_PAGE_OUTPUT_ENABLED);
+        if (enabled == null || enabled.isEmpty() || !(enabled.equals("true") || enabled.equals("false"))) {
+            properties.setProperty(KEY_PROPERTY_PAGE_OUTPUT_ENABLED, "false");
+            LOG.log(Level.WARNING, "Properties value for \"pageOutput.enabled\" was not set. Using a value of \"false\"");
+        }
+    }
+
+    /**
+     * Validates the "multipartStorage.localPath" property in the provided Properties object.
+     * If the property is not set, it assigns an empty value, which disables multipart uploads.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validateMultipartStorageLocalPath(final Properties properties) {
+        final String localPath = properties.getProperty(KEY_PROPERTY_MULTIPART_STORAGE_LOCAL_PATH);
+        if (localPath == null) {
+            properties.setProperty(KEY_PROPERTY_MULTIPART_STORAGE_LOCAL_PATH, "");
+        }
+    }
+
+    /**
+     * Validates the "queue.jdbcUrl" and "queue.dataSource" properties in the provided Properties object.
+     * If a property is not set, it assigns an empty value. Conversions are only queued when one of them is set.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validateQueueDatabase(final Properties properties) {
+        if (properties.getProperty(KEY_PROPERTY_QUEUE_JDBC_URL) == null) {
+            properties.setProperty(KEY_PROPERTY_QUEUE_JDBC_URL, "");
+        }
+        if (properties.getProperty(KEY_PROPERTY_QUEUE_DATA_SOURCE) == null) {
+            properties.setProperty(KEY_PROPERTY_QUEUE_DATA_SOURCE, "");
+        }
+    }
+
+    /**
+     * Validates the "queue.sharedPath" property in the provided Properties object.
+     * If the job queue is used and the property is not set or is not a writable directory, it disables the job queue
+     * and logs an error, as other nodes could not read the inputs of queued conversions.
+     *
+     * @param properties the Properties object containing configuration properties to be validated
+     */
+    private static void validateQueueSharedPath(final Properties properties) {
+        final String sharedPath = properties.getProperty(KEY_PROPERTY_QUEUE_SHARED_PATH);
+        if (sharedPath == null) {
+            properties.setProperty(KEY_PROPERTY_QUEUE_SHARED_PATH, "");
+        }
+        if (properties.getProperty(KEY_PROPERTY_QUEUE_JDBC_URL).isEmpty() && properties.getProperty(KEY_PROPERTY_QUEUE_DATA_SOURCE).isEmpty()) {
+            return;
+        }
+        final File sharedDir = new File(properties.getProperty(KEY_PROPERTY_QUEUE_SHARED_PATH));
+        if (sharedPath == null || sharedPath.isEmpty() || !(sharedDir.isDirectory() || sharedDir.mkdirs()) || !sharedDir.canWrite()) {
+            properties.setProperty(KEY_PROPERTY_QUEUE_JDBC_URL, "");
+            properties.setProperty(KEY_PROPERTY_QUEUE_DATA_SOURCE, "");
+            LOG.log(Level.SEVERE, "Properties value for \"queue.sharedPath\" is not a writable directory. The job queue has been disabled");
+        }
+    }
+
 }
@@ -0,0 +1,442 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A queue of conversions held in a database shared by every node of the
+ * service, so a conversion accepted by a busy node can be run by an idle one.
+ * <p>
+ * The node accepting a conversion copies its input to a directory shared by
+ * the nodes and adds it to the queue. Every node polls the queue for as many
+ * conversions as it has free slots and claims each with a lease, which it
+ * renews while the conversion runs. A conversion whose lease expires, because
+ * its node died or lost contact with the database, is claimed again by the
+ * next node to poll, until it has been claimed the maximum number of times
+ * and is failed instead.
+ * <p>
+ * Claims are made with a conditional update on the attempt count of the
+ * conversion, so when several nodes see the same conversion only one of them
+ * claims it, without relying on locking features that differ between
+ * databases. Leases are compared against the clocks of the nodes, which must
+ * be in step to well within the lease time.
+ */
+final class JobQueue {
+
+    private static final Logger LOG = Logger.getLogger(JobQueue.class.getName());
+
+    private static final String TABLE = "jpedal_job_queue";
+
+    private final ConnectionFactory connectionFactory;
+    private final File sharedDir;
+    private final int concurrency;
+    private final long pollInterval;
+    private final long leaseTime;
+    private final int maxAttempts;
+    private final JobStateWriter stateWriter;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Semaphore slots;
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService executor;
+
+    /**
+     * Creates a queue, creating its table if it does not exist yet.
+     *
+     * @param connectionFactory opens connections to the shared database
+     * @param sharedDir the directory shared by every node that inputs are copied to
+     * @param concurrency the maximum number of conversions this node runs at once
+     * @param pollInterval the time (in milliseconds) between polls of the queue
+     * @param leaseTime the time (in milliseconds) a claim lasts without being renewed
+     * @param maxAttempts the number of times a conversion is claimed before it is failed
+     * @param stateWriter the writer used to fail conversions that were claimed too many times, and that conversions
+     * returned to the queue at shutdown are detached from
+     * @throws SQLException if the table can not be created
+     */
+    JobQueue(final ConnectionFactory connectionFactory, final File sharedDir, final int concurrency,
+             final long pollInterval, final long leaseTime, final int maxAttempts,
+             final JobStateWriter stateWriter) throws SQLException {
+        this.connectionFactory = connectionFactory;
+        this.sharedDir = sharedDir;
+        this.concurrency = concurrency;
+        this.pollInterval = pollInterval;
+        this.leaseTime = leaseTime;
+        this.maxAttempts = maxAttempts;
+        this.stateWriter = stateWriter;
+        this.slots = new Semaphore(concurrency);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "job-queue-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "job-queue-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        createTable();
+    }
+
+    /**
+     * Starts polling the queue for conversions to run.
+     *
+     * @param handler runs the conversions claimed by this node
+     */
+    void start(final Handler handler) {
+        timer.scheduleWithFixedDelay(() -> poll(handler), 0, pollInterval, TimeUnit.MILLISECONDS);
+        // Renewed several times per lease, so a single failed renewal does not lose the claims
+        final long renewInterval = Math.max(1, leaseTime / 3);
+        timer.scheduleWithFixedDelay(this::renewLeases, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        LOG.log(Level.INFO, "Node {0} polling the job queue for up to {1} conversions", new Object[]{nodeId, concurrency});
+    }
+
+    /**
+     * Adds a conversion to the queue, copying its input to the shared directory.
+     *
+     * @param uuid the uuid of the conversion
+     * @param inputFile the input of the conversion
+     * @param contextUrl the context url the output of the conversion is downloaded from
+     * @param tenant the tenant the conversion belongs to, or null if it is not known
+     * @param submittedAt the time in milliseconds the conversion was accepted
+     * @throws IOException if the input can not be copied to the shared directory
+     * @throws SQLException if the conversion can not be added to the queue
+     */
+    void enqueue(final String uuid, final File inputFile, final String contextUrl, final String tenant,
+                 final long submittedAt) throws IOException, SQLException {
+        final File jobDir = new File(sharedDir, uuid);
+        try (Connection connection = connectionFactory.open();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TABLE
+                     + " (uuid, input_file, context_url, tenant, submitted_at, owner, lease_expiry, attempts)"
+                     + " VALUES (?, ?, ?, ?, ?, NULL, 0, 0)")) {
+            Files.createDirectories(jobDir.toPath());
+            Files.copy(inputFile.toPath(), new File(jobDir, inputFile.getName()).toPath());
+            statement.setString(1, uuid);
+            // Stored relative to the shared directory, which may be mounted at a different path on each node
+            statement.setString(2, uuid + '/' + inputFile.getName());
+            statement.setString(3, contextUrl);
+            statement.setString(4, tenant);
+            statement.setLong(5, submittedAt);
+            statement.executeUpdate();
+        } catch (final IOException | SQLException e) {
+            MicroserviceUtils.deleteDirectory(jobDir);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops polling and returns the conversions running on this node to the
+     * queue, so other nodes can claim them without waiting for their leases to
+     * expire. Returned conversions are not counted as failed attempts, and are
+     * detached from the state writer first, so the failure of their
+     * interrupted runs is not written over the state of the node that claims
+     * them next.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        int released = 0;
+        try (Connection connection = connectionFactory.open();
+             PreparedStatement statement = connection.prepareStatement("UPDATE " + TABLE
+                     + " SET owner = NULL, lease_expiry = 0, attempts = attempts - 1 WHERE uuid = ? AND owner = ?")) {
+            for (final String uuid : running) {
+                stateWriter.detach(uuid);
+                statement.setString(1, uuid);
+                statement.setString(2, nodeId);
+                released += statement.executeUpdate();
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Unable to return claimed conversions to the job queue, they are claimed again once their leases expire", e);
+        }
+        if (released > 0) {
+            LOG.log(Level.INFO, "Returned {0} claimed conversions to the job queue", released);
+        }
+        executor.shutdownNow();
+    }
+
+    private void createTable() throws SQLException {
+        try (Connection connection = connectionFactory.open();
+             Statement statement = connection.createStatement()) {
+            try {
+                statement.executeQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE 1 = 0").close();
+                return;
+            } catch (final SQLException e) {
+                // The table does not exist yet. Not every database supports CREATE TABLE IF NOT EXISTS
+            }
+            statement.executeUpdate("CREATE TABLE " + TABLE + " ("
+                    + "uuid VARCHAR(64) NOT NULL PRIMARY KEY, "
+                    + "input_file VARCHAR(1024) NOT NULL, "
+                    + "context_url VARCHAR(2048) NOT NULL, "
+                    + "tenant VARCHAR(512), "
+                    + "submitted_at BIGINT NOT NULL, "
+                    + "owner VARCHAR(64), "
+                    + "lease_expiry BIGINT NOT NULL, "
+                    + "attempts INT NOT NULL)");
+            statement.executeUpdate("CREATE INDEX " + TABLE + "_lease ON " + TABLE + " (lease_expiry)");
+        } catch (final SQLException e) {
+            // Another node may have created the table at the same time
+            try (Connection connection = connectionFactory.open();
+                 Statement statement = connection.createStatement()) {
+                statement.executeQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE 1 = 0").close();
+            } catch (final SQLException ex) {
+                e.addSuppressed(ex);
+                throw e;
+            }
+        }
+    }
+
+    private void poll(final Handler handler) {
+        final int free = slots.availablePermits();
+        if (free == 0) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try (Connection connection = connectionFactory.open()) {
+            // Queued conversions have a lease expiry of 0, so one condition finds both new and abandoned conversions
+            final List<ClaimedJob> candidates = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT uuid, input_file, context_url, tenant,"
+                    + " submitted_at, attempts FROM " + TABLE + " WHERE lease_expiry < ? ORDER BY submitted_at")) {
+                statement.setLong(1, now);
+                // Other nodes claim some of the same conversions, so look at more than there are free slots
+                statement.setMaxRows(free * 2);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        candidates.add(new ClaimedJob(resultSet.getString(1), new File(sharedDir, resultSet.getString(2)),
+                                resultSet.getString(3), resultSet.getString(4), resultSet.getLong(5),
+                                resultSet.getInt(6) + 1));
+                    }
+                }
+            }
+
+            for (final ClaimedJob job : candidates) {
+                if (!slots.tryAcquire()) {
+                    return;
+                }
+                if (!claim(connection, job, now)) {
+                    slots.release();
+                    continue;
+                }
+                if (job.getAttempt() > maxAttempts) {
+                    slots.release();
+                    LOG.log(Level.WARNING, "Conversion {0} was abandoned by {1} nodes, failing it", new Object[]{job.getUuid(), maxAttempts});
+                    stateWriter.setError(job.getUuid(), 1220, "The conversion was interrupted " + maxAttempts + " times");
+                    remove(job);
+                    continue;
+                }
+                if (job.getAttempt() > 1) {
+                    LOG.log(Level.INFO, "Claimed conversion {0} for attempt {1} after its lease expired", new Object[]{job.getUuid(), job.getAttempt()});
+                }
+                running.add(job.getUuid());
+                executor.execute(() -> run(handler, job));
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Unable to poll the job queue", e);
+        } catch (final RuntimeException e) {
+            // Thrown when the executor has been shut down, an uncaught exception would also end the polling
+            LOG.log(Level.WARNING, "Unable to start a queued conversion", e);
+        }
+    }
+
+    private boolean claim(final Connection connection, final ClaimedJob job, final long now) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("UPDATE " + TABLE
+                + " SET owner = ?, lease_expiry = ?, attempts = ? WHERE uuid = ? AND attempts = ? AND lease_expiry < ?")) {
+            statement.setString(1, nodeId);
+            statement.setLong(2, now + leaseTime);
+            statement.setInt(3, job.getAttempt());
+            statement.setString(4, job.getUuid());
+            statement.setInt(5, job.getAttempt() - 1);
+            statement.setLong(6, now);
+            return statement.executeUpdate() == 1;
+        }
+    }
+
+    private void run(final Handler handler, final ClaimedJob job) {
+        try {
+            handler.run(job);
+        } catch (final RuntimeException e) {
+            LOG.log(Level.SEVERE, "Exception thrown running queued conversion " + job.getUuid(), e);
+        } finally {
+            running.remove(job.getUuid());
+            // A conversion returned to the queue at shutdown is no longer claimed by this node, so stays queued
+            if (!stateWriter.isDetached(job.getUuid())) {
+                remove(job);
+            }
+            slots.release();
+        }
+    }
+
+    /**
+     * Removes a conversion claimed by this node from the queue, and its input
+     * from the shared directory. A conversion claimed by another node after
+     * the lease of this node expired is left for that node.
+     */
+    private void remove(final ClaimedJob job) {
+        try (Connection connection = connectionFactory.open();
+             PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE uuid = ? AND owner = ?")) {
+            statement.setString(1, job.getUuid());
+            statement.setString(2, nodeId);
+            if (statement.executeUpdate() == 0) {
+                LOG.log(Level.WARNING, "Conversion {0} is no longer claimed by this node, leaving it in the job queue", job.getUuid());
+                return;
+            }
+        } catch (final SQLException e) {
+            // Left for its lease to expire, another node then claims and runs the conversion again
+            LOG.log(Level.WARNING, "Unable to remove conversion " + job.getUuid() + " from the job queue", e);
+            return;
+        }
+        MicroserviceUtils.deleteDirectory(new File(sharedDir, job.getUuid()));
+    }
+
+    /**
+     * Renews the leases of the conversions still running on this node. A row
+     * left owned by this node after its conversion stopped running here, such
+     * as one that failed to be removed, is not renewed, so its lease expires
+     * and another node claims it.
+     */
+    private void renewLeases() {
+        if (running.isEmpty()) {
+            return;
+        }
+        try (Connection connection = connectionFactory.open();
+             PreparedStatement statement = connection.prepareStatement("UPDATE " + TABLE
+                     + " SET lease_expiry = ? WHERE uuid = ? AND owner = ?")) {
+            final long leaseExpiry = System.currentTimeMillis() + leaseTime;
+            for (final String uuid : running) {
+                statement.setLong(1, leaseExpiry);
+                statement.setString(2, uuid);
+                statement.setString(3, nodeId);
+                statement.executeUpdate();
+            }
+        } catch (final SQLException e) {
+            LOG.log(Level.WARNING, "Unable to renew the leases of claimed conversions", e);
+        }
+    }
+
+    /**
+     * Opens connections to the database holding the queue.
+     */
+    @FunctionalInterface
+    interface ConnectionFactory {
+
+        /**
+         * Opens a connection, which is closed after each use.
+         *
+         * @return the connection
+         * @throws SQLException if the database can not be reached
+         */
+        Connection open() throws SQLException;
+    }
+
+    /**
+     * Runs the conversions claimed by a node.
+     */
+    @FunctionalInterface
+    interface Handler {
+
+        /**
+         * Runs a conversion until it has finished or failed. The conversion is
+         * removed from the queue when this returns.
+         *
+         * @param job the conversion to run
+         */
+        void run(ClaimedJob job);
+    }
+
+    /**
+     * A conversion claimed from the queue.
+     */
+    static final class ClaimedJob {
+
+        private final String uuid;
+        private final File inputFile;
+        private final String contextUrl;
+        private final String tenant;
+        private final long submittedAt;
+        private final int attempt;
+
+        private ClaimedJob(final String uuid, final File inputFile, final String contextUrl, final String tenant,
+                           final long submittedAt, final int attempt) {
+            this.uuid = uuid;
+            this.inputFile = inputFile;
+            this.contextUrl = contextUrl;
+            this.tenant = tenant;
+            this.submittedAt = submittedAt;
+            this.attempt = attempt;
+        }
+
+        String getUuid() {
+            return uuid;
+        }
+
+        /**
+         * Returns the input of the conversion in the shared directory.
+         *
+         * @return the input file
+         */
+        File getInputFile() {
+            return inputFile;
+        }
+
+        String getContextUrl() {
+            return contextUrl;
+        }
+
+        /**
+         * Returns the tenant the conversion belongs to.
+         *
+         * @return the tenant, or null if it was not known when the conversion was accepted
+         */
+        String getTenant() {
+            return tenant;
+        }
+
+        long getSubmittedAt() {
+            return submittedAt;
+        }
+
+        /**
+         * Returns how many times the conversion has been claimed, including this claim.
+         *
+         * @return the attempt number, starting at 1
+         */
+        int getAttempt() {
+            return attempt;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.db.DBHandler;
+import com.idrsolutions.microservice.db.Database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the state of conversions to the database, holding back progress so
+ * conversion threads do not wait on a database write for every page.
+ * <p>
+ * Progress such as the number of pages converted changes many times during a
+ * conversion but is only read when a client polls, so updates are held in
+ * memory and written on a short interval. Only the latest value of each key
+ * of a conversion is written, however many times it changed in between.
+ * <p>
+ * Changes of state are written immediately. When a conversion finishes or
+ * fails, the values still held for it are written first, so a client never
+ * sees a final state before the values that led to it.
+ * <p>
+ * A conversion can be detached from the writer once this node no longer owns
+ * it, after which nothing more is written for it.
+ */
+final class JobStateWriter {
+
+    private static final Logger LOG = Logger.getLogger(JobStateWriter.class.getName());
+
+    private final ConcurrentHashMap<String, Map<String, String>> pending = new ConcurrentHashMap<>();
+    private final Set<String> detached = ConcurrentHashMap.newKeySet();
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Creates a writer.
+     *
+     * @param flushInterval the time (in milliseconds) values are held for before being written, 0 writes every
+     * value immediately
+     */
+    JobStateWriter(final long flushInterval) {
+        if (flushInterval > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "job-state-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Sets a custom value of a conversion, replacing any value of the same key
+     * not yet written.
+     *
+     * @param uuid the uuid of the conversion
+     * @param key the key of the value
+     * @param value the value
+     */
+    void setCustomValue(final String uuid, final String key, final String value) {
+        if (detached.contains(uuid)) {
+            return;
+        }
+        if (flusher == null) {
+            DBHandler.getInstance().setCustomValue(uuid, key, value);
+            return;
+        }
+        pending.compute(uuid, (id, values) -> {
+            final Map<String, String> result = values != null ? values : new LinkedHashMap<>();
+            result.put(key, value);
+            return result;
+        });
+    }
+
+    /**
+     * Sets the state of a conversion immediately. The values held for the
+     * conversion are written first when it reaches the final "processed" or
+     * "error" state.
+     * <p>
+     * States are not held, as the service outside this class also fails
+     * conversions, and a held state written late would overwrite that.
+     *
+     * @param uuid the uuid of the conversion
+     * @param state the state
+     */
+    void setState(final String uuid, final String state) {
+        synchronized (writeLock) {
+            if (detached.contains(uuid)) {
+                return;
+            }
+            if ("processed".equals(state) || "error".equals(state)) {
+                write(uuid, pending.remove(uuid));
+            }
+            DBHandler.getInstance().setState(uuid, state);
+        }
+    }
+
+    /**
+     * Fails a conversion immediately, after writing the values held for it.
+     *
+     * @param uuid the uuid of the conversion
+     * @param errorCode the error code
+     * @param errorMessage the error message
+     */
+    void setError(final String uuid, final int errorCode, final String errorMessage) {
+        synchronized (writeLock) {
+            if (detached.contains(uuid)) {
+                return;
+            }
+            write(uuid, pending.remove(uuid));
+            DBHandler.getInstance().setError(uuid, errorCode, errorMessage);
+        }
+    }
+
+    /**
+     * Stops writing the state of a conversion, dropping the values held for
+     * it. Used when the conversion is handed to another node while it is still
+     * running here, so the failure of the interrupted run does not overwrite
+     * the state written by the node that runs it next.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    void detach(final String uuid) {
+        synchronized (writeLock) {
+            detached.add(uuid);
+            pending.remove(uuid);
+        }
+    }
+
+    /**
+     * Returns whether a conversion has been detached from the writer.
+     *
+     * @param uuid the uuid of the conversion
+     * @return true if nothing more is written for the conversion
+     */
+    boolean isDetached(final String uuid) {
+        return detached.contains(uuid);
+    }
+
+    /**
+     * Writes every held value.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            for (final String uuid : pending.keySet()) {
+                write(uuid, pending.remove(uuid));
+            }
+        }
+    }
+
+    /**
+     * Stops the flush thread and writes every held value.
+     */
+    void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * Writes values removed from the held updates. Values are only changed
+     * inside {@link ConcurrentHashMap#compute}, so once removed they are no
+     * longer changed and are never seen half updated.
+     */
+    private static void write(final String uuid, final Map<String, String> values) {
+        if (values == null) {
+            return;
+        }
+        final Database database = DBHandler.getInstance();
+        try {
+            for (final Map.Entry<String, String> entry : values.entrySet()) {
+                database.setCustomValue(uuid, entry.getKey(), entry.getValue());
+            }
+        } catch (final RuntimeException e) {
+            // Progress is overwritten by later updates, so a failed write is not retried
+            LOG.log(Level.WARNING, "Failed to write the state of " + uuid, e);
+        }
+    }
+}
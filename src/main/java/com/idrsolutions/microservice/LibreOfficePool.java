@@ -0,0 +1,231 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.utils.ProcessUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts office documents to PDF using a fixed set of LibreOffice instances,
+ * each with its own user profile.
+ * <p>
+ * LibreOffice spends much of its startup time creating and migrating its user
+ * profile, and concurrent instances sharing a profile block each other. Each
+ * instance here keeps a profile that is initialised once and reused by every
+ * conversion it runs, and only one conversion uses an instance at a time.
+ * Instances are health checked when the pool starts and periodically while
+ * idle. An instance whose conversion fails, hangs past the timeout or whose
+ * health check fails has its profile rebuilt before it is used again.
+ */
+final class LibreOfficePool {
+
+    private static final Logger LOG = Logger.getLogger(LibreOfficePool.class.getName());
+
+    private final String libreOfficePath;
+    private final long timeout;
+    private final BlockingQueue<Instance> idleInstances = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "jpedal-libreoffice-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates the pool.
+     *
+     * @param libreOfficePath the LibreOffice executable
+     * @param profilesDir the directory the user profiles of the instances are kept in
+     * @param size the number of instances
+     * @param timeout the maximum duration of a conversion in milliseconds
+     */
+    LibreOfficePool(final String libreOfficePath, final File profilesDir, final int size, final long timeout) {
+        this.libreOfficePath = libreOfficePath;
+        this.timeout = timeout;
+        if (!profilesDir.isDirectory() && !profilesDir.mkdirs()) {
+            LOG.log(Level.SEVERE, "Failed to create LibreOffice profile directory: {0}", profilesDir.getAbsolutePath());
+        }
+        for (int i = 0; i < size; i++) {
+            idleInstances.add(new Instance(i, new File(profilesDir, "instance-" + i)));
+        }
+    }
+
+    /**
+     * Returns whether the LibreOffice executable can be run, either at the
+     * given path or, when it is a command name alone, from a directory on the
+     * PATH.
+     *
+     * @param libreOfficePath the LibreOffice executable
+     * @return true if the executable exists and can be run
+     */
+    static boolean isInstalled(final String libreOfficePath) {
+        final File executable = new File(libreOfficePath);
+        if (executable.isAbsolute() || libreOfficePath.indexOf(File.separatorChar) != -1 || libreOfficePath.indexOf('/') != -1) {
+            return executable.canExecute();
+        }
+        final String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (final String dir : path.split(File.pathSeparator)) {
+            if (new File(dir, libreOfficePath).canExecute() || new File(dir, libreOfficePath + ".exe").canExecute()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Initialises the profile of every instance in the background and schedules
+     * the periodic health checks of idle instances.
+     *
+     * @param healthCheckInterval the time in milliseconds between health checks
+     */
+    void start(final long healthCheckInterval) {
+        healthChecker.execute(this::checkIdleInstances);
+        healthChecker.scheduleWithFixedDelay(this::checkIdleInstances, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the health checks.
+     */
+    void shutdown() {
+        healthChecker.shutdownNow();
+    }
+
+    /**
+     * Converts an office document to PDF, waiting for an instance to become free
+     * if they are all busy. The timeout applies to the conversion alone, so time
+     * spent waiting for an instance does not count towards it.
+     *
+     * @param inputFile the office document to convert
+     * @param uuid the uuid of the conversion
+     * @param outputDir the directory the PDF is written to, named after the uuid
+     * @return the result of the conversion, using the same codes as LibreOfficeHelper
+     */
+    ProcessUtils.Result convertDocToPDF(final File inputFile, final String uuid, final File outputDir) {
+        final Instance instance;
+        try {
+            instance = idleInstances.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ProcessUtils.Result.ERROR;
+        }
+
+        try {
+            final ProcessUtils.Result result = instance.convert(inputFile, uuid, outputDir, timeout);
+            if (result != ProcessUtils.Result.SUCCESS) {
+                instance.reset();
+            }
+            return result;
+        } finally {
+            idleInstances.add(instance);
+        }
+    }
+
+    private void checkIdleInstances() {
+        final int idleCount = idleInstances.size();
+        for (int i = 0; i < idleCount; i++) {
+            final Instance instance = idleInstances.poll();
+            if (instance == null) {
+                return;
+            }
+            try {
+                if (!instance.isHealthy()) {
+                    LOG.log(Level.WARNING, "LibreOffice instance {0} failed its health check, rebuilding its profile", instance.id);
+                    instance.reset();
+                    if (!instance.isHealthy()) {
+                        LOG.log(Level.SEVERE, "LibreOffice instance {0} is still unhealthy after rebuilding its profile", instance.id);
+                    }
+                }
+            } finally {
+                idleInstances.add(instance);
+            }
+        }
+    }
+
+    private final class Instance {
+
+        private final int id;
+        private final File profileDir;
+
+        Instance(final int id, final File profileDir) {
+            this.id = id;
+            this.profileDir = profileDir;
+        }
+
+        ProcessUtils.Result convert(final File inputFile, final String uuid, final File outputDir, final long timeout) {
+            final String[] command = command("--convert-to", "pdf", "--outdir", outputDir.getAbsolutePath(), inputFile.getAbsolutePath());
+            final ProcessUtils.Result result = ProcessUtils.runProcess(command, inputFile.getParentFile(), uuid, "LibreOffice Conversion", timeout);
+            if (result != ProcessUtils.Result.SUCCESS) {
+                return result;
+            }
+
+            // LibreOffice names the output after the input file
+            final String inputName = inputFile.getName();
+            final int extensionIndex = inputName.lastIndexOf('.');
+            final String baseName = extensionIndex > 0 ? inputName.substring(0, extensionIndex) : inputName;
+            final File converted = new File(outputDir, baseName + ".pdf");
+            final File expected = new File(outputDir, uuid + ".pdf");
+            if (converted.exists() && !converted.equals(expected)) {
+                try {
+                    Files.move(converted.toPath(), expected.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (final IOException e) {
+                    LOG.log(Level.SEVERE, "Failed to rename LibreOffice output " + converted.getAbsolutePath(), e);
+                    return ProcessUtils.Result.ERROR;
+                }
+            }
+            return result;
+        }
+
+        boolean isHealthy() {
+            return ProcessUtils.runProcess(command("--terminate_after_init"), profileDir.getParentFile(),
+                    "libreoffice-health-" + id, "LibreOffice Health Check", timeout) == ProcessUtils.Result.SUCCESS;
+        }
+
+        /**
+         * Deletes the user profile so the next launch creates a clean one. A
+         * crashed or killed instance can leave its profile locked or corrupted.
+         */
+        void reset() {
+            MicroserviceUtils.deleteDirectory(profileDir);
+        }
+
+        private String[] command(final String... args) {
+            final List<String> command = new ArrayList<>(Arrays.asList(libreOfficePath,
+                    "-env:UserInstallation=" + profileDir.toURI(),
+                    "--headless", "--invisible", "--nologo", "--nodefault", "--norestore", "--nolockcheck"));
+            command.addAll(Arrays.asList(args));
+            return command.toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * A stand-in for an object store that keeps files in a local directory, for
+ * trying and testing multipart uploads without a cloud account.
+ * <p>
+ * Parts are written to a staging directory of their upload and joined into
+ * {@code <root>/<uuid>/<fileName>} when the upload completes, so a file only
+ * appears once it is whole, as it would in an object store.
+ */
+final class LocalObjectStore implements MultipartStorage {
+
+    private final File root;
+    private final File uploadsDir;
+
+    /**
+     * Creates a store keeping its files in the given directory.
+     *
+     * @param root the directory files are stored in
+     */
+    LocalObjectStore(final File root) {
+        this.root = root;
+        this.uploadsDir = new File(root, ".uploads");
+    }
+
+    @Override
+    public Upload startUpload(final String fileName, final String uuid) throws IOException {
+        final File target = new File(new File(root, uuid), fileName);
+        final File partsDir = new File(uploadsDir, UUID.randomUUID().toString());
+        Files.createDirectories(partsDir.toPath());
+        return new LocalUpload(target, partsDir);
+    }
+
+    private static final class LocalUpload implements Upload {
+
+        private final File target;
+        private final File partsDir;
+
+        LocalUpload(final File target, final File partsDir) {
+            this.target = target;
+            this.partsDir = partsDir;
+        }
+
+        @Override
+        public void uploadPart(final int partNumber, final byte[] data, final int length) throws IOException {
+            final Path part = new File(partsDir, String.valueOf(partNumber)).toPath();
+            final Path tempPart = new File(partsDir, partNumber + ".tmp").toPath();
+            try (FileChannel channel = FileChannel.open(tempPart, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tempPart, part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public String complete(final int partCount) throws IOException {
+            Files.createDirectories(target.getParentFile().toPath());
+            final Path tempTarget = new File(partsDir, "complete.tmp").toPath();
+            try (FileChannel out = FileChannel.open(tempTarget, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                    final Path part = new File(partsDir, String.valueOf(partNumber)).toPath();
+                    if (!Files.exists(part)) {
+                        throw new IOException("Part " + partNumber + " of " + target.getName() + " was not uploaded");
+                    }
+                    try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                        long position = 0;
+                        final long size = in.size();
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    }
+                }
+            }
+            Files.move(tempTarget, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            MicroserviceUtils.deleteDirectory(partsDir);
+            return target.toURI().toString();
+        }
+
+        @Override
+        public void abort() {
+            MicroserviceUtils.deleteDirectory(partsDir);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Exposes the conversion metrics in the Prometheus text format for scraping.
+ * See the API documentation for the metrics reported.
+ */
+@WebServlet(name = "metrics", urlPatterns = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        final PrintWriter writer = response.getWriter();
+
+        final ConversionMetrics metrics = (ConversionMetrics) getServletContext().getAttribute(JPedalServletContextListener.KEY_METRICS);
+        if (metrics != null) {
+            metrics.write(writer);
+        }
+
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        if (admissionController != null) {
+            ConversionMetrics.writeGauge(writer, "jpedal_queue_depth",
+                    "Conversions uploading, queued or running.", admissionController.getQueueDepth());
+        }
+
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        if (workerPool != null) {
+            ConversionMetrics.writeGauge(writer, "jpedal_scheduler_waiting",
+                    "Conversions and page ranges waiting for a worker.", workerPool.getScheduler().getQueueDepth());
+            ConversionMetrics.writeGauge(writer, "jpedal_conversions_waiting",
+                    "Conversions waiting for a conversion thread.", workerPool.getScheduler().getConversionsWaiting());
+            ConversionMetrics.writeGauge(writer, "jpedal_active_workers",
+                    "Workers running a conversion.", workerPool.getScheduler().getRunning());
+            ConversionMetrics.writeGauge(writer, "jpedal_worker_slots",
+                    "Conversions that can run at the same time.", workerPool.getConcurrency());
+        }
+
+        final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+        if (evictionManager != null) {
+            ConversionMetrics.writeGauge(writer, "jpedal_eviction_indexed_bytes",
+                    "Size of the files of finished conversions that can be evicted.", evictionManager.getTotalBytes());
+            ConversionMetrics.writeCounter(writer, "jpedal_evictions_total",
+                    "Conversions whose files were evicted to free space.", evictionManager.getEvictions());
+            ConversionMetrics.writeCounter(writer, "jpedal_eviction_reclaimed_bytes_total",
+                    "Bytes freed by evicting conversions.", evictionManager.getReclaimedBytes());
+        }
+
+        writer.flush();
+    }
+}
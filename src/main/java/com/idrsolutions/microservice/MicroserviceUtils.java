@@ -0,0 +1,75 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.json.Json;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the servlets and services of the microservice.
+ */
+final class MicroserviceUtils {
+
+    private static final Logger LOG = Logger.getLogger(MicroserviceUtils.class.getName());
+
+    private MicroserviceUtils() {
+    }
+
+    /**
+     * Sends an error response with a JSON body of the form
+     * {@code {"error": message}} that is not cached.
+     *
+     * @param response the response to send the error on
+     * @param status the HTTP status code
+     * @param message the error message
+     * @throws IOException if the response can not be written
+     */
+    static void sendError(final HttpServletResponse response, final int status, final String message) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(Json.createObjectBuilder().add("error", message).build().toString());
+    }
+
+    /**
+     * Deletes a directory and everything in it, logging rather than throwing
+     * if it can not be deleted.
+     *
+     * @param dir the directory to delete, which may not exist
+     */
+    static void deleteDirectory(final File dir) {
+        if (!dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete " + dir.getAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.IOException;
+
+/**
+ * Remote storage that accepts a file as a number of parts uploaded separately,
+ * in the style of the multipart uploads of object stores, so a file can be
+ * uploaded while it is still being written.
+ */
+interface MultipartStorage {
+
+    /**
+     * Starts the upload of a file.
+     *
+     * @param fileName the name of the file
+     * @param uuid the uuid of the conversion the file belongs to
+     * @return the upload to add parts to
+     * @throws IOException if the upload can not be started
+     */
+    Upload startUpload(String fileName, String uuid) throws IOException;
+
+    /**
+     * A file being uploaded. Parts may be uploaded concurrently and in any
+     * order, and form the file in the order of their part numbers.
+     */
+    interface Upload {
+
+        /**
+         * Uploads one part of the file.
+         *
+         * @param partNumber the number of the part, starting at 1
+         * @param data the content of the part
+         * @param length the number of bytes of data in the part
+         * @throws IOException if the part can not be uploaded
+         */
+        void uploadPart(int partNumber, byte[] data, int length) throws IOException;
+
+        /**
+         * Joins the uploaded parts into the file once every part has been uploaded.
+         *
+         * @param partCount the number of parts uploaded
+         * @return the url of the uploaded file
+         * @throws IOException if the file can not be completed
+         */
+        String complete(int partCount) throws IOException;
+
+        /**
+         * Discards the upload and any parts uploaded so far.
+         */
+        void abort();
+    }
+}
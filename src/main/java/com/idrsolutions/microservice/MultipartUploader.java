@@ -0,0 +1,262 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads output to a {@link MultipartStorage} while it is being written.
+ * <p>
+ * Output is cut into parts of a fixed size, and each part is uploaded on a
+ * background thread as soon as it is full, so the upload of a zip overlaps
+ * with the conversion producing it instead of starting once it is finished.
+ * Each upload has a bounded number of parts in flight. Writing blocks when
+ * that many parts are still uploading, which keeps the memory held in part
+ * buffers bounded as well.
+ */
+final class MultipartUploader {
+
+    private final MultipartStorage storage;
+    private final int partSize;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an uploader.
+     *
+     * @param storage the storage to upload to
+     * @param partSize the size in bytes of every part except the last
+     * @param maxInFlight the maximum number of parts of one upload being uploaded at once
+     */
+    MultipartUploader(final MultipartStorage storage, final int partSize, final int maxInFlight) {
+        this.storage = storage;
+        this.partSize = partSize;
+        this.maxInFlight = maxInFlight;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "multipart-upload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts uploading a file that is about to be written.
+     *
+     * @param fileName the name of the file
+     * @param uuid the uuid of the conversion the file belongs to
+     * @return the stream to write the file to, which completes the upload when closed
+     * @throws IOException if the upload can not be started
+     */
+    UploadStream start(final String fileName, final String uuid) throws IOException {
+        return new UploadStream(storage.startUpload(fileName, uuid));
+    }
+
+    /**
+     * Uploads a file that has already been written.
+     *
+     * @param file the file to upload
+     * @param fileName the name of the file
+     * @param uuid the uuid of the conversion the file belongs to
+     * @return the url of the uploaded file
+     * @throws IOException if the file can not be uploaded
+     */
+    String upload(final File file, final String fileName, final String uuid) throws IOException {
+        final UploadStream out = start(fileName, uuid);
+        try {
+            Files.copy(file.toPath(), out);
+            out.close();
+        } catch (final IOException e) {
+            out.abort();
+            throw e;
+        }
+        return out.getRemoteUrl();
+    }
+
+    /**
+     * Stops the upload threads, abandoning any uploads in progress.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A file being uploaded as it is written.
+     */
+    final class UploadStream extends OutputStream {
+
+        private final MultipartStorage.Upload upload;
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private byte[] buffer = new byte[partSize];
+        private int length;
+        private int partCount;
+        private long bytesWritten;
+        private volatile IOException failure;
+        private boolean closed;
+        private String remoteUrl;
+
+        private UploadStream(final MultipartStorage.Upload upload) {
+            this.upload = upload;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] data, int offset, int count) throws IOException {
+            checkOpen();
+            while (count > 0) {
+                final int copied = Math.min(count, buffer.length - length);
+                System.arraycopy(data, offset, buffer, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+                bytesWritten += copied;
+                if (length == buffer.length) {
+                    submitPart();
+                }
+            }
+        }
+
+        /**
+         * Uploads the last part and completes the upload once every part has
+         * been uploaded.
+         *
+         * @throws IOException if a part or the completion failed, in which case the upload is aborted
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            checkOpen();
+            try {
+                // An empty file is still uploaded as one empty part
+                if (length > 0 || partCount == 0) {
+                    submitPart();
+                }
+                awaitParts();
+                if (failure != null) {
+                    throw failure;
+                }
+                remoteUrl = upload.complete(partCount);
+                closed = true;
+            } catch (final IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Discards the upload. Parts still uploading are waited for first so
+         * none is left behind in the storage.
+         */
+        void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                awaitParts();
+            } catch (final InterruptedIOException e) {
+                // Aborted anyway, the storage discards parts that finish later
+            }
+            upload.abort();
+        }
+
+        /**
+         * Returns the url of the uploaded file.
+         *
+         * @return the url, or null if the upload has not completed
+         */
+        String getRemoteUrl() {
+            return remoteUrl;
+        }
+
+        /**
+         * Returns the number of bytes written to the upload.
+         *
+         * @return the size of the file
+         */
+        long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Upload is closed");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void submitPart() throws IOException {
+            try {
+                inFlight.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to upload a part");
+            }
+            final int partNumber = ++partCount;
+            final byte[] data = buffer;
+            final int dataLength = length;
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (failure == null) {
+                            upload.uploadPart(partNumber, data, dataLength);
+                        }
+                    } catch (final IOException e) {
+                        failure = e;
+                    } catch (final RuntimeException e) {
+                        failure = new IOException("Failed to upload part " + partNumber, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (final RuntimeException e) {
+                inFlight.release();
+                throw new IOException("Unable to upload part " + partNumber, e);
+            }
+            buffer = new byte[partSize];
+            length = 0;
+        }
+
+        private void awaitParts() throws InterruptedIOException {
+            try {
+                inFlight.acquire(maxInFlight);
+                inFlight.release(maxInFlight);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for parts to upload");
+            }
+        }
+    }
+}
@@ -18,12 +18,46 @@
  */
 package com.idrsolutions.microservice;
 
-import com.idrsolutions.microservice.utils.DefaultFileServlet;
+import com.idrsolutions.microservice.db.DBHandler;
 
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Serves the output of conversions from the output path.
+ * <p>
+ * Files are sent without being copied through the JVM where the container
+ * supports it, and through {@link FileChannel#transferTo} otherwise. Single
+ * byte ranges are supported so interrupted downloads can be resumed, and
+ * every response carries a strong ETag for conditional requests. The output
+ * of a processed conversion never changes, so it is marked as immutable for
+ * caches in front of the service.
+ */
 @WebServlet("/output/*")
-public class OutputFileServlet extends DefaultFileServlet {
+public class OutputFileServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(OutputFileServlet.class.getName());
+
+    // Request attributes Tomcat uses to send a file with the operating system's sendfile
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    static final long[] UNSATISFIABLE = new long[0];
 
     private static String basePath;
 
@@ -32,7 +66,219 @@ public class OutputFileServlet extends DefaultFileServlet {
     }
 
     @Override
-    protected String getBasePath() {
-        return basePath;
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        serve(request, response, true);
+    }
+
+    @Override
+    protected void doHead(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        serve(request, response, false);
+    }
+
+    private void serve(final HttpServletRequest request, final HttpServletResponse response,
+                       final boolean sendContent) throws IOException {
+        final File file = resolve(request.getPathInfo());
+        if (file == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+        if (evictionManager != null) {
+            evictionManager.touch(getUuid(request.getPathInfo()));
+        }
+
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        final String eTag = '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified) + '"';
+
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Cache-Control", isProcessed(request.getPathInfo()) ? IMMUTABLE_CACHE_CONTROL : "no-cache");
+
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final String contentType = getServletContext().getMimeType(file.getName());
+        response.setContentType(contentType != null ? contentType : "application/octet-stream");
+
+        long start = 0;
+        long end = length - 1;
+        final String range = request.getHeader("Range");
+        if (range != null && isRangeCurrent(request, eTag, lastModified)) {
+            final long[] byteRange = parseRange(range, length);
+            if (byteRange == UNSATISFIABLE) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (byteRange != null) {
+                start = byteRange[0];
+                end = byteRange[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + '-' + end + '/' + length);
+            }
+        }
+
+        final long contentLength = end - start + 1;
+        response.setContentLengthLong(contentLength);
+        if (!sendContent || contentLength == 0) {
+            return;
+        }
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = contentLength;
+            while (remaining > 0) {
+                final long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    /**
+     * Returns the output file a request path refers to, or null if it does not
+     * exist or is outside the output path.
+     */
+    private static File resolve(final String pathInfo) throws IOException {
+        if (basePath == null || pathInfo == null || pathInfo.length() < 2) {
+            return null;
+        }
+        final File base = new File(basePath).getCanonicalFile();
+        final File file = new File(base, pathInfo).getCanonicalFile();
+        // Hidden files such as the eviction index and page checkpoints are not output
+        if (!file.getPath().startsWith(base.getPath() + File.separator) || !file.isFile() || file.getName().startsWith(".")) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Returns whether a file is output of a processed conversion, which no
+     * longer changes. Output is named after the uuid of its conversion, or is
+     * in a directory named after it.
+     */
+    private static boolean isProcessed(final String pathInfo) {
+        final String uuid = getUuid(pathInfo);
+        try {
+            final Map<String, String> status = DBHandler.getInstance().getStatus(uuid);
+            return status != null && "processed".equals(status.get("state"));
+        } catch (final Exception e) {
+            LOG.log(Level.FINE, "Unable to read the state of " + uuid, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the uuid of the conversion a file is output of, from its name
+     * or the name of the directory it is in.
+     */
+    private static String getUuid(final String pathInfo) {
+        final int slashIndex = pathInfo.indexOf('/', 1);
+        final String name = slashIndex > 0 ? pathInfo.substring(1, slashIndex) : pathInfo.substring(1);
+        final int extensionIndex = name.lastIndexOf('.');
+        return extensionIndex > 0 ? name.substring(0, extensionIndex) : name;
+    }
+
+    /**
+     * Returns whether the client's copy is current, from If-None-Match or, when
+     * that is absent, If-Modified-Since.
+     */
+    private static boolean isNotModified(final HttpServletRequest request, final String eTag, final long lastModified) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (final String tag : ifNoneMatch.split(",")) {
+                final String trimmed = tag.trim();
+                // If-None-Match uses the weak comparison
+                if (trimmed.equals("*") || (trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed).equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Returns whether a Range request applies to the current file, which it
+     * does unless its If-Range names a different version.
+     */
+    private static boolean isRangeCurrent(final HttpServletRequest request, final String eTag, final long lastModified) {
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+            // If-Range uses the strong comparison, which a weak tag never matches
+            return ifRange.trim().equals(eTag);
+        }
+        final long ifRangeDate = getDateHeader(request, "If-Range");
+        return ifRangeDate != -1 && lastModified / 1000 == ifRangeDate / 1000;
+    }
+
+    private static long getDateHeader(final HttpServletRequest request, final String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (final IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Range header holding a single byte range.
+     *
+     * @param range the Range header
+     * @param length the length of the file
+     * @return the first and last byte of the range, {@link #UNSATISFIABLE} if the range lies outside the file,
+     * or null if the header is not a single byte range and the whole file is sent instead
+     */
+    static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // A suffix range of the last bytes of the file
+                final long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(0, length - suffixLength), length - 1};
+            }
+            final long start = Long.parseLong(first);
+            final long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[]{start, end};
+        } catch (final NumberFormatException e) {
+            return null;
+        }
     }
 }
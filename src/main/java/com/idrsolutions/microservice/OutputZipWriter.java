@@ -0,0 +1,295 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the output zip of a conversion while the conversion is running.
+ * <p>
+ * Pages are added to the archive as they are written, in page order, so the
+ * archive is complete as soon as the last page lands and its content does not
+ * depend on the order the pages finished in. Files in formats that are already
+ * compressed are stored rather than deflated again. Any other files in the
+ * output directory are added when the archive is finished.
+ * <p>
+ * The archive can also be uploaded as it is written, in which case the upload
+ * completes when the archive is finished and writing it to a local file is
+ * optional.
+ */
+final class OutputZipWriter {
+
+    private static final Logger LOG = Logger.getLogger(OutputZipWriter.class.getName());
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "png", "jpg", "jpeg", "jpx", "jp2", "j2k", "gif", "webp", "heic", "avif", "zip", "gz"));
+
+    private final Path outputDir;
+    private final File outputZip;
+    private final MultipartUploader.UploadStream upload;
+    private final ZipOutputStream zip;
+    private final Set<String> entryNames = new HashSet<>();
+
+    private final Map<Integer, File> pendingPages = new HashMap<>();
+    private int[] pageOrder = new int[0];
+    private int nextPageIndex;
+
+    private boolean finished;
+    private IOException failure;
+
+    /**
+     * Creates the output zip of a conversion.
+     *
+     * @param outputDir the output directory of the conversion, which entry names are relative to
+     * @param outputZip the zip file to write
+     * @throws IOException if the zip file can not be created
+     */
+    OutputZipWriter(final File outputDir, final File outputZip) throws IOException {
+        this(outputDir, outputZip, null);
+    }
+
+    /**
+     * Creates the output zip of a conversion, uploading it as it is written.
+     *
+     * @param outputDir the output directory of the conversion, which entry names are relative to
+     * @param outputZip the zip file to write
+     * @param upload the upload the archive is written to, or null to only write the zip file
+     * @throws IOException if the zip file can not be created
+     */
+    OutputZipWriter(final File outputDir, final File outputZip, final MultipartUploader.UploadStream upload) throws IOException {
+        this.outputDir = outputDir.toPath().toAbsolutePath();
+        this.outputZip = outputZip;
+        this.upload = upload;
+        final OutputStream out;
+        if (upload == null) {
+            out = new FileOutputStream(outputZip);
+        } else {
+            out = new TeeOutputStream(new FileOutputStream(outputZip), upload);
+        }
+        this.zip = new ZipOutputStream(new BufferedOutputStream(out, 65536));
+    }
+
+    /**
+     * Sets the pages the conversion will produce, in the order they are added to
+     * the archive.
+     *
+     * @param pages the page numbers of the conversion
+     */
+    synchronized void expectPages(final int[] pages) {
+        pageOrder = pages.clone();
+        nextPageIndex = 0;
+    }
+
+    /**
+     * Adds a converted page to the archive. Pages that arrive before the pages
+     * preceding them are held back until those pages have been added.
+     *
+     * @param page the page number
+     * @param file the output of the page
+     * @return true if this was the last expected page and the archive is now finished
+     * @throws IOException if the page can not be added to the archive
+     */
+    synchronized boolean addPage(final int page, final File file) throws IOException {
+        if (finished || failure != null) {
+            return false;
+        }
+        pendingPages.put(page, file);
+        try {
+            while (nextPageIndex < pageOrder.length && pendingPages.containsKey(pageOrder[nextPageIndex])) {
+                addFile(pendingPages.remove(pageOrder[nextPageIndex]));
+                nextPageIndex++;
+            }
+        } catch (final IOException e) {
+            failure = e;
+            throw e;
+        }
+
+        if (pageOrder.length > 0 && nextPageIndex == pageOrder.length) {
+            finish();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds any files in the output directory that are not in the archive yet,
+     * other than the page checkpoint, and closes it. Does nothing if the archive
+     * is already finished.
+     *
+     * @throws IOException if the files can not be added, the archive can not be closed or adding
+     * an earlier page failed
+     */
+    synchronized void finish() throws IOException {
+        if (failure != null) {
+            throw new IOException("Failed to add page to " + getName(), failure);
+        }
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        final List<Path> remaining;
+        try (Stream<Path> files = Files.walk(outputDir)) {
+            remaining = files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().equals(PageCheckpoint.FILE_NAME))
+                    .sorted().collect(Collectors.toList());
+        }
+        for (final Path file : remaining) {
+            if (!entryNames.contains(getEntryName(file))) {
+                addFile(file.toFile());
+            }
+        }
+        zip.close();
+    }
+
+    /**
+     * Returns whether the archive has been finished.
+     *
+     * @return true if the archive is complete
+     */
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Returns the upload the archive is written to.
+     *
+     * @return the upload, or null if the archive is not uploaded as it is written
+     */
+    MultipartUploader.UploadStream getUpload() {
+        return upload;
+    }
+
+    /**
+     * Closes and deletes the archive of a conversion that failed.
+     */
+    synchronized void abort() {
+        finished = true;
+        // Aborted before closing, as closing the upload would complete it
+        if (upload != null) {
+            upload.abort();
+        }
+        try {
+            zip.close();
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Failed to close " + getName(), e);
+        }
+        if (!outputZip.delete() && outputZip.exists()) {
+            LOG.log(Level.WARNING, "Failed to delete {0}", outputZip.getAbsolutePath());
+        }
+    }
+
+    private void addFile(final File file) throws IOException {
+        final String name = getEntryName(file.toPath());
+        if (!entryNames.add(name)) {
+            return;
+        }
+
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(file.lastModified());
+
+        final String fileName = file.getName();
+        final String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        if (COMPRESSED_EXTENSIONS.contains(extension)) {
+            final byte[] content = Files.readAllBytes(file.toPath());
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+            zip.putNextEntry(entry);
+            zip.write(content);
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+            zip.putNextEntry(entry);
+            Files.copy(file.toPath(), zip);
+        }
+        zip.closeEntry();
+    }
+
+    private String getName() {
+        return outputZip.getAbsolutePath();
+    }
+
+    private String getEntryName(final Path file) {
+        return outputDir.relativize(file.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Writes the archive to the local zip file and the upload at once.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final OutputStream first;
+        private final OutputStream second;
+
+        TeeOutputStream(final OutputStream first, final OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(final byte[] data, final int offset, final int length) throws IOException {
+            first.write(data, offset, length);
+            second.write(data, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                first.close();
+            } finally {
+                second.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the pages of a conversion that have been written to its output
+ * directory, so a conversion that times out, crashes or is interrupted by a
+ * restart continues from the pages it is missing when it is run again.
+ * <p>
+ * The checkpoint is a file in the output directory listing each converted
+ * page with its output file and size, appended to as pages are converted. A
+ * page is only resumed if its file is still there with the recorded size, and
+ * only by a conversion of the same pages of the same input. The output files
+ * of resumed pages are left untouched, so the output zip of a resumed
+ * conversion is the same as that of one that was never interrupted.
+ */
+final class PageCheckpoint {
+
+    /**
+     * The name of the checkpoint file in the output directory, which is left
+     * out of the output zip.
+     */
+    static final String FILE_NAME = ".checkpoint";
+
+    private static final Logger LOG = Logger.getLogger(PageCheckpoint.class.getName());
+
+    private final Path outputDir;
+    private final File file;
+    private Writer writer;
+
+    /**
+     * Creates the checkpoint of the conversion writing to the given directory.
+     *
+     * @param outputDir the output directory of the conversion
+     */
+    PageCheckpoint(final File outputDir) {
+        this.outputDir = outputDir.toPath().toAbsolutePath();
+        this.file = new File(outputDir, FILE_NAME);
+    }
+
+    /**
+     * Returns whether an earlier run of the conversion left a checkpoint.
+     *
+     * @param outputDir the output directory of the conversion
+     * @return true if the output directory holds a checkpoint
+     */
+    static boolean exists(final File outputDir) {
+        return new File(outputDir, FILE_NAME).isFile();
+    }
+
+    /**
+     * Reads the pages recorded by an earlier run of the conversion and starts
+     * recording the pages of this run.
+     *
+     * @param pages the pages of the conversion
+     * @param inputLength the size of the input of the conversion
+     * @return the pages already converted, in page order, with their output files
+     * @throws IOException if the checkpoint can not be written
+     */
+    synchronized Map<Integer, File> resume(final int[] pages, final long inputLength) throws IOException {
+        final String header = "jpedal-checkpoint " + inputLength + ' ' + Arrays.hashCode(pages);
+        final Map<Integer, File> completed = new TreeMap<>();
+        if (file.isFile()) {
+            final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                final Set<Integer> expected = new HashSet<>();
+                for (final int page : pages) {
+                    expected.add(page);
+                }
+                for (final String line : lines.subList(1, lines.size())) {
+                    readPage(line, expected, completed);
+                }
+            }
+        }
+
+        // Rewritten with the pages still valid, so the file does not grow with every run
+        final Path tempFile = new File(file.getParentFile(), FILE_NAME + ".tmp").toPath();
+        try (Writer out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            out.write(header);
+            out.write('\n');
+            for (final Map.Entry<Integer, File> entry : completed.entrySet()) {
+                writePage(out, entry.getKey(), entry.getValue());
+            }
+        }
+        Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = new BufferedWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.APPEND));
+        return completed;
+    }
+
+    /**
+     * Records a converted page. A page that can not be recorded is converted
+     * again if the conversion is resumed.
+     *
+     * @param page the page number
+     * @param pageFile the output of the page
+     */
+    synchronized void record(final int page, final File pageFile) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writePage(writer, page, pageFile);
+            writer.flush();
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Failed to record page " + page + " in " + file.getAbsolutePath(), e);
+            close();
+        }
+    }
+
+    /**
+     * Stops recording pages, keeping the checkpoint for a later run.
+     */
+    synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Failed to close " + file.getAbsolutePath(), e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Stops recording pages and deletes the checkpoint of a conversion that
+     * has completed.
+     */
+    synchronized void delete() {
+        close();
+        if (!file.delete() && file.exists()) {
+            LOG.log(Level.WARNING, "Failed to delete {0}", file.getAbsolutePath());
+        }
+    }
+
+    private void readPage(final String line, final Set<Integer> expected, final Map<Integer, File> completed) {
+        // A line cut short by a crash is ignored, and its page converted again
+        final String[] parts = line.split("\t");
+        if (parts.length != 3) {
+            return;
+        }
+        try {
+            final int page = Integer.parseInt(parts[0]);
+            final long size = Long.parseLong(parts[2]);
+            final File pageFile = outputDir.resolve(parts[1]).normalize().toFile();
+            if (expected.contains(page) && pageFile.toPath().startsWith(outputDir)
+                    && pageFile.isFile() && pageFile.length() == size) {
+                completed.put(page, pageFile);
+            }
+        } catch (final NumberFormatException e) {
+            LOG.log(Level.FINE, "Ignoring invalid checkpoint line {0}", line);
+        }
+    }
+
+    private void writePage(final Writer out, final int page, final File pageFile) throws IOException {
+        final String name = outputDir.relativize(pageFile.toPath().toAbsolutePath()).toString().replace(File.separatorChar, '/');
+        out.write(page + "\t" + name + '\t' + pageFile.length() + '\n');
+    }
+}
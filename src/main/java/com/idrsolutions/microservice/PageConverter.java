@@ -0,0 +1,240 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.image.JDeli;
+import org.jpedal.examples.images.ConvertPagesToImages;
+import org.jpedal.examples.text.ExtractTextAsWordlist;
+import org.jpedal.examples.text.ExtractTextInRectangle;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Converts a selection of pages of a PDF inside a {@link ConversionWorker}, reporting
+ * each page as soon as its output has been written.
+ * <p>
+ * Output is written to a directory named after the input file inside the output
+ * directory, with one file per page named after the page number, so that several
+ * workers converting different pages of the same document write to the same place.
+ */
+final class PageConverter {
+
+    static final String TYPE_IMAGES = "images";
+    static final String TYPE_PLAIN_TEXT = "plainText";
+    static final String TYPE_WORDLIST = "wordlist";
+
+    /**
+     * Receives each page once its output has been written.
+     */
+    interface PageCallback {
+        void pageConverted(int page, File file) throws IOException;
+    }
+
+    private PageConverter() {
+    }
+
+    /**
+     * Returns the file the output of the given page is written to.
+     *
+     * @param outputDir the output directory of the conversion
+     * @param inputName the file name of the input PDF
+     * @param page the page number, starting at 1
+     * @param extension the file extension of the page output
+     * @return the file the page output is written to
+     */
+    static File getPageFile(final File outputDir, final String inputName, final int page, final String extension) {
+        final int extensionIndex = inputName.lastIndexOf('.');
+        final String documentName = extensionIndex > 0 ? inputName.substring(0, extensionIndex) : inputName;
+        return new File(new File(outputDir, documentName), page + "." + extension);
+    }
+
+    /**
+     * Converts the given pages of a PDF.
+     *
+     * @param type the conversion to perform, one of {@link #TYPE_IMAGES}, {@link #TYPE_PLAIN_TEXT} or {@link #TYPE_WORDLIST}
+     * @param inputPdf the PDF to convert
+     * @param outputDir the output directory of the conversion
+     * @param format the image format, only used when converting to images
+     * @param scaling the page scaling, only used when converting to images
+     * @param maxWidth the maximum width in pixels of page images, or 0 for no limit
+     * @param maxHeight the maximum height in pixels of page images, or 0 for no limit
+     * @param password the password of the PDF, or an empty string if there is none
+     * @param pages the page numbers to convert
+     * @param pageWidths the width in points of each page, or 0 where it is not known
+     * @param pageHeights the height in points of each page, or 0 where it is not known
+     * @param callback notified as each page is written
+     * @throws Exception if the PDF can not be opened or a page can not be converted
+     */
+    static void convert(final String type, final File inputPdf, final File outputDir, final String format,
+                        final float scaling, final int maxWidth, final int maxHeight, final String password,
+                        final int[] pages, final float[] pageWidths, final float[] pageHeights,
+                        final PageCallback callback) throws Exception {
+        final String inputName = inputPdf.getName();
+        switch (type) {
+            case TYPE_IMAGES: {
+                final ConvertPagesToImages convert = new ConvertPagesToImages(inputPdf.getAbsolutePath());
+                convert.setPassword(password);
+                try {
+                    if (!convert.openPDFFile()) {
+                        throw new IOException("Unable to open " + inputPdf.getAbsolutePath());
+                    }
+                    convert.setPageScaling(scaling);
+                    final boolean bounded = maxWidth > 0 || maxHeight > 0;
+                    for (int i = 0; i < pages.length; i++) {
+                        final int page = pages[i];
+                        final File pageFile = getPageFile(outputDir, inputName, page, format);
+                        createParent(pageFile);
+                        if (bounded) {
+                            // Rendered at the size that fits when it is known, so larger pages are never rasterized in full
+                            convert.setPageScaling(getBoundedScaling(pageWidths[i], pageHeights[i], scaling, maxWidth, maxHeight));
+                        }
+                        BufferedImage image = convert.getPageAsImage(page, false);
+                        if (bounded) {
+                            image = fit(image, maxWidth, maxHeight);
+                        }
+                        JDeli.write(image, format, pageFile);
+                        callback.pageConverted(page, pageFile);
+                    }
+                } finally {
+                    convert.closePDFfile();
+                }
+                break;
+            }
+            case TYPE_PLAIN_TEXT: {
+                final ExtractTextInRectangle extract = new ExtractTextInRectangle(inputPdf.getAbsolutePath());
+                extract.setPassword(password);
+                try {
+                    if (!extract.openPDFFile()) {
+                        throw new IOException("Unable to open " + inputPdf.getAbsolutePath());
+                    }
+                    for (final int page : pages) {
+                        final File pageFile = getPageFile(outputDir, inputName, page, "txt");
+                        createParent(pageFile);
+                        final String text = extract.getTextOnPage(page);
+                        Files.write(pageFile.toPath(), (text != null ? text : "").getBytes(StandardCharsets.UTF_8));
+                        callback.pageConverted(page, pageFile);
+                    }
+                } finally {
+                    extract.closePDFfile();
+                }
+                break;
+            }
+            case TYPE_WORDLIST: {
+                final ExtractTextAsWordlist extract = new ExtractTextAsWordlist(inputPdf.getAbsolutePath());
+                extract.setPassword(password);
+                try {
+                    if (!extract.openPDFFile()) {
+                        throw new IOException("Unable to open " + inputPdf.getAbsolutePath());
+                    }
+                    for (final int page : pages) {
+                        final File pageFile = getPageFile(outputDir, inputName, page, "txt");
+                        createParent(pageFile);
+                        final List<String> words = extract.getWordsOnPage(page);
+                        Files.write(pageFile.toPath(), words, StandardCharsets.UTF_8);
+                        callback.pageConverted(page, pageFile);
+                    }
+                } finally {
+                    extract.closePDFfile();
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unrecognised page conversion type: " + type);
+        }
+    }
+
+    /**
+     * Returns the scaling a page is rendered at when its images are limited to
+     * the given size, which is the scaling setting for a page that already
+     * fits, so small pages are not enlarged, and the scaling that fits it
+     * otherwise.
+     *
+     * @param pageWidth the width of the page in points, or 0 if it is not known
+     * @param pageHeight the height of the page in points, or 0 if it is not known
+     * @param scaling the scaling setting of the conversion
+     * @param maxWidth the maximum width in pixels, or 0 for no limit
+     * @param maxHeight the maximum height in pixels, or 0 for no limit
+     * @return the scaling to render the page at
+     */
+    static float getBoundedScaling(final float pageWidth, final float pageHeight, final float scaling,
+                                   final int maxWidth, final int maxHeight) {
+        if (pageWidth <= 0 || pageHeight <= 0) {
+            return scaling;
+        }
+        return Math.min(scaling, getFitScaling(pageWidth, pageHeight, maxWidth, maxHeight));
+    }
+
+    /**
+     * Returns the scaling at which a page fits within the given size.
+     *
+     * @param pageWidth the width of the page in points
+     * @param pageHeight the height of the page in points
+     * @param maxWidth the maximum width in pixels, or 0 for no limit
+     * @param maxHeight the maximum height in pixels, or 0 for no limit
+     * @return the scaling that fits the page
+     */
+    static float getFitScaling(final float pageWidth, final float pageHeight, final int maxWidth, final int maxHeight) {
+        float scaling = Float.MAX_VALUE;
+        if (maxWidth > 0 && pageWidth > 0) {
+            scaling = Math.min(scaling, maxWidth / pageWidth);
+        }
+        if (maxHeight > 0 && pageHeight > 0) {
+            scaling = Math.min(scaling, maxHeight / pageHeight);
+        }
+        return scaling == Float.MAX_VALUE ? 1 : scaling;
+    }
+
+    /**
+     * Scales an image down to fit within the given size, for pages whose size
+     * was not known before they were rendered.
+     */
+    private static BufferedImage fit(final BufferedImage image, final int maxWidth, final int maxHeight) {
+        final float scale = getFitScaling(image.getWidth(), image.getHeight(), maxWidth, maxHeight);
+        if (scale >= 1) {
+            return image;
+        }
+        final int width = Math.max(1, Math.round(image.getWidth() * scale));
+        final int height = Math.max(1, Math.round(image.getHeight() * scale));
+        final BufferedImage fitted = new BufferedImage(width, height,
+                image.getType() != BufferedImage.TYPE_CUSTOM ? image.getType() : BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = fitted.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return fitted;
+    }
+
+    private static void createParent(final File file) throws IOException {
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent.getAbsolutePath());
+        }
+    }
+}
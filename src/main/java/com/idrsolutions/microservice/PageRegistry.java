@@ -0,0 +1,312 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.json.Json;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the pages each conversion has written so they can be served before the
+ * conversion finishes, and pushes page completion events to clients subscribed
+ * through {@link PageServlet}.
+ * <p>
+ * Events are written to subscribers on a separate thread so that a slow client
+ * never holds up a conversion. Jobs are forgotten once they have been complete
+ * for longer than the retention time, by which point their output has normally
+ * been removed by the file deletion service.
+ */
+final class PageRegistry {
+
+    private static final Logger LOG = Logger.getLogger(PageRegistry.class.getName());
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final long retention;
+    private final ExecutorService dispatcher = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "jpedal-page-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param retention the time in milliseconds a complete job is remembered for
+     */
+    PageRegistry(final long retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Starts tracking the pages of a conversion. A conversion that is run
+     * again starts afresh, and the event streams of the earlier run are ended.
+     *
+     * @param uuid the uuid of the conversion
+     */
+    void register(final String uuid) {
+        final long oldest = System.currentTimeMillis() - retention;
+        jobs.values().removeIf(job -> job.completedAt != 0 && job.completedAt < oldest);
+        final Job previous = jobs.put(uuid, new Job());
+        if (previous != null) {
+            for (final Subscriber subscriber : previous.subscribers) {
+                subscriber.end();
+            }
+            previous.subscribers.clear();
+        }
+    }
+
+    /**
+     * Records a page that has been written and notifies subscribers.
+     *
+     * @param uuid the uuid of the conversion
+     * @param page the page number
+     * @param file the output of the page
+     */
+    void pageConverted(final String uuid, final int page, final File file) {
+        final Job job = jobs.get(uuid);
+        if (job == null) {
+            return;
+        }
+        job.pages.put(page, file);
+        for (final Subscriber subscriber : job.subscribers) {
+            subscriber.sendPage(page);
+        }
+    }
+
+    /**
+     * Marks a conversion as complete and ends the event streams of its subscribers.
+     *
+     * @param uuid the uuid of the conversion
+     * @param state the final state of the conversion
+     */
+    void complete(final String uuid, final String state) {
+        final Job job = jobs.get(uuid);
+        if (job == null) {
+            return;
+        }
+        job.state = state;
+        job.completedAt = System.currentTimeMillis();
+        for (final Subscriber subscriber : job.subscribers) {
+            subscriber.finish(state);
+        }
+        job.subscribers.clear();
+    }
+
+    /**
+     * Returns the output of a page if it has been written.
+     *
+     * @param uuid the uuid of the conversion
+     * @param page the page number
+     * @return the output of the page, or null if the page has not been written
+     */
+    File getPage(final String uuid, final int page) {
+        final Job job = jobs.get(uuid);
+        return job != null ? job.pages.get(page) : null;
+    }
+
+    /**
+     * Returns whether the pages of a conversion are tracked.
+     *
+     * @param uuid the uuid of the conversion
+     * @return true if the conversion is known
+     */
+    boolean isKnown(final String uuid) {
+        return jobs.containsKey(uuid);
+    }
+
+    /**
+     * Subscribes a client to the page events of a conversion. Pages written
+     * before the client subscribed are sent straight away. The client is
+     * unsubscribed when its stream times out, fails or completes.
+     *
+     * @param uuid the uuid of the conversion
+     * @param asyncContext the async context of the event stream request
+     * @param pageUrl the url of the page endpoint for the conversion, page numbers are appended to it
+     * @return false if the conversion is not known
+     */
+    boolean subscribe(final String uuid, final AsyncContext asyncContext, final String pageUrl) {
+        final Job job = jobs.get(uuid);
+        if (job == null) {
+            return false;
+        }
+
+        final Subscriber subscriber = new Subscriber(asyncContext, pageUrl);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                unsubscribe(job, subscriber);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                unsubscribe(job, subscriber);
+                try {
+                    event.getAsyncContext().complete();
+                } catch (final IllegalStateException e) {
+                    LOG.log(Level.FINE, "Page event stream already completed", e);
+                }
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                unsubscribe(job, subscriber);
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+                // The stream is not restarted
+            }
+        });
+        job.subscribers.add(subscriber);
+        for (final Integer page : job.pages.keySet()) {
+            subscriber.sendPage(page);
+        }
+
+        final String state = job.state;
+        if (state != null) {
+            job.subscribers.remove(subscriber);
+            subscriber.finish(state);
+        }
+        return true;
+    }
+
+    private static void unsubscribe(final Job job, final Subscriber subscriber) {
+        job.subscribers.remove(subscriber);
+        subscriber.close();
+    }
+
+    /**
+     * Ends all event streams and stops the dispatcher.
+     */
+    void shutdown() {
+        for (final Job job : jobs.values()) {
+            for (final Subscriber subscriber : job.subscribers) {
+                subscriber.end();
+            }
+        }
+        dispatcher.shutdown();
+    }
+
+    private static final class Job {
+
+        private final Map<Integer, File> pages = new ConcurrentSkipListMap<>();
+        private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private volatile String state;
+        private volatile long completedAt;
+    }
+
+    private final class Subscriber {
+
+        private final AsyncContext asyncContext;
+        private final String pageUrl;
+        private final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+        private final Set<Integer> sentPages = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean ended;
+        private volatile boolean closed;
+
+        Subscriber(final AsyncContext asyncContext, final String pageUrl) {
+            this.asyncContext = asyncContext;
+            this.pageUrl = pageUrl;
+        }
+
+        void sendPage(final int page) {
+            if (sentPages.add(page)) {
+                events.add("event: page\ndata: " + Json.createObjectBuilder()
+                        .add("page", page)
+                        .add("url", pageUrl + page)
+                        .build() + "\n\n");
+                schedule();
+            }
+        }
+
+        void finish(final String state) {
+            if (finished.compareAndSet(false, true)) {
+                events.add("event: complete\ndata: " + Json.createObjectBuilder()
+                        .add("state", state)
+                        .build() + "\n\n");
+                end();
+            }
+        }
+
+        void end() {
+            ended = true;
+            schedule();
+        }
+
+        /**
+         * Stops writing to the stream, once the container has ended it.
+         */
+        void close() {
+            closed = true;
+            events.clear();
+        }
+
+        private void schedule() {
+            if (draining.compareAndSet(false, true)) {
+                dispatcher.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                if (!closed) {
+                    final PrintWriter writer = asyncContext.getResponse().getWriter();
+                    final Iterator<String> iterator = events.iterator();
+                    while (iterator.hasNext()) {
+                        writer.write(iterator.next());
+                        iterator.remove();
+                    }
+                    writer.flush();
+                    if (writer.checkError()) {
+                        throw new IOException("Client disconnected");
+                    }
+                    if (ended) {
+                        closed = true;
+                        asyncContext.complete();
+                    }
+                }
+            } catch (final IOException | IllegalStateException e) {
+                LOG.log(Level.FINE, "Page event stream closed", e);
+                closed = true;
+                events.clear();
+            } finally {
+                draining.set(false);
+            }
+            if (!closed && (!events.isEmpty() || ended)) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Serves the output of individual pages while a conversion is still running,
+ * and streams page completion events as server-sent events. See the API
+ * documentation for more information on how to interact with this servlet.
+ */
+@WebServlet(name = "page", urlPatterns = "/page/*", asyncSupported = true)
+public class PageServlet extends HttpServlet {
+
+    private static final String EVENTS = "events";
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String pathInfo = request.getPathInfo();
+        final String[] parts = pathInfo != null ? pathInfo.substring(1).split("/") : new String[0];
+        if (parts.length != 2) {
+            MicroserviceUtils.sendError(response, 404, "Expected /page/[uuid]/[page] or /page/[uuid]/events");
+            return;
+        }
+
+        final String uuid = parts[0];
+        final PageRegistry pageRegistry = (PageRegistry) getServletContext().getAttribute(JPedalServletContextListener.KEY_PAGE_REGISTRY);
+        if (!pageRegistry.isKnown(uuid)) {
+            MicroserviceUtils.sendError(response, 404, "Unknown uuid " + uuid);
+            return;
+        }
+
+        if (EVENTS.equals(parts[1])) {
+            streamEvents(request, response, pageRegistry, uuid);
+            return;
+        }
+
+        final int page;
+        try {
+            page = Integer.parseInt(parts[1]);
+        } catch (final NumberFormatException e) {
+            MicroserviceUtils.sendError(response, 404, "Invalid page number " + parts[1]);
+            return;
+        }
+
+        final File file = pageRegistry.getPage(uuid, page);
+        if (file == null || !file.isFile()) {
+            MicroserviceUtils.sendError(response, 404, "Page " + page + " is not available");
+            return;
+        }
+
+        final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+        if (evictionManager != null) {
+            evictionManager.touch(uuid);
+        }
+
+        final String contentType = getServletContext().getMimeType(file.getName());
+        response.setContentType(contentType != null ? contentType : "application/octet-stream");
+        response.setContentLengthLong(file.length());
+        // Page output never changes once written
+        response.setHeader("Cache-Control", "private, max-age=86400, immutable");
+        Files.copy(file.toPath(), response.getOutputStream());
+    }
+
+    private void streamEvents(final HttpServletRequest request, final HttpServletResponse response,
+                              final PageRegistry pageRegistry, final String uuid) throws IOException {
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Accel-Buffering", "no");
+        response.flushBuffer();
+
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_MAX_CONVERSION_DURATION)));
+
+        final String eventsUrl = request.getRequestURL().toString();
+        final String pageUrl = eventsUrl.substring(0, eventsUrl.length() - EVENTS.length());
+        if (!pageRegistry.subscribe(uuid, asyncContext, pageUrl)) {
+            asyncContext.complete();
+        }
+    }
+}
@@ -0,0 +1,872 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the page count, encryption state and page sizes of a PDF without
+ * setting up a decoder.
+ * <p>
+ * The file is memory mapped and only the trailer, the cross reference
+ * sections and the objects of the page tree are parsed. Classic cross
+ * reference tables, cross reference streams and object streams are supported.
+ * Any file the probe can not make sense of, such as a damaged file that
+ * needs repairing, results in an IOException so that the caller can fall
+ * back to opening it with JPedal.
+ */
+final class PdfProbe {
+
+    /**
+     * How far from the end of the file to look for the startxref keyword.
+     */
+    private static final int TRAILER_SEARCH_LENGTH = 4096;
+
+    private static final int MAX_PAGE_TREE_DEPTH = 256;
+
+    /**
+     * How many times the size of the file a compressed stream may inflate to,
+     * far beyond what cross reference and object streams need.
+     */
+    private static final int MAX_INFLATION = 32;
+
+    private static final Object NULL = new Object();
+
+    private final ByteBuffer file;
+    private final Map<Integer, long[]> xref = new HashMap<>();
+    private final Map<Integer, Object> objects = new HashMap<>();
+    private final Map<Integer, ObjectStream> objectStreams = new HashMap<>();
+    private Map<String, Object> trailer;
+
+    private PdfProbe(final ByteBuffer file) {
+        this.file = file;
+    }
+
+    /**
+     * Probes the given PDF.
+     *
+     * @param pdf the PDF to probe
+     * @return the page count, encryption state and page sizes of the PDF
+     * @throws IOException if the file can not be read or its structure can not be parsed
+     */
+    static Info probe(final File pdf) throws IOException {
+        try (FileChannel channel = FileChannel.open(pdf.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large to probe");
+            }
+            return new PdfProbe(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)).read();
+        } catch (final RuntimeException e) {
+            throw new IOException("Unable to parse PDF structure", e);
+        }
+    }
+
+    private Info read() throws IOException {
+        readCrossReferences(findStartXref());
+
+        if (trailer.containsKey("Encrypt")) {
+            return new Info(-1, true, new float[0], new float[0]);
+        }
+
+        final Map<String, Object> catalog = asDictionary(resolve(trailer.get("Root")));
+        final Object pagesRoot = catalog.get("Pages");
+        if (pagesRoot == null) {
+            throw new IOException("Document catalog has no page tree");
+        }
+        return readPageTree(pagesRoot);
+    }
+
+    private int findStartXref() throws IOException {
+        final byte[] keyword = "startxref".getBytes(StandardCharsets.US_ASCII);
+        final int end = file.limit();
+        final int start = Math.max(0, end - TRAILER_SEARCH_LENGTH);
+        for (int i = end - keyword.length; i >= start; i--) {
+            boolean match = true;
+            for (int j = 0; j < keyword.length && match; j++) {
+                match = file.get(i + j) == keyword[j];
+            }
+            if (match) {
+                final Lexer lexer = new Lexer(file, i + keyword.length);
+                return (int) lexer.readLong();
+            }
+        }
+        throw new IOException("startxref not found");
+    }
+
+    private void readCrossReferences(final int startXref) throws IOException {
+        final Set<Integer> visited = new HashSet<>();
+        final Deque<Integer> sections = new ArrayDeque<>();
+        sections.push(startXref);
+
+        while (!sections.isEmpty()) {
+            final int offset = sections.pop();
+            if (!visited.add(offset) || offset < 0 || offset >= file.limit()) {
+                continue;
+            }
+
+            final Lexer lexer = new Lexer(file, offset);
+            final Map<String, Object> sectionTrailer;
+            if (lexer.peekKeyword("xref")) {
+                lexer.readKeyword();
+                sectionTrailer = readXrefTable(lexer);
+                final Object xrefStream = sectionTrailer.get("XRefStm");
+                if (xrefStream instanceof Number) {
+                    // Hybrid files list some objects only in the stream, which takes precedence over /Prev
+                    sections.push(((Number) xrefStream).intValue());
+                }
+            } else {
+                sectionTrailer = readXrefStream(lexer);
+            }
+
+            if (trailer == null) {
+                trailer = sectionTrailer;
+            } else {
+                for (final Map.Entry<String, Object> entry : sectionTrailer.entrySet()) {
+                    trailer.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+
+            final Object prev = sectionTrailer.get("Prev");
+            if (prev instanceof Number) {
+                sections.addLast(((Number) prev).intValue());
+            }
+        }
+
+        if (trailer == null || !trailer.containsKey("Root")) {
+            throw new IOException("Trailer has no document catalog");
+        }
+    }
+
+    private Map<String, Object> readXrefTable(final Lexer lexer) throws IOException {
+        while (!lexer.peekKeyword("trailer")) {
+            final int first = (int) lexer.readLong();
+            final int count = (int) lexer.readLong();
+            for (int i = 0; i < count; i++) {
+                final long offset = lexer.readLong();
+                final long generation = lexer.readLong();
+                final String type = lexer.readKeyword();
+                if ("n".equals(type)) {
+                    xref.putIfAbsent(first + i, new long[]{1, offset, generation});
+                } else if ("f".equals(type)) {
+                    xref.putIfAbsent(first + i, new long[]{0, 0, 0});
+                } else {
+                    throw new IOException("Invalid cross reference entry type " + type);
+                }
+            }
+        }
+        lexer.readKeyword();
+        return asDictionary(lexer.readObject());
+    }
+
+    private Map<String, Object> readXrefStream(final Lexer lexer) throws IOException {
+        final Object object = readIndirectObject(lexer, -1, -1);
+        if (!(object instanceof Stream)) {
+            throw new IOException("Cross reference offset does not point at a table or stream");
+        }
+        final Stream stream = (Stream) object;
+        final byte[] data = decode(stream);
+
+        final List<Object> widthList = asArray(stream.dictionary.get("W"));
+        final int[] widths = new int[3];
+        for (int i = 0; i < 3; i++) {
+            widths[i] = ((Number) widthList.get(i)).intValue();
+        }
+        final int entryLength = widths[0] + widths[1] + widths[2];
+
+        final List<Object> index = stream.dictionary.containsKey("Index")
+                ? asArray(stream.dictionary.get("Index"))
+                : List.of(0, stream.dictionary.get("Size"));
+
+        int position = 0;
+        for (int i = 0; i + 1 < index.size(); i += 2) {
+            final int first = ((Number) index.get(i)).intValue();
+            final int count = ((Number) index.get(i + 1)).intValue();
+            for (int j = 0; j < count; j++) {
+                if (position + entryLength > data.length) {
+                    throw new IOException("Cross reference stream is truncated");
+                }
+                final long type = widths[0] == 0 ? 1 : readField(data, position, widths[0]);
+                final long field2 = readField(data, position + widths[0], widths[1]);
+                final long field3 = readField(data, position + widths[0] + widths[1], widths[2]);
+                xref.putIfAbsent(first + j, new long[]{type, field2, field3});
+                position += entryLength;
+            }
+        }
+        return stream.dictionary;
+    }
+
+    private static long readField(final byte[] data, final int offset, final int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private Info readPageTree(final Object pagesRoot) throws IOException {
+        final List<float[]> sizes = new ArrayList<>();
+        final Set<Integer> visited = new HashSet<>();
+        final Deque<PageNode> nodes = new ArrayDeque<>();
+        nodes.push(new PageNode(pagesRoot, null, 0, 0));
+
+        while (!nodes.isEmpty()) {
+            final PageNode node = nodes.pop();
+            if (node.depth > MAX_PAGE_TREE_DEPTH) {
+                throw new IOException("Page tree is too deep");
+            }
+            if (node.reference instanceof Reference && !visited.add(((Reference) node.reference).number)) {
+                throw new IOException("Page tree contains a cycle");
+            }
+
+            final Map<String, Object> dictionary = asDictionary(resolve(node.reference));
+            final Object mediaBox = dictionary.containsKey("MediaBox") ? resolve(dictionary.get("MediaBox")) : node.mediaBox;
+            final Object rotateValue = resolve(dictionary.get("Rotate"));
+            final int rotate = rotateValue instanceof Number ? ((Number) rotateValue).intValue() : node.rotate;
+
+            final Object kids = resolve(dictionary.get("Kids"));
+            if (kids instanceof List && !"Page".equals(nameOf(dictionary.get("Type")))) {
+                final List<?> kidList = (List<?>) kids;
+                // Pushed in reverse so pages are visited in document order
+                for (int i = kidList.size() - 1; i >= 0; i--) {
+                    nodes.push(new PageNode(kidList.get(i), mediaBox, rotate, node.depth + 1));
+                }
+            } else {
+                sizes.add(pageSize(mediaBox, rotate));
+            }
+        }
+
+        if (sizes.isEmpty()) {
+            throw new IOException("Page tree contains no pages");
+        }
+
+        final float[] widths = new float[sizes.size()];
+        final float[] heights = new float[sizes.size()];
+        for (int i = 0; i < sizes.size(); i++) {
+            widths[i] = sizes.get(i)[0];
+            heights[i] = sizes.get(i)[1];
+        }
+        return new Info(sizes.size(), false, widths, heights);
+    }
+
+    private float[] pageSize(final Object mediaBox, final int rotate) throws IOException {
+        // Letter size is the default when a page has no media box
+        float width = 612;
+        float height = 792;
+        if (mediaBox != null) {
+            final List<Object> box = asArray(mediaBox);
+            if (box.size() == 4) {
+                width = Math.abs(asNumber(resolve(box.get(2))) - asNumber(resolve(box.get(0))));
+                height = Math.abs(asNumber(resolve(box.get(3))) - asNumber(resolve(box.get(1))));
+            }
+        }
+        return (rotate / 90) % 2 != 0 ? new float[]{height, width} : new float[]{width, height};
+    }
+
+    private Object resolve(final Object value) throws IOException {
+        if (!(value instanceof Reference)) {
+            return value;
+        }
+
+        final int number = ((Reference) value).number;
+        final Object cached = objects.get(number);
+        if (cached != null) {
+            return cached == NULL ? null : cached;
+        }
+
+        final long[] entry = xref.get(number);
+        final Object object;
+        if (entry == null || entry[0] == 0) {
+            object = null;
+        } else if (entry[0] == 1) {
+            object = readIndirectObject(new Lexer(file, (int) entry[1]), number, entry[2]);
+        } else if (entry[0] == 2) {
+            object = readCompressedObject((int) entry[1], (int) entry[2]);
+        } else {
+            object = null;
+        }
+
+        objects.put(number, object != null ? object : NULL);
+        return object;
+    }
+
+    /**
+     * Reads the object at the position of the lexer, checking that it is the
+     * object the cross reference entry was for, unless the number is -1.
+     */
+    private Object readIndirectObject(final Lexer lexer, final int number, final long generation) throws IOException {
+        final long objectNumber = lexer.readLong();
+        final long objectGeneration = lexer.readLong();
+        if (number != -1 && (objectNumber != number || objectGeneration != generation)) {
+            throw new IOException("Expected object " + number + ' ' + generation + " but found " + objectNumber + ' '
+                    + objectGeneration + " at offset " + lexer.position);
+        }
+        if (!"obj".equals(lexer.readKeyword())) {
+            throw new IOException("Expected obj keyword at offset " + lexer.position);
+        }
+        final Object object = lexer.readObject();
+        if (object instanceof Map && lexer.peekKeyword("stream")) {
+            lexer.readKeyword();
+            lexer.skipStreamEol();
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> dictionary = (Map<String, Object>) object;
+            final int length = (int) asNumber(resolve(dictionary.get("Length")));
+            return new Stream(dictionary, lexer.buffer, lexer.position, length);
+        }
+        return object;
+    }
+
+    private Object readCompressedObject(final int streamNumber, final int index) throws IOException {
+        ObjectStream objectStream = objectStreams.get(streamNumber);
+        if (objectStream == null) {
+            final Object object = resolve(new Reference(streamNumber));
+            if (!(object instanceof Stream)) {
+                throw new IOException("Object stream " + streamNumber + " not found");
+            }
+            final Stream stream = (Stream) object;
+            final int count = (int) asNumber(stream.dictionary.get("N"));
+            final int first = (int) asNumber(stream.dictionary.get("First"));
+            final byte[] data = decode(stream);
+            final Lexer lexer = new Lexer(ByteBuffer.wrap(data), 0);
+            final int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                lexer.readLong();
+                offsets[i] = first + (int) lexer.readLong();
+            }
+            objectStream = new ObjectStream(data, offsets);
+            objectStreams.put(streamNumber, objectStream);
+        }
+
+        if (index < 0 || index >= objectStream.offsets.length) {
+            throw new IOException("Object index " + index + " out of range in object stream " + streamNumber);
+        }
+        return new Lexer(ByteBuffer.wrap(objectStream.data), objectStream.offsets[index]).readObject();
+    }
+
+    private byte[] decode(final Stream stream) throws IOException {
+        final byte[] raw = new byte[stream.length];
+        final ByteBuffer source = stream.buffer.duplicate();
+        source.position(stream.offset);
+        source.get(raw);
+
+        final Object filter = resolve(stream.dictionary.get("Filter"));
+        final String filterName;
+        if (filter == null) {
+            return raw;
+        } else if (filter instanceof List && ((List<?>) filter).size() == 1) {
+            filterName = nameOf(((List<?>) filter).get(0));
+        } else {
+            filterName = nameOf(filter);
+        }
+        if (!"FlateDecode".equals(filterName)) {
+            throw new IOException("Unsupported stream filter " + filter);
+        }
+
+        final byte[] inflated = inflate(raw, (int) Math.min(Integer.MAX_VALUE - 8, (long) file.capacity() * MAX_INFLATION));
+
+        Object parameters = resolve(stream.dictionary.get("DecodeParms"));
+        if (parameters instanceof List) {
+            parameters = ((List<?>) parameters).isEmpty() ? null : resolve(((List<?>) parameters).get(0));
+        }
+        if (parameters instanceof Map) {
+            final Map<?, ?> parameterMap = (Map<?, ?>) parameters;
+            final Object predictor = parameterMap.get("Predictor");
+            if (predictor instanceof Number && ((Number) predictor).intValue() >= 10) {
+                final Object columns = parameterMap.get("Columns");
+                return removePngPredictor(inflated, columns instanceof Number ? ((Number) columns).intValue() : 1);
+            } else if (predictor instanceof Number && ((Number) predictor).intValue() > 1) {
+                throw new IOException("Unsupported predictor " + predictor);
+            }
+        }
+        return inflated;
+    }
+
+    /**
+     * Inflates a compressed stream, failing once it grows past the given size
+     * so that a stream crafted to inflate without end is left to JPedal.
+     */
+    private static byte[] inflate(final byte[] data, final int maxSize) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxSize, data.length * 4L));
+            final byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                if (out.size() + count > maxSize) {
+                    throw new IOException("Compressed stream inflates to more than " + maxSize + " bytes");
+                }
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed stream", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reverses the PNG predictors used by cross reference and object streams,
+     * which always have one byte per pixel.
+     */
+    private static byte[] removePngPredictor(final byte[] data, final int columns) throws IOException {
+        final int rowLength = columns + 1;
+        if (data.length % rowLength != 0) {
+            throw new IOException("Predicted data is not a whole number of rows");
+        }
+        final int rows = data.length / rowLength;
+        final byte[] out = new byte[rows * columns];
+        final byte[] previous = new byte[columns];
+        for (int row = 0; row < rows; row++) {
+            final int type = data[row * rowLength];
+            final int in = row * rowLength + 1;
+            final int outRow = row * columns;
+            for (int i = 0; i < columns; i++) {
+                final int raw = data[in + i] & 0xff;
+                final int left = i > 0 ? out[outRow + i - 1] & 0xff : 0;
+                final int up = previous[i] & 0xff;
+                final int upLeft = i > 0 ? previous[i - 1] & 0xff : 0;
+                final int value;
+                switch (type) {
+                    case 0:
+                        value = raw;
+                        break;
+                    case 1:
+                        value = raw + left;
+                        break;
+                    case 2:
+                        value = raw + up;
+                        break;
+                    case 3:
+                        value = raw + ((left + up) >> 1);
+                        break;
+                    case 4:
+                        value = raw + paeth(left, up, upLeft);
+                        break;
+                    default:
+                        throw new IOException("Invalid PNG predictor " + type);
+                }
+                out[outRow + i] = (byte) value;
+            }
+            System.arraycopy(out, outRow, previous, 0, columns);
+        }
+        return out;
+    }
+
+    private static int paeth(final int left, final int up, final int upLeft) {
+        final int estimate = left + up - upLeft;
+        final int distanceLeft = Math.abs(estimate - left);
+        final int distanceUp = Math.abs(estimate - up);
+        final int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asDictionary(final Object object) throws IOException {
+        if (object instanceof Map) {
+            return (Map<String, Object>) object;
+        } else if (object instanceof Stream) {
+            return ((Stream) object).dictionary;
+        }
+        throw new IOException("Expected a dictionary but found " + object);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asArray(final Object object) throws IOException {
+        if (object instanceof List) {
+            return (List<Object>) object;
+        }
+        throw new IOException("Expected an array but found " + object);
+    }
+
+    private static float asNumber(final Object object) throws IOException {
+        if (object instanceof Number) {
+            return ((Number) object).floatValue();
+        }
+        throw new IOException("Expected a number but found " + object);
+    }
+
+    private static String nameOf(final Object object) {
+        return object instanceof Name ? ((Name) object).value : null;
+    }
+
+    /**
+     * The structure of a PDF as read by the probe.
+     */
+    static final class Info {
+
+        private final int pageCount;
+        private final boolean encrypted;
+        private final float[] pageWidths;
+        private final float[] pageHeights;
+
+        Info(final int pageCount, final boolean encrypted, final float[] pageWidths, final float[] pageHeights) {
+            this.pageCount = pageCount;
+            this.encrypted = encrypted;
+            this.pageWidths = pageWidths;
+            this.pageHeights = pageHeights;
+        }
+
+        /**
+         * @return the number of pages, or -1 if the document is encrypted
+         */
+        int getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * @return true if the document is encrypted, in which case no page information is available
+         */
+        boolean isEncrypted() {
+            return encrypted;
+        }
+
+        /**
+         * @param page the page number, starting at 1
+         * @return the width of the page in points, taking its rotation into account
+         */
+        float getPageWidth(final int page) {
+            return pageWidths[page - 1];
+        }
+
+        /**
+         * @param page the page number, starting at 1
+         * @return the height of the page in points, taking its rotation into account
+         */
+        float getPageHeight(final int page) {
+            return pageHeights[page - 1];
+        }
+
+        /**
+         * @return the area of the largest page in square points
+         */
+        float getMaxPageArea() {
+            float max = 0;
+            for (int i = 0; i < pageWidths.length; i++) {
+                max = Math.max(max, pageWidths[i] * pageHeights[i]);
+            }
+            return max;
+        }
+    }
+
+    private static final class Name {
+
+        private final String value;
+
+        Name(final String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return '/' + value;
+        }
+    }
+
+    private static final class Reference {
+
+        private final int number;
+
+        Reference(final int number) {
+            this.number = number;
+        }
+    }
+
+    private static final class Stream {
+
+        private final Map<String, Object> dictionary;
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final int length;
+
+        Stream(final Map<String, Object> dictionary, final ByteBuffer buffer, final int offset, final int length) {
+            this.dictionary = dictionary;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class ObjectStream {
+
+        private final byte[] data;
+        private final int[] offsets;
+
+        ObjectStream(final byte[] data, final int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+        }
+    }
+
+    private static final class PageNode {
+
+        private final Object reference;
+        private final Object mediaBox;
+        private final int rotate;
+        private final int depth;
+
+        PageNode(final Object reference, final Object mediaBox, final int rotate, final int depth) {
+            this.reference = reference;
+            this.mediaBox = mediaBox;
+            this.rotate = rotate;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Reads PDF objects from a buffer. Strings are skipped rather than decoded
+     * as nothing the probe needs is stored in a string.
+     */
+    private static final class Lexer {
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        Lexer(final ByteBuffer buffer, final int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        Object readObject() throws IOException {
+            skipWhitespace();
+            final int b = peek();
+            switch (b) {
+                case '<':
+                    if (peek(1) == '<') {
+                        position += 2;
+                        return readDictionary();
+                    }
+                    skipPast('>');
+                    return "";
+                case '[':
+                    position++;
+                    final List<Object> array = new ArrayList<>();
+                    while (true) {
+                        skipWhitespace();
+                        if (peek() == ']') {
+                            position++;
+                            return array;
+                        }
+                        array.add(readObject());
+                    }
+                case '(':
+                    skipLiteralString();
+                    return "";
+                case '/':
+                    position++;
+                    return new Name(readRegular());
+                default:
+                    if (isNumberStart(b)) {
+                        return readNumberOrReference();
+                    }
+                    final String keyword = readRegular();
+                    switch (keyword) {
+                        case "true":
+                            return Boolean.TRUE;
+                        case "false":
+                            return Boolean.FALSE;
+                        case "null":
+                            return null;
+                        default:
+                            throw new IOException("Unexpected token " + keyword + " at offset " + position);
+                    }
+            }
+        }
+
+        long readLong() throws IOException {
+            skipWhitespace();
+            final String token = readRegular();
+            try {
+                return Long.parseLong(token);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Expected an integer but found " + token, e);
+            }
+        }
+
+        String readKeyword() throws IOException {
+            skipWhitespace();
+            return readRegular();
+        }
+
+        boolean peekKeyword(final String keyword) throws IOException {
+            final int start = position;
+            try {
+                return keyword.equals(readKeyword());
+            } finally {
+                position = start;
+            }
+        }
+
+        void skipStreamEol() {
+            if (position < buffer.limit() && buffer.get(position) == '\r') {
+                position++;
+            }
+            if (position < buffer.limit() && buffer.get(position) == '\n') {
+                position++;
+            }
+        }
+
+        private Map<String, Object> readDictionary() throws IOException {
+            final Map<String, Object> dictionary = new LinkedHashMap<>();
+            while (true) {
+                skipWhitespace();
+                if (peek() == '>' && peek(1) == '>') {
+                    position += 2;
+                    return dictionary;
+                }
+                final Object key = readObject();
+                if (!(key instanceof Name)) {
+                    throw new IOException("Expected a name as dictionary key at offset " + position);
+                }
+                final Object value = readObject();
+                if (value != null) {
+                    dictionary.put(((Name) key).value, value);
+                }
+            }
+        }
+
+        private Object readNumberOrReference() throws IOException {
+            final String token = readRegular();
+            final boolean isInteger = token.indexOf('.') < 0;
+            final Number number;
+            try {
+                number = isInteger ? (Number) Long.parseLong(token) : (Number) Double.parseDouble(token);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Invalid number " + token, e);
+            }
+
+            if (isInteger) {
+                // An object reference is two integers followed by R
+                final int start = position;
+                skipWhitespace();
+                if (position < buffer.limit() && Character.isDigit(peek())) {
+                    final String generation = readRegular();
+                    skipWhitespace();
+                    if (generation.chars().allMatch(Character::isDigit) && position < buffer.limit() && peek() == 'R'
+                            && (position + 1 >= buffer.limit() || !isRegular(peek(1)))) {
+                        position++;
+                        return new Reference(number.intValue());
+                    }
+                }
+                position = start;
+            }
+            return number;
+        }
+
+        private void skipLiteralString() throws IOException {
+            int depth = 0;
+            while (position < buffer.limit()) {
+                final int b = buffer.get(position++) & 0xff;
+                if (b == '\\') {
+                    position++;
+                } else if (b == '(') {
+                    depth++;
+                } else if (b == ')' && --depth == 0) {
+                    return;
+                }
+            }
+            throw new IOException("Unterminated string");
+        }
+
+        private void skipPast(final int end) throws IOException {
+            while (position < buffer.limit()) {
+                if ((buffer.get(position++) & 0xff) == end) {
+                    return;
+                }
+            }
+            throw new IOException("Unexpected end of data");
+        }
+
+        private String readRegular() throws IOException {
+            final int start = position;
+            while (position < buffer.limit() && isRegular(buffer.get(position) & 0xff)) {
+                position++;
+            }
+            if (position == start) {
+                throw new IOException("Expected a token at offset " + start);
+            }
+            final byte[] token = new byte[position - start];
+            for (int i = 0; i < token.length; i++) {
+                token[i] = buffer.get(start + i);
+            }
+            return new String(token, StandardCharsets.ISO_8859_1);
+        }
+
+        private void skipWhitespace() {
+            while (position < buffer.limit()) {
+                final int b = buffer.get(position) & 0xff;
+                if (b == '%') {
+                    while (position < buffer.limit() && buffer.get(position) != '\n' && buffer.get(position) != '\r') {
+                        position++;
+                    }
+                } else if (isWhitespace(b)) {
+                    position++;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private int peek() throws IOException {
+            return peek(0);
+        }
+
+        private int peek(final int offset) throws IOException {
+            if (position + offset >= buffer.limit()) {
+                throw new IOException("Unexpected end of data");
+            }
+            return buffer.get(position + offset) & 0xff;
+        }
+
+        private static boolean isNumberStart(final int b) {
+            return Character.isDigit(b) || b == '+' || b == '-' || b == '.';
+        }
+
+        private static boolean isWhitespace(final int b) {
+            return b == 0 || b == '\t' || b == '\n' || b == '\f' || b == '\r' || b == ' ';
+        }
+
+        private static boolean isRegular(final int b) {
+            return !isWhitespace(b) && "()<>[]{}/%".indexOf(b) < 0;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.jpedal.PdfDecoderServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches conversion output zips by the content of the input file, the
+ * settings used to convert it and the builds of JPedal and the service, so
+ * that repeated conversions of the same document are served without
+ * converting it again, and never with the output of an earlier build.
+ * <p>
+ * Entries are stored as hard links (or copies where links are not supported)
+ * of the output zip in a directory inside the output path. The least recently
+ * used entries are evicted once the cache grows past its maximum size or once
+ * they have not been used for longer than the maximum age. Uses are only
+ * tracked in memory, as a cached zip shares its file with the output zips
+ * restored from it and changing its modification time would change theirs. A
+ * restart therefore falls back to the order the entries were cached in.
+ */
+final class ResultCache {
+
+    private static final Logger LOG = Logger.getLogger(ResultCache.class.getName());
+
+    /**
+     * The builds of JPedal and the service, part of every key.
+     */
+    private static final String VERSION = getBuild(PdfDecoderServer.class) + '/' + getBuild(ResultCache.class);
+
+    private final File cacheDir;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /**
+     * Cache entries in least recently used order, keyed by digest.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates the cache, picking up any entries left in the cache directory by a
+     * previous run.
+     *
+     * @param cacheDir the directory the cached zips are stored in
+     * @param maxSizeMB the maximum total size of the cached zips in MB
+     * @param maxAge the time in milliseconds after which an unused entry is evicted
+     */
+    ResultCache(final File cacheDir, final long maxSizeMB, final long maxAge) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxSizeMB * 1024L * 1024L;
+        this.maxAge = maxAge;
+
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            LOG.log(Level.SEVERE, "Failed to create result cache directory: {0}", cacheDir.getAbsolutePath());
+        }
+
+        final File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(".zip"));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (final File file : files) {
+                final String key = file.getName().substring(0, file.getName().length() - 4);
+                final Entry entry = new Entry(file, file.length(), file.lastModified());
+                entries.put(key, entry);
+                totalBytes += entry.size;
+            }
+        }
+    }
+
+    /**
+     * Computes the cache key of a conversion from the bytes of the input file,
+     * the conversion settings and the builds of JPedal and the service. Settings
+     * are sorted so that the order they were supplied in does not matter.
+     *
+     * @param inputFile the file to be converted
+     * @param settings the conversion settings
+     * @return the hex encoded cache key
+     * @throws IOException if the input file can not be read
+     */
+    static String computeKey(final File inputFile, final Map<String, String> settings) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        try (InputStream in = new DigestInputStream(Files.newInputStream(inputFile.toPath()), digest)) {
+            final byte[] buffer = new byte[65536];
+            while (in.read(buffer) != -1) {
+                // Reading updates the digest
+            }
+        }
+
+        digest.update((byte) 0);
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+
+        for (final Map.Entry<String, String> setting : new TreeMap<>(settings).entrySet()) {
+            digest.update((byte) 0);
+            digest.update(setting.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '=');
+            digest.update(String.valueOf(setting.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+
+        final StringBuilder key = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Identifies the build a class was loaded from, by the implementation
+     * version of its jar, or by the size and modification time of its jar or
+     * class file when there is none.
+     *
+     * @param type the class
+     * @return the build of the class
+     */
+    static String getBuild(final Class<?> type) {
+        final Package typePackage = type.getPackage();
+        if (typePackage != null && typePackage.getImplementationVersion() != null) {
+            return typePackage.getImplementationVersion();
+        }
+        final CodeSource source = type.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return "unknown";
+        }
+        try {
+            File file = new File(source.getLocation().toURI());
+            if (file.isDirectory()) {
+                file = new File(file, type.getName().replace('.', File.separatorChar) + ".class");
+            }
+            return file.length() + "-" + file.lastModified();
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            return source.getLocation().toString();
+        }
+    }
+
+    /**
+     * Places the cached output for the given key at the given location.
+     *
+     * @param key the cache key of the conversion
+     * @param outputZip the location the output zip of the conversion should be placed
+     * @return true if the output was found in the cache and placed, false otherwise
+     */
+    boolean restore(final String key, final File outputZip) {
+        final Entry entry;
+        synchronized (this) {
+            evictExpired();
+            entry = entries.get(key);
+        }
+
+        if (entry != null && entry.file.exists()) {
+            try {
+                link(entry.file, outputZip);
+                entry.lastUsed = System.currentTimeMillis();
+                hits.incrementAndGet();
+                return true;
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "Failed to restore cached output " + entry.file.getAbsolutePath(), e);
+            }
+        }
+
+        if (entry != null) {
+            remove(key);
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Adds the output of a successful conversion to the cache, evicting the least
+     * recently used entries if the cache becomes too large.
+     *
+     * @param key the cache key of the conversion
+     * @param outputZip the output zip of the conversion
+     */
+    void store(final String key, final File outputZip) {
+        final long size = outputZip.length();
+        if (size > maxBytes) {
+            return;
+        }
+
+        final File cacheFile = new File(cacheDir, key + ".zip");
+        final File tempFile = new File(cacheDir, key + ".tmp");
+        try {
+            link(outputZip, tempFile);
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "Failed to cache output " + outputZip.getAbsolutePath(), e);
+            if (!tempFile.delete() && tempFile.exists()) {
+                LOG.log(Level.WARNING, "Failed to delete {0}", tempFile.getAbsolutePath());
+            }
+            return;
+        }
+
+        synchronized (this) {
+            final Entry previous = entries.put(key, new Entry(cacheFile, size, System.currentTimeMillis()));
+            if (previous != null) {
+                totalBytes -= previous.size;
+            }
+            totalBytes += size;
+
+            evictExpired();
+            final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                final Map.Entry<String, Entry> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                iterator.remove();
+                evict(eldest.getValue());
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void remove(final String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            evict(entry);
+        }
+    }
+
+    private void evictExpired() {
+        if (maxAge <= 0) {
+            return;
+        }
+        final long oldest = System.currentTimeMillis() - maxAge;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.lastUsed >= oldest) {
+                // Entries are in order of use, so the remaining entries are newer
+                return;
+            }
+            iterator.remove();
+            evict(entry);
+        }
+    }
+
+    private void evict(final Entry entry) {
+        totalBytes -= entry.size;
+        evictions.incrementAndGet();
+        if (!entry.file.delete() && entry.file.exists()) {
+            LOG.log(Level.WARNING, "Failed to delete cached output {0}", entry.file.getAbsolutePath());
+        }
+    }
+
+    private static void link(final File existing, final File link) throws IOException {
+        try {
+            Files.createLink(link.toPath(), existing.toPath());
+        } catch (final UnsupportedOperationException | IOException e) {
+            Files.copy(existing.toPath(), link.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static final class Entry {
+
+        private final File file;
+        private final long size;
+        private volatile long lastUsed;
+
+        Entry(final File file, final long size, final long lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.db.DBHandler;
+
+import javax.json.Json;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a failed conversion again from the input it was submitted with.
+ * <p>
+ * The conversion keeps its uuid and settings, and continues from the pages
+ * checkpointed by the run that failed, so only the missing pages are
+ * converted. A conversion left in progress by a restart of this node can be
+ * retried as well, unless a shared job queue will reclaim it.
+ */
+@WebServlet(name = "retry", urlPatterns = "/jpedal/retry")
+public class RetryServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(RetryServlet.class.getName());
+
+    /**
+     * Runs retried conversions on behalf of the conversion servlet.
+     */
+    interface Retrier {
+
+        /**
+         * Starts a conversion again in the background.
+         *
+         * @param uuid the uuid of the conversion
+         * @param inputFile the input of the conversion
+         * @param contextUrl the context the conversion servlet is running in
+         * @param accepted run once the retry is accepted, before the conversion starts
+         * @return false if the conversion is already being retried, in which case accepted is not run
+         */
+        boolean retry(String uuid, File inputFile, String contextUrl, Runnable accepted);
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String uuid = request.getParameter("uuid");
+        if (uuid == null || uuid.isEmpty()) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_BAD_REQUEST, "No uuid provided");
+            return;
+        }
+
+        final Map<String, String> status;
+        try {
+            status = DBHandler.getInstance().getStatus(uuid);
+        } catch (final SQLException e) {
+            LOG.log(Level.SEVERE, "Failed to read the status of " + uuid, e);
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database failure");
+            return;
+        }
+        if (status == null) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_NOT_FOUND, "Unknown uuid " + uuid);
+            return;
+        }
+
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        final Retrier retrier = (Retrier) getServletContext().getAttribute(JPedalServletContextListener.KEY_CONVERSION_RETRIER);
+        if (retrier == null) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The service is starting");
+            return;
+        }
+
+        if (!isRetryable(status.get("state"), uuid, admissionController)) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_CONFLICT, "Only a failed conversion can be retried");
+            return;
+        }
+
+        final File inputFile = findInput(uuid);
+        if (inputFile == null) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_GONE, "The input of the conversion is no longer available");
+            return;
+        }
+
+        final String requestUrl = request.getRequestURL().toString();
+        final String contextUrl = requestUrl.substring(0, requestUrl.length() - request.getRequestURI().length())
+                + request.getContextPath();
+
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final JobStateWriter stateWriter = (JobStateWriter) getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_STATE_WRITER);
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final String tenant = JPedalServlet.getTenant(request, properties);
+        // Only recorded once the retry is accepted, so a second request for a retry already running changes nothing
+        if (!retrier.retry(uuid, inputFile, contextUrl, () -> {
+            workerPool.getScheduler().submitted(uuid, tenant);
+            AdmissionFilter.accepted(request, admissionController, uuid);
+            // Set before the conversion starts, so it can not overwrite the state the conversion sets
+            stateWriter.setState(uuid, "queued");
+        })) {
+            MicroserviceUtils.sendError(response, HttpServletResponse.SC_CONFLICT, "The conversion is already being retried");
+            return;
+        }
+        LOG.log(Level.INFO, "Retrying conversion {0}", uuid);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(Json.createObjectBuilder().add("uuid", uuid).build().toString());
+    }
+
+    /**
+     * A conversion that failed can be retried. One still in progress can only
+     * be retried when nothing will finish it, that is when it is not running
+     * on this node and no job queue will hand it to another node.
+     */
+    private boolean isRetryable(final String state, final String uuid, final AdmissionController admissionController) {
+        if ("error".equals(state)) {
+            return true;
+        }
+        if ("queued".equals(state) || "processing".equals(state)) {
+            return getServletContext().getAttribute(JPedalServletContextListener.KEY_JOB_QUEUE) == null
+                    && !admissionController.isInFlight(uuid);
+        }
+        return false;
+    }
+
+    /**
+     * Finds the input a conversion was submitted with in the input path,
+     * skipping the PDF an office document was converted to.
+     */
+    private File findInput(final String uuid) {
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final File[] files = new File(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_INPUT_PATH), uuid).listFiles(File::isFile);
+        if (files == null) {
+            return null;
+        }
+        File input = null;
+        for (final File file : files) {
+            if (!file.getName().equals(uuid + ".pdf")) {
+                return file;
+            }
+            input = file;
+        }
+        return input;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Reports statistics about the service as JSON. See the API documentation for
+ * the values reported.
+ */
+@WebServlet(name = "stats", urlPatterns = "/stats")
+public class StatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final JsonObjectBuilder stats = Json.createObjectBuilder();
+
+        final ResultCache resultCache = (ResultCache) getServletContext().getAttribute(JPedalServletContextListener.KEY_RESULT_CACHE);
+        if (resultCache != null) {
+            stats.add("resultCache", Json.createObjectBuilder()
+                    .add("hits", resultCache.getHits())
+                    .add("misses", resultCache.getMisses())
+                    .add("evictions", resultCache.getEvictions())
+                    .add("entries", resultCache.getEntryCount())
+                    .add("size", resultCache.getTotalBytes()));
+        }
+
+        final AdmissionController admissionController = (AdmissionController) getServletContext().getAttribute(JPedalServletContextListener.KEY_ADMISSION_CONTROLLER);
+        if (admissionController != null) {
+            stats.add("admission", Json.createObjectBuilder()
+                    .add("queueDepth", admissionController.getQueueDepth())
+                    .add("averageDuration", admissionController.getAverageDuration())
+                    .add("queueRejections", admissionController.getQueueRejections())
+                    .add("memoryRejections", admissionController.getMemoryRejections())
+                    .add("diskRejections", admissionController.getDiskRejections()));
+        }
+
+        final EvictionManager evictionManager = (EvictionManager) getServletContext().getAttribute(JPedalServletContextListener.KEY_EVICTION_MANAGER);
+        if (evictionManager != null) {
+            stats.add("eviction", Json.createObjectBuilder()
+                    .add("conversions", evictionManager.getEntryCount())
+                    .add("size", evictionManager.getTotalBytes())
+                    .add("evictions", evictionManager.getEvictions())
+                    .add("reclaimedBytes", evictionManager.getReclaimedBytes()));
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(stats.build().toString());
+    }
+}
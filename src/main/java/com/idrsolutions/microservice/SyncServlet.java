@@ -0,0 +1,272 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.utils.ProcessUtils;
+import com.idrsolutions.microservice.utils.SettingsValidator;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts small documents while the client waits, returning the output in
+ * the response instead of a uuid to poll and a zip to download. See the API
+ * documentation for more information on how to interact with this servlet.
+ * <p>
+ * Only uploaded PDFs converted to images, plain text or word lists are
+ * converted synchronously, and only if they are within the page and size
+ * limits. Any other request, and any conversion that does not finish within
+ * the synchronous time limit, is passed on to the asynchronous API so the
+ * client gets a uuid to poll instead. A conversion that times out is stopped
+ * and its pages are converted again from the start, as the worker and output
+ * directory of a synchronous conversion are not those of the asynchronous one.
+ */
+@WebServlet(name = "sync", urlPatterns = "/jpedal/sync")
+@MultipartConfig
+public class SyncServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(SyncServlet.class.getName());
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final int maxPages = Integer.parseInt(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_SYNC_MAX_PAGES));
+        final long maxFileSize = Long.parseLong(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_SYNC_MAX_FILE_SIZE)) * 1024;
+
+        final Part filePart = "upload".equals(request.getParameter("input")) ? request.getPart("file") : null;
+        final String fileName = filePart != null ? filePart.getSubmittedFileName() : null;
+        if (maxPages == 0 || filePart == null || fileName == null || !fileName.toLowerCase().endsWith(".pdf")
+                || filePart.getSize() > maxFileSize) {
+            forwardToAsync(request, response);
+            return;
+        }
+
+        final Map<String, String> settings;
+        try {
+            settings = parseSettings(request.getParameter("settings"));
+        } catch (final JsonException exception) {
+            MicroserviceUtils.sendError(response, 400, "Error encountered when parsing settings JSON <" + exception.getMessage() + '>');
+            return;
+        }
+
+        final SettingsValidator settingsValidator = JPedalServlet.validateSettings(settings);
+        if (!settingsValidator.isValid()) {
+            MicroserviceUtils.sendError(response, 400, "Invalid settings detected.\n" + settingsValidator.getMessage());
+            return;
+        }
+
+        final String pageType = JPedalServlet.getPageConversionType(settings.get("mode"), settings.get("type"));
+        if (pageType == null || JPedalServlet.isNdjsonOutput(settings)) {
+            forwardToAsync(request, response);
+            return;
+        }
+
+        final String uuid = UUID.randomUUID().toString();
+        final File workDir = new File(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_INPUT_PATH), "sync-" + uuid);
+        try {
+            final File inputPdf = new File(workDir, "document.pdf");
+            Files.createDirectories(workDir.toPath());
+            try (InputStream in = filePart.getInputStream()) {
+                Files.copy(in, inputPdf.toPath());
+            }
+
+            // Encrypted and damaged documents go through the asynchronous path, which can open them with JPedal
+            final PdfProbe.Info pdfInfo;
+            try {
+                pdfInfo = PdfProbe.probe(inputPdf);
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "Unable to probe synchronous upload, converting it asynchronously", e);
+                forwardToAsync(request, response);
+                return;
+            }
+            if (pdfInfo.isEncrypted()) {
+                forwardToAsync(request, response);
+                return;
+            }
+
+            // Page selections the document does not have are reported by the asynchronous path
+            final int[] pages;
+            try {
+                pages = JPedalServlet.parsePages(settings.get("pages"), pdfInfo.getPageCount());
+            } catch (final IllegalArgumentException e) {
+                forwardToAsync(request, response);
+                return;
+            }
+            if (pages.length > maxPages) {
+                forwardToAsync(request, response);
+                return;
+            }
+
+            if (!convert(request, response, uuid, inputPdf, pdfInfo, pages, pageType, settings, properties)) {
+                forwardToAsync(request, response);
+            }
+        } finally {
+            MicroserviceUtils.deleteDirectory(workDir);
+        }
+    }
+
+    /**
+     * Converts a document on a worker and writes its output to the response.
+     *
+     * @return false if the conversion did not finish within the synchronous time limit
+     */
+    private boolean convert(final HttpServletRequest request, final HttpServletResponse response, final String uuid,
+                            final File inputPdf, final PdfProbe.Info pdfInfo, final int[] pages, final String pageType,
+                            final Map<String, String> settings, final Properties properties) throws IOException {
+        final WorkerPool workerPool = (WorkerPool) getServletContext().getAttribute(JPedalServletContextListener.KEY_WORKER_POOL);
+        final ConversionMetrics metrics = (ConversionMetrics) getServletContext().getAttribute(JPedalServletContextListener.KEY_METRICS);
+        final long timeout = Long.parseLong(properties.getProperty(JPedalServletContextListener.KEY_PROPERTY_SYNC_TIMEOUT));
+
+        final ConversionMetrics.Timer timer = metrics.startTimer();
+        timer.setLabels(settings.get("mode"), settings.get("type"), settings.get("format"));
+        timer.addInputBytes(inputPdf.length());
+        timer.stage("probe");
+
+        final float scaling = JPedalServlet.getScaling(settings);
+        final boolean images = PageConverter.TYPE_IMAGES.equals(pageType);
+        final String format = images ? settings.get("format") : "";
+        final File outputDir = new File(inputPdf.getParentFile(), "output");
+
+        final WorkerPool.PageTask task = new WorkerPool.PageTask(pageType, inputPdf, outputDir, format, scaling,
+                Integer.parseInt(settings.getOrDefault("maxWidth", "0")), Integer.parseInt(settings.getOrDefault("maxHeight", "0")),
+                settings.getOrDefault("password", ""), pages, pdfInfo, JPedalServlet.getSystemProperties(settings));
+        task.setHeapEstimate(workerPool.getHeapEstimator().estimate(settings.get("mode") + '/' + settings.getOrDefault("type", settings.get("format")),
+                pdfInfo, inputPdf.length(), pdfInfo.getPageCount(), images ? JPedalServlet.getRenderScaling(settings, pdfInfo, pages) : 0));
+
+        final double cost = ConversionScheduler.estimateCost(pages.length, inputPdf.length(), settings.get("mode"),
+                JPedalServlet.getRequestedScaling(settings, pdfInfo, pages));
+        final ConversionScheduler scheduler = workerPool.getScheduler();
+        scheduler.submitted(uuid, JPedalServlet.getTenant(request, properties));
+        final ConversionScheduler.Job job = scheduler.startJob(uuid, cost, queueWaitTime -> timer.stage("schedule"));
+
+        final ProcessUtils.Result result = workerPool.run(task, job, timeout, null);
+        timer.stage("convert");
+        if (result == ProcessUtils.Result.TIMEOUT) {
+            LOG.log(Level.INFO, "Synchronous conversion {0} exceeded {1}ms, converting it again asynchronously", new Object[]{uuid, timeout});
+            timer.finish("timeout");
+            return false;
+        }
+        if (result != ProcessUtils.Result.SUCCESS) {
+            timer.finish("error");
+            MicroserviceUtils.sendError(response, 500, "An error occurred during the conversion");
+            return true;
+        }
+
+        final File[] pageFiles = new File[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            pageFiles[i] = PageConverter.getPageFile(outputDir, inputPdf.getName(), pages[i], images ? format : "txt");
+        }
+        final long outputBytes = writeOutput(response, pages, pageFiles);
+        timer.addPages(pages.length);
+        timer.addOutputBytes(outputBytes);
+        timer.stage("response");
+        timer.finish("processed");
+        return true;
+    }
+
+    /**
+     * Writes a single page as the response body, or several pages as the parts
+     * of a multipart/mixed response in page order.
+     *
+     * @return the number of bytes of output written
+     */
+    private long writeOutput(final HttpServletResponse response, final int[] pages, final File[] pageFiles) throws IOException {
+        response.setHeader("Cache-Control", "no-store");
+        if (pageFiles.length == 1) {
+            response.setContentType(getContentType(pageFiles[0]));
+            response.setContentLengthLong(pageFiles[0].length());
+            Files.copy(pageFiles[0].toPath(), response.getOutputStream());
+            return pageFiles[0].length();
+        }
+
+        final String boundary = UUID.randomUUID().toString();
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        final ServletOutputStream out = response.getOutputStream();
+        long outputBytes = 0;
+        for (int i = 0; i < pageFiles.length; i++) {
+            final File pageFile = pageFiles[i];
+            final String header = "--" + boundary + "\r\n"
+                    + "Content-Type: " + getContentType(pageFile) + "\r\n"
+                    + "Content-Disposition: inline; filename=\"" + pageFile.getName() + "\"\r\n"
+                    + "Content-Length: " + pageFile.length() + "\r\n"
+                    + "X-Page: " + pages[i] + "\r\n\r\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            Files.copy(pageFile.toPath(), out);
+            out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputBytes += pageFile.length();
+        }
+        out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return outputBytes;
+    }
+
+    private String getContentType(final File file) {
+        if (file.getName().endsWith(".txt")) {
+            return "text/plain; charset=UTF-8";
+        }
+        final String contentType = getServletContext().getMimeType(file.getName());
+        return contentType != null ? contentType : "application/octet-stream";
+    }
+
+    /**
+     * Passes the request on to the asynchronous API, which responds with the
+     * uuid of the conversion.
+     */
+    private void forwardToAsync(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        getServletContext().getNamedDispatcher("jpedal").forward(request, response);
+    }
+
+    static Map<String, String> parseSettings(final String json) {
+        final Map<String, String> settings = new HashMap<>();
+        if (json == null || json.isEmpty()) {
+            return settings;
+        }
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            final JsonObject object = reader.readObject();
+            for (final Map.Entry<String, JsonValue> entry : object.entrySet()) {
+                final JsonValue value = entry.getValue();
+                settings.put(entry.getKey(), value instanceof JsonString ? ((JsonString) value).getString() : value.toString());
+            }
+        }
+        return settings;
+    }
+}
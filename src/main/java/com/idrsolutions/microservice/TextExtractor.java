@@ -0,0 +1,324 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.jpedal.examples.text.ExtractTextAsWordlist;
+import org.jpedal.examples.text.ExtractTextInRectangle;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntConsumer;
+
+/**
+ * Extracts the text of PDFs inside the service JVM, working on several pages
+ * of a document at once in a bounded fork-join pool shared by every extraction.
+ * <p>
+ * The text is written as newline-delimited JSON with one line per page, in page
+ * order, holding the page number and either the text of the page or its words
+ * with their coordinates. Nothing is written per page and nothing is zipped, so
+ * the output can be streamed straight to the client or written to a single file.
+ */
+final class TextExtractor {
+
+    // Each thread gets a few ranges so a range of slow pages does not hold up the rest of the document
+    private static final int RANGES_PER_THREAD = 2;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an extractor that works on at most the given number of pages at once.
+     *
+     * @param parallelism the number of threads extracting text
+     */
+    TextExtractor(final int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Extracts the text of the given pages of a PDF, writing each page to the
+     * output as soon as it and every page before it have been extracted.
+     *
+     * @param type the text to extract, {@link PageConverter#TYPE_PLAIN_TEXT} or {@link PageConverter#TYPE_WORDLIST}
+     * @param inputPdf the PDF to extract text from
+     * @param password the password of the PDF, or an empty string if there is none
+     * @param pages the page numbers to extract, in ascending order
+     * @param out the output the JSON lines are written to, flushed after every page
+     * @param timeout the time in milliseconds the extraction may take, 0 for no limit
+     * @param pageListener notified with each page number once its line has been written, may be null
+     * @throws IOException if the PDF can not be read or the output can not be written
+     * @throws TimeoutException if the extraction does not finish within the timeout
+     */
+    void extract(final String type, final File inputPdf, final String password, final int[] pages, final Writer out,
+                 final long timeout, final IntConsumer pageListener) throws IOException, TimeoutException {
+        if (!PageConverter.TYPE_PLAIN_TEXT.equals(type) && !PageConverter.TYPE_WORDLIST.equals(type)) {
+            throw new IllegalArgumentException("Unrecognised text extraction type: " + type);
+        }
+        if (pages.length == 0) {
+            return;
+        }
+
+        final Extraction extraction = new Extraction(type, inputPdf, password, pages, out, pageListener);
+        final int rangeSize = Math.max(1, (pages.length + pool.getParallelism() * RANGES_PER_THREAD - 1)
+                / (pool.getParallelism() * RANGES_PER_THREAD));
+        final ForkJoinTask<Void> task = pool.submit(new PageRangeTask(extraction, 0, pages.length, rangeSize));
+        try {
+            if (timeout > 0) {
+                task.get(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                task.get();
+            }
+        } catch (final TimeoutException e) {
+            extraction.cancel();
+            task.cancel(true);
+            throw e;
+        } catch (final InterruptedException e) {
+            extraction.cancel();
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Text extraction of " + inputPdf.getName() + " was interrupted");
+        } catch (final CancellationException e) {
+            throw new IOException("Text extraction of " + inputPdf.getName() + " was cancelled", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Unable to extract text from " + inputPdf.getName(), cause);
+        }
+    }
+
+    /**
+     * Stops the threads extracting text, abandoning any extraction in progress.
+     */
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Returns the number of pages of a PDF, opening it with JPedal.
+     *
+     * @param inputPdf the PDF
+     * @param password the password of the PDF, or an empty string if there is none
+     * @return the number of pages
+     * @throws IOException if the PDF can not be opened
+     */
+    static int getPageCount(final File inputPdf, final String password) throws IOException {
+        final ExtractTextInRectangle extract = new ExtractTextInRectangle(inputPdf.getAbsolutePath());
+        extract.setPassword(password);
+        try {
+            if (!extract.openPDFFile()) {
+                throw new IOException("Unable to open " + inputPdf.getAbsolutePath());
+            }
+            return extract.getPageCount();
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Unable to open " + inputPdf.getAbsolutePath(), e);
+        } finally {
+            extract.closePDFfile();
+        }
+    }
+
+    /**
+     * Builds the JSON line of a page of plain text.
+     */
+    private static String toJson(final int page, final String text) {
+        return Json.createObjectBuilder()
+                .add("page", page)
+                .add("text", text != null ? text : "")
+                .build().toString();
+    }
+
+    /**
+     * Builds the JSON line of a page of words. JPedal lists each word followed
+     * by the x1, y1, x2 and y2 coordinates of its bounds.
+     */
+    private static String toJson(final int page, final List<String> wordlist) {
+        final JsonArrayBuilder words = Json.createArrayBuilder();
+        if (wordlist != null) {
+            for (int i = 0; i + 4 < wordlist.size(); i += 5) {
+                words.add(Json.createObjectBuilder()
+                        .add("text", wordlist.get(i))
+                        .add("x1", Float.parseFloat(wordlist.get(i + 1)))
+                        .add("y1", Float.parseFloat(wordlist.get(i + 2)))
+                        .add("x2", Float.parseFloat(wordlist.get(i + 3)))
+                        .add("y2", Float.parseFloat(wordlist.get(i + 4))));
+            }
+        }
+        return Json.createObjectBuilder()
+                .add("page", page)
+                .add("words", words)
+                .build().toString();
+    }
+
+    /**
+     * The state of one extraction, which puts the pages extracted by the
+     * different threads back in order as it writes them.
+     */
+    private static final class Extraction {
+
+        private final String type;
+        private final File inputPdf;
+        private final String password;
+        private final int[] pages;
+        private final Writer out;
+        private final IntConsumer pageListener;
+        private final String[] lines;
+        private int nextLine;
+        private volatile boolean cancelled;
+
+        Extraction(final String type, final File inputPdf, final String password, final int[] pages, final Writer out,
+                   final IntConsumer pageListener) {
+            this.type = type;
+            this.inputPdf = inputPdf;
+            this.password = password;
+            this.pages = pages;
+            this.out = out;
+            this.pageListener = pageListener;
+            lines = new String[pages.length];
+        }
+
+        /**
+         * Stops the extraction. Holding the lock of the writes means no line
+         * is written to the output once this returns, so the caller can report
+         * the failure on it.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Writes the line of a page once every page before it has been written.
+         * Lines of a cancelled extraction are dropped.
+         */
+        synchronized void pageExtracted(final int index, final String line) throws IOException {
+            if (cancelled) {
+                return;
+            }
+            lines[index] = line;
+            if (index != nextLine) {
+                return;
+            }
+            while (nextLine < lines.length && lines[nextLine] != null) {
+                out.write(lines[nextLine]);
+                out.write('\n');
+                lines[nextLine] = null;
+                if (pageListener != null) {
+                    pageListener.accept(pages[nextLine]);
+                }
+                nextLine++;
+            }
+            out.flush();
+        }
+
+        /**
+         * Extracts a range of the pages with its own JPedal instance, as a
+         * document can not be decoded by several threads at once.
+         */
+        void extractRange(final int from, final int to) throws Exception {
+            final String path = inputPdf.getAbsolutePath();
+            if (PageConverter.TYPE_PLAIN_TEXT.equals(type)) {
+                final ExtractTextInRectangle extract = new ExtractTextInRectangle(path);
+                extract.setPassword(password);
+                try {
+                    if (!extract.openPDFFile()) {
+                        throw new IOException("Unable to open " + path);
+                    }
+                    for (int i = from; i < to && !cancelled; i++) {
+                        pageExtracted(i, toJson(pages[i], extract.getTextOnPage(pages[i])));
+                    }
+                } finally {
+                    extract.closePDFfile();
+                }
+            } else {
+                final ExtractTextAsWordlist extract = new ExtractTextAsWordlist(path);
+                extract.setPassword(password);
+                try {
+                    if (!extract.openPDFFile()) {
+                        throw new IOException("Unable to open " + path);
+                    }
+                    for (int i = from; i < to && !cancelled; i++) {
+                        pageExtracted(i, toJson(pages[i], extract.getWordsOnPage(pages[i])));
+                    }
+                } finally {
+                    extract.closePDFfile();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a range of pages in half until it is small enough to extract on
+     * one thread.
+     */
+    private static final class PageRangeTask extends RecursiveAction {
+
+        private final Extraction extraction;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+
+        PageRangeTask(final Extraction extraction, final int from, final int to, final int rangeSize) {
+            this.extraction = extraction;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (extraction.isCancelled()) {
+                return;
+            }
+            if (to - from > rangeSize) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new PageRangeTask(extraction, from, middle, rangeSize),
+                        new PageRangeTask(extraction, middle, to, rangeSize));
+                return;
+            }
+            try {
+                extraction.extractRange(from, to);
+            } catch (final IOException e) {
+                extraction.cancel();
+                throw new UncheckedIOException(e);
+            } catch (final Exception e) {
+                extraction.cancel();
+                throw new UncheckedIOException(new IOException("Unable to extract text from "
+                        + extraction.inputPdf.getName(), e));
+            }
+        }
+    }
+}
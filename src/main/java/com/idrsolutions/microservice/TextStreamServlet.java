@@ -0,0 +1,186 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.utils.SettingsValidator;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the text of an uploaded PDF inside the service and streams it to
+ * the client as newline-delimited JSON while the pages are extracted. See the
+ * API documentation for more information on how to interact with this servlet.
+ * <p>
+ * Only plain text and word lists can be streamed. The response is committed
+ * once the first page is written, so an error after that point is reported as
+ * a final line holding an error instead of an error status.
+ */
+@WebServlet(name = "text", urlPatterns = "/jpedal/text")
+@MultipartConfig
+public class TextStreamServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(TextStreamServlet.class.getName());
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        if (!"upload".equals(request.getParameter("input"))) {
+            MicroserviceUtils.sendError(response, 400, "Only uploaded files can be streamed");
+            return;
+        }
+        final Part filePart = request.getPart("file");
+        if (filePart == null) {
+            MicroserviceUtils.sendError(response, 400, "Missing file");
+            return;
+        }
+        final String fileName = filePart.getSubmittedFileName();
+        if (fileName == null || !fileName.toLowerCase().endsWith(".pdf")) {
+            MicroserviceUtils.sendError(response, 400, "Only PDF files can be streamed");
+            return;
+        }
+
+        final Map<String, String> settings;
+        try {
+            settings = SyncServlet.parseSettings(request.getParameter("settings"));
+        } catch (final JsonException exception) {
+            MicroserviceUtils.sendError(response, 400, "Error encountered when parsing settings JSON <" + exception.getMessage() + '>');
+            return;
+        }
+        settings.putIfAbsent("mode", "extractText");
+        settings.putIfAbsent("output", "ndjson");
+
+        final SettingsValidator settingsValidator = JPedalServlet.validateSettings(settings);
+        if (!settingsValidator.isValid()) {
+            MicroserviceUtils.sendError(response, 400, "Invalid settings detected.\n" + settingsValidator.getMessage());
+            return;
+        }
+        final String pageType = JPedalServlet.getPageConversionType(settings.get("mode"), settings.get("type"));
+        if (!JPedalServlet.isNdjsonOutput(settings)
+                || (!PageConverter.TYPE_PLAIN_TEXT.equals(pageType) && !PageConverter.TYPE_WORDLIST.equals(pageType))) {
+            MicroserviceUtils.sendError(response, 400, "Only plainText and wordlist extraction can be streamed");
+            return;
+        }
+
+        final Properties properties = (Properties) getServletContext().getAttribute(BaseServletContextListener.KEY_PROPERTIES);
+        final File workDir = new File(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_INPUT_PATH),
+                "text-" + UUID.randomUUID());
+        try {
+            final File inputPdf = new File(workDir, "document.pdf");
+            Files.createDirectories(workDir.toPath());
+            try (InputStream in = filePart.getInputStream()) {
+                Files.copy(in, inputPdf.toPath());
+            }
+            extract(response, inputPdf, pageType, settings, properties);
+        } finally {
+            MicroserviceUtils.deleteDirectory(workDir);
+        }
+    }
+
+    private void extract(final HttpServletResponse response, final File inputPdf, final String pageType,
+                         final Map<String, String> settings, final Properties properties) throws IOException {
+        final TextExtractor textExtractor = (TextExtractor) getServletContext().getAttribute(JPedalServletContextListener.KEY_TEXT_EXTRACTOR);
+        final ConversionMetrics metrics = (ConversionMetrics) getServletContext().getAttribute(JPedalServletContextListener.KEY_METRICS);
+        final long maxDuration = Long.parseLong(properties.getProperty(BaseServletContextListener.KEY_PROPERTY_MAX_CONVERSION_DURATION));
+        final String password = settings.getOrDefault("password", "");
+
+        final ConversionMetrics.Timer timer = metrics.startTimer();
+        timer.setLabels(settings.get("mode"), settings.get("type"), null);
+        timer.addInputBytes(inputPdf.length());
+
+        // Encrypted documents are counted by JPedal, which can open them with the password
+        int pageCount;
+        try {
+            final PdfProbe.Info pdfInfo = PdfProbe.probe(inputPdf);
+            pageCount = pdfInfo.isEncrypted() ? TextExtractor.getPageCount(inputPdf, password) : pdfInfo.getPageCount();
+        } catch (final IOException e) {
+            try {
+                pageCount = TextExtractor.getPageCount(inputPdf, password);
+            } catch (final IOException ex) {
+                LOG.log(Level.FINE, "Unable to open streamed upload", ex);
+                timer.finish("error");
+                MicroserviceUtils.sendError(response, 400, "Invalid PDF file");
+                return;
+            }
+        }
+        timer.stage("probe");
+
+        final int[] pages;
+        try {
+            pages = JPedalServlet.parsePages(settings.get("pages"), pageCount);
+        } catch (final IllegalArgumentException e) {
+            timer.finish("error");
+            MicroserviceUtils.sendError(response, 400, e.getMessage());
+            return;
+        }
+
+        response.setStatus(200);
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        try {
+            textExtractor.extract(pageType, inputPdf, password, pages, out, maxDuration, page -> timer.addPages(1));
+        } catch (final TimeoutException e) {
+            LOG.log(Level.INFO, "Streamed text extraction exceeded max duration of {0}ms", maxDuration);
+            timer.finish("error");
+            writeError(out, "Conversion exceeded max duration of " + maxDuration + "ms");
+            return;
+        } catch (final IOException e) {
+            // Also thrown when the client goes away, in which case the error line is not seen
+            LOG.log(Level.FINE, "Streamed text extraction failed", e);
+            timer.finish("error");
+            writeError(out, "An error occurred during the conversion");
+            return;
+        }
+        out.flush();
+        timer.stage("convert");
+        timer.finish("processed");
+    }
+
+    private static void writeError(final Writer out, final String message) {
+        try {
+            out.write(Json.createObjectBuilder().add("error", message).build().toString());
+            out.write('\n');
+            out.flush();
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "Unable to report streamed text extraction error", e);
+        }
+    }
+}
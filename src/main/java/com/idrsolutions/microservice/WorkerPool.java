@@ -0,0 +1,787 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import com.idrsolutions.microservice.utils.ProcessUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps a number of {@link ConversionWorker} JVMs running so that conversions do
+ * not pay for JVM startup, class loading and JIT warm-up on every job.
+ * <p>
+ * Each worker is a separate JVM with a limited heap, so a conversion can not
+ * exhaust the memory of the servlet container. Workers are started with one of
+ * a few heap sizes up to the configured memory limit, and each job runs on the
+ * smallest worker its {@link HeapEstimator} prediction fits in, so small jobs do
+ * not reserve as much memory as the largest documents need. A job that runs out
+ * of memory is retried once on a worker with the full memory limit, continuing
+ * from the pages it had already converted. A job too large for every idle
+ * worker replaces the least recently used idle worker with one of the size it
+ * needs, so the pool never runs more workers than its size.
+ * <p>
+ * Workers are recycled once they have run the configured number of jobs or their
+ * committed heap grows past the configured limit, scaled to the worker's heap
+ * size. A worker that exceeds the maximum conversion duration is killed and
+ * replaced.
+ * <p>
+ * A pool with a size of 0 keeps no workers warm and starts a fresh worker for
+ * every job instead.
+ * <p>
+ * The order in which waiting jobs get a worker is decided by the pool's
+ * {@link ConversionScheduler}.
+ */
+final class WorkerPool {
+
+    private static final Logger LOG = Logger.getLogger(WorkerPool.class.getName());
+
+    // Time a worker JVM may take to start and load JPedal before it is considered hung
+    private static final long WORKER_START_TIMEOUT = 60000;
+
+    private final List<String> jvmArgs;
+    private final String classPath;
+    private final int size;
+    private final int maxJobs;
+    private final long maxHeapBytes;
+    private final long[] heapTiers;
+    private final HeapEstimator heapEstimator = new HeapEstimator();
+    private final AtomicLong averageWorkerHeap;
+
+    private final BlockingDeque<Worker> idleWorkers = new LinkedBlockingDeque<>();
+    // Workers starting, idle or running a job
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ConversionScheduler scheduler;
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "jpedal-worker-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService taskExecutor = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "jpedal-worker-task");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService spawner = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "jpedal-worker-spawner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a pool of conversion workers.
+     *
+     * @param jvmArgs the arguments passed to every worker JVM, other than the maximum heap size
+     * @param classPath the class path of the worker JVM, which must contain JPedal and this class
+     * @param size the number of workers to keep warm, or 0 to start a worker per job
+     * @param memoryLimitMB the largest maximum heap size in MB a worker is started with, or 0 for no limit
+     * @param maxJobs the number of jobs a worker runs before it is recycled, or 0 for no limit
+     * @param maxHeapMB the committed heap size in MB at which a worker with the full memory limit is recycled, or 0
+     * for no limit
+     * @param conversionThreads the number of threads conversions are run on by the scheduler
+     * @param smallJobCost the estimated cost below which a job is scheduled shortest job first
+     * @param submissionRetention the time in milliseconds the scheduler remembers a submission whose conversion never starts
+     */
+    WorkerPool(final List<String> jvmArgs, final String classPath, final int size, final int memoryLimitMB,
+               final int maxJobs, final int maxHeapMB, final int conversionThreads, final double smallJobCost,
+               final long submissionRetention) {
+        this.jvmArgs = Collections.unmodifiableList(new ArrayList<>(jvmArgs));
+        this.classPath = classPath;
+        this.heapTiers = getHeapTiers(memoryLimitMB);
+        this.averageWorkerHeap = new AtomicLong(heapTiers[heapTiers.length - 1] * 1024 * 1024);
+        this.size = size;
+        this.maxJobs = size == 0 ? 1 : maxJobs;
+        this.maxHeapBytes = maxHeapMB * 1024L * 1024L;
+        this.scheduler = new ConversionScheduler(getConcurrency(), conversionThreads, smallJobCost, submissionRetention);
+    }
+
+    /**
+     * Returns the heap sizes workers are started with, a quarter and a half of
+     * the memory limit and the limit itself, without any below 128MB.
+     */
+    private static long[] getHeapTiers(final int memoryLimitMB) {
+        if (memoryLimitMB <= 0) {
+            return new long[]{0};
+        }
+        final Set<Long> tiers = new HashSet<>();
+        for (final int divisor : new int[]{4, 2, 1}) {
+            final long tier = memoryLimitMB / divisor;
+            if (tier >= 128 || divisor == 1) {
+                tiers.add(tier);
+            }
+        }
+        return tiers.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Starts all workers in the background so that they are warm before the
+     * first conversion arrives. Most start with the smallest heap, as most
+     * jobs are small, and one with the full memory limit.
+     */
+    void start() {
+        for (int i = 0; i < size; i++) {
+            final long heapMB = i == 0 ? heapTiers[heapTiers.length - 1] : heapTiers[0];
+            spawner.execute(() -> spawnIdleWorker(heapMB));
+        }
+    }
+
+    /**
+     * Runs the given task on a worker, waiting for the scheduler to give the job
+     * a slot if they are all busy. Time spent waiting counts towards the timeout.
+     *
+     * @param task the conversion to run and its settings
+     * @param job the scheduled conversion the task belongs to
+     * @param timeout the maximum duration of the conversion in milliseconds
+     * @param listener notified of each converted page of a {@link PageTask}, may be null
+     * @return the result of the conversion
+     */
+    ProcessUtils.Result run(final Task task, final ConversionScheduler.Job job, final long timeout, final PageListener listener) {
+        return run(task, job, job.getCost(), timeout, listener);
+    }
+
+    private ProcessUtils.Result run(final Task task, final ConversionScheduler.Job job, final double cost,
+                                    final long timeout, final PageListener listener) {
+        final long start = System.currentTimeMillis();
+        final ConversionScheduler.Slot slot;
+        try {
+            slot = scheduler.acquire(job, cost, timeout);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ProcessUtils.Result.ERROR;
+        }
+        if (slot == null) {
+            return ProcessUtils.Result.TIMEOUT;
+        }
+
+        try {
+            final long requiredMB = task.heapEstimate != null ? task.heapEstimate.getRequiredMB() : Long.MAX_VALUE;
+            final long heapMB = getHeapTier(requiredMB);
+
+            final Set<Integer> convertedPages = ConcurrentHashMap.newKeySet();
+            final PageListener recordingListener = (page, file) -> {
+                convertedPages.add(page);
+                if (listener != null) {
+                    listener.pageConverted(page, file);
+                }
+            };
+
+            final Attempt attempt = runOnWorker(task, job.getUuid(), heapMB, remaining(start, timeout), recordingListener);
+            final long largestHeapMB = heapTiers[heapTiers.length - 1];
+            if (attempt.outOfMemory && heapMB < largestHeapMB) {
+                if (task.heapEstimate != null) {
+                    task.heapEstimate.outOfMemory(heapMB);
+                }
+                LOG.log(Level.WARNING, "Retrying {0} with {1}MB of heap after running out of memory with {2}MB",
+                        new Object[]{job.getUuid(), largestHeapMB, heapMB});
+                return runOnWorker(task.withoutPages(convertedPages), job.getUuid(), largestHeapMB,
+                        remaining(start, timeout), recordingListener).result;
+            }
+            return attempt.result;
+        } finally {
+            scheduler.release(slot);
+        }
+    }
+
+    private Attempt runOnWorker(final Task task, final String uuid, final long heapMB, final long timeout,
+                                final PageListener listener) {
+        averageWorkerHeap.updateAndGet(average -> (average * 7 + heapMB * 1024 * 1024) / 8);
+        Worker worker = null;
+        try {
+            worker = borrow(heapMB, timeout);
+            final ProcessUtils.Result result = worker.run(task, uuid, timeout, watchdog, listener);
+            if (result == ProcessUtils.Result.SUCCESS && task.heapEstimate != null) {
+                task.heapEstimate.completed(worker.peakHeap);
+            }
+            return new Attempt(result, worker.outOfMemory);
+        } catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Conversion worker failed while converting " + uuid, e);
+            return new Attempt(ProcessUtils.Result.ERROR, false);
+        } finally {
+            if (worker != null) {
+                release(worker);
+            }
+        }
+    }
+
+    private static long remaining(final long start, final long timeout) {
+        return Math.max(1, timeout - (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Returns the smallest heap size a worker is started with that is at least
+     * the required size, or the largest if none are big enough.
+     */
+    private long getHeapTier(final long requiredMB) {
+        for (final long tier : heapTiers) {
+            if (tier >= requiredMB) {
+                return tier;
+            }
+        }
+        return heapTiers[heapTiers.length - 1];
+    }
+
+    /**
+     * Runs the given tasks at the same time, each on its own worker and each
+     * scheduled with an equal share of the job's cost. The timeout applies to
+     * the tasks as a whole, including any time spent waiting for a free worker.
+     *
+     * @param tasks the conversions to run
+     * @param job the scheduled conversion the tasks belong to
+     * @param timeout the maximum duration of all tasks in milliseconds
+     * @param listener notified of each converted page, may be null
+     * @return {@link ProcessUtils.Result#SUCCESS} if every task succeeded, otherwise
+     * {@link ProcessUtils.Result#TIMEOUT} if any task timed out, otherwise {@link ProcessUtils.Result#ERROR}
+     */
+    ProcessUtils.Result runAll(final List<? extends Task> tasks, final ConversionScheduler.Job job, final long timeout,
+                               final PageListener listener) {
+        if (tasks.size() == 1) {
+            return run(tasks.get(0), job, timeout, listener);
+        }
+
+        final String uuid = job.getUuid();
+        final double taskCost = job.getCost() / tasks.size();
+        final long deadline = System.currentTimeMillis() + timeout;
+        final List<Future<ProcessUtils.Result>> results = new ArrayList<>();
+        for (final Task task : tasks) {
+            results.add(taskExecutor.submit(() -> run(task, job, taskCost, Math.max(1, deadline - System.currentTimeMillis()), listener)));
+        }
+
+        ProcessUtils.Result combined = ProcessUtils.Result.SUCCESS;
+        for (final Future<ProcessUtils.Result> future : results) {
+            ProcessUtils.Result result;
+            try {
+                result = future.get();
+            } catch (final ExecutionException e) {
+                LOG.log(Level.SEVERE, "Conversion task failed for " + uuid, e.getCause());
+                result = ProcessUtils.Result.ERROR;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = ProcessUtils.Result.ERROR;
+            }
+            if (result == ProcessUtils.Result.TIMEOUT) {
+                combined = ProcessUtils.Result.TIMEOUT;
+            } else if (result != ProcessUtils.Result.SUCCESS && combined == ProcessUtils.Result.SUCCESS) {
+                combined = ProcessUtils.Result.ERROR;
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Returns the number of conversions that can run at the same time.
+     *
+     * @return the pool size, or the number of available processors when no workers are kept warm
+     */
+    int getConcurrency() {
+        return size > 0 ? size : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the estimator used to choose the heap size of the worker each job runs on
+     */
+    HeapEstimator getHeapEstimator() {
+        return heapEstimator;
+    }
+
+    /**
+     * Returns the maximum heap size of the workers recent jobs ran on, as a
+     * moving average.
+     *
+     * @return the average maximum heap size in bytes, or 0 if worker heaps are not limited
+     */
+    long getAverageWorkerHeap() {
+        return averageWorkerHeap.get();
+    }
+
+    /**
+     * @return the scheduler deciding the order in which jobs get a worker
+     */
+    ConversionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Stops all idle workers and the conversion threads of the scheduler. Busy
+     * workers are stopped when their job finishes.
+     */
+    void shutdown() {
+        shutdown = true;
+        scheduler.shutdown();
+        watchdog.shutdownNow();
+        spawner.shutdownNow();
+        taskExecutor.shutdown();
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            stopWorker(worker);
+        }
+    }
+
+    /**
+     * Takes an idle worker with the given heap size, or failing that the idle
+     * worker with the next largest heap, or starts a new worker if there is none.
+     * A new worker takes the place of the least recently used idle worker when
+     * the pool is full, so the pool does not grow past its size. A new worker
+     * must start within the timeout of the job it is for.
+     */
+    private Worker borrow(final long heapMB, final long timeout) throws IOException {
+        while (true) {
+            Worker best = null;
+            final Iterator<Worker> iterator = idleWorkers.iterator();
+            while (iterator.hasNext()) {
+                final Worker worker = iterator.next();
+                if (worker.heapMB >= heapMB && (best == null || worker.heapMB < best.heapMB)) {
+                    best = worker;
+                    if (worker.heapMB == heapMB) {
+                        break;
+                    }
+                }
+            }
+            if (best == null) {
+                if (size > 0 && workerCount.get() >= size) {
+                    // Every idle worker is too small for the job, so retire the one least likely to be reused
+                    final Worker retired = idleWorkers.pollLast();
+                    if (retired != null) {
+                        stopWorker(retired);
+                    }
+                }
+                workerCount.incrementAndGet();
+                try {
+                    return new Worker(getCommand(heapMB), heapMB, watchdog, Math.min(WORKER_START_TIMEOUT, timeout));
+                } catch (final IOException e) {
+                    workerCount.decrementAndGet();
+                    throw e;
+                }
+            }
+            if (idleWorkers.removeFirstOccurrence(best)) {
+                if (best.isAlive()) {
+                    return best;
+                }
+                stopWorker(best);
+            }
+        }
+    }
+
+    private void release(final Worker worker) {
+        final long workerMaxHeapBytes = heapTiers[heapTiers.length - 1] > 0
+                ? maxHeapBytes * worker.heapMB / heapTiers[heapTiers.length - 1] : maxHeapBytes;
+        if (shutdown || !worker.isReusable() || workerCount.get() > size
+                || (maxJobs > 0 && worker.jobCount >= maxJobs)
+                || (workerMaxHeapBytes > 0 && worker.committedHeap >= workerMaxHeapBytes)) {
+            stopWorker(worker);
+            if (size > 0 && !shutdown) {
+                // Start the replacement now so the next job finds a warm worker
+                spawner.execute(() -> spawnIdleWorker(worker.heapMB));
+            }
+            return;
+        }
+        // Most recently used workers are reused first as they are the most warmed up
+        idleWorkers.offerFirst(worker);
+    }
+
+    private void spawnIdleWorker(final long heapMB) {
+        // Reserve the place of the worker first, so a job starting a worker at the same time can not overfill the pool
+        if (shutdown || workerCount.getAndUpdate(count -> count < size ? count + 1 : count) >= size) {
+            return;
+        }
+        try {
+            idleWorkers.offer(new Worker(getCommand(heapMB), heapMB, watchdog, WORKER_START_TIMEOUT));
+        } catch (final IOException e) {
+            workerCount.decrementAndGet();
+            LOG.log(Level.SEVERE, "Unable to start conversion worker", e);
+        }
+    }
+
+    private void stopWorker(final Worker worker) {
+        workerCount.decrementAndGet();
+        worker.stop();
+    }
+
+    private List<String> getCommand(final long heapMB) {
+        final List<String> command = new ArrayList<>();
+        command.add("java");
+        if (heapMB > 0) {
+            command.add("-Xmx" + heapMB + "M");
+        }
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(classPath);
+        command.add(ConversionWorker.class.getName());
+        return command;
+    }
+
+    /**
+     * Work to run on a worker, along with the system properties set while it runs.
+     */
+    abstract static class Task {
+
+        private final Map<String, String> properties;
+        private HeapEstimator.Estimate heapEstimate;
+
+        Task(final Map<String, String> properties) {
+            this.properties = properties;
+        }
+
+        /**
+         * Sets the predicted heap of the task, used to choose the worker it runs on.
+         * Without an estimate the task runs on a worker with the full memory limit.
+         *
+         * @param heapEstimate the heap prediction for the conversion the task belongs to
+         */
+        void setHeapEstimate(final HeapEstimator.Estimate heapEstimate) {
+            this.heapEstimate = heapEstimate;
+        }
+
+        /**
+         * Returns the task to run when retrying after some pages were converted.
+         *
+         * @param convertedPages the pages that have already been converted
+         * @return the task that converts the remaining output
+         */
+        Task withoutPages(final Set<Integer> convertedPages) {
+            return this;
+        }
+
+        abstract void write(DataOutputStream out, String uuid) throws IOException;
+
+        void writeProperties(final DataOutputStream out, final Map<String, String> extraProperties) throws IOException {
+            out.writeInt(properties.size() + extraProperties.size());
+            for (final Map.Entry<String, String> entry : properties.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            for (final Map.Entry<String, String> entry : extraProperties.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A JPedal example invocation. The example reports its progress to the remote tracker.
+     */
+    static final class ExampleTask extends Task {
+
+        private final String mainClass;
+        private final List<String> args;
+
+        /**
+         * @param mainClass the JPedal example whose main method performs the conversion
+         * @param args the arguments passed to the main method
+         * @param properties the system properties set while the conversion runs
+         */
+        ExampleTask(final String mainClass, final List<String> args, final Map<String, String> properties) {
+            super(properties);
+            this.mainClass = mainClass;
+            this.args = args;
+        }
+
+        @Override
+        void write(final DataOutputStream out, final String uuid) throws IOException {
+            out.writeByte(ConversionWorker.OP_RUN);
+            out.writeUTF(mainClass);
+            out.writeInt(args.size());
+            for (final String arg : args) {
+                out.writeUTF(arg);
+            }
+            writeProperties(out, Collections.singletonMap("com.idrsolutions.remoteTracker.uuid", uuid));
+        }
+    }
+
+    /**
+     * The conversion of a selection of pages by {@link PageConverter}. Each page is
+     * reported to the {@link PageListener} given to the pool as it is written.
+     */
+    static final class PageTask extends Task {
+
+        private final String type;
+        private final File inputPdf;
+        private final File outputDir;
+        private final String format;
+        private final float scaling;
+        private final int maxWidth;
+        private final int maxHeight;
+        private final String password;
+        private final int[] pages;
+        private final float[] pageWidths;
+        private final float[] pageHeights;
+
+        /**
+         * @param type the {@link PageConverter} conversion type
+         * @param inputPdf the PDF to convert
+         * @param outputDir the output directory of the conversion
+         * @param format the image format, or an empty string for text
+         * @param scaling the page scaling used for images
+         * @param maxWidth the maximum width in pixels of page images, or 0 for no limit
+         * @param maxHeight the maximum height in pixels of page images, or 0 for no limit
+         * @param password the password of the PDF, or an empty string
+         * @param pages the page numbers to convert
+         * @param pdfInfo the structure of the PDF, passed to the worker so it need not probe the PDF again, or null if
+         *                it could not be probed
+         * @param properties the system properties set while the conversion runs
+         */
+        PageTask(final String type, final File inputPdf, final File outputDir, final String format, final float scaling,
+                 final int maxWidth, final int maxHeight, final String password, final int[] pages,
+                 final PdfProbe.Info pdfInfo, final Map<String, String> properties) {
+            this(type, inputPdf, outputDir, format, scaling, maxWidth, maxHeight, password, pages,
+                    new float[pages.length], new float[pages.length], properties);
+            if (pdfInfo != null && !pdfInfo.isEncrypted()) {
+                for (int i = 0; i < pages.length; i++) {
+                    pageWidths[i] = pdfInfo.getPageWidth(pages[i]);
+                    pageHeights[i] = pdfInfo.getPageHeight(pages[i]);
+                }
+            }
+        }
+
+        private PageTask(final String type, final File inputPdf, final File outputDir, final String format, final float scaling,
+                         final int maxWidth, final int maxHeight, final String password, final int[] pages,
+                         final float[] pageWidths, final float[] pageHeights, final Map<String, String> properties) {
+            super(properties);
+            this.type = type;
+            this.inputPdf = inputPdf;
+            this.outputDir = outputDir;
+            this.format = format;
+            this.scaling = scaling;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.password = password;
+            this.pages = pages;
+            this.pageWidths = pageWidths;
+            this.pageHeights = pageHeights;
+        }
+
+        @Override
+        Task withoutPages(final Set<Integer> convertedPages) {
+            final int[] remaining = IntStream.range(0, pages.length).filter(i -> !convertedPages.contains(pages[i])).toArray();
+            final int[] remainingPages = new int[remaining.length];
+            final float[] remainingWidths = new float[remaining.length];
+            final float[] remainingHeights = new float[remaining.length];
+            for (int i = 0; i < remaining.length; i++) {
+                remainingPages[i] = pages[remaining[i]];
+                remainingWidths[i] = pageWidths[remaining[i]];
+                remainingHeights[i] = pageHeights[remaining[i]];
+            }
+            final PageTask task = new PageTask(type, inputPdf, outputDir, format, scaling, maxWidth, maxHeight, password,
+                    remainingPages, remainingWidths, remainingHeights, super.properties);
+            task.setHeapEstimate(super.heapEstimate);
+            return task;
+        }
+
+        @Override
+        void write(final DataOutputStream out, final String uuid) throws IOException {
+            out.writeByte(ConversionWorker.OP_RUN_PAGES);
+            out.writeUTF(type);
+            out.writeUTF(inputPdf.getAbsolutePath());
+            out.writeUTF(outputDir.getAbsolutePath());
+            out.writeUTF(format);
+            out.writeFloat(scaling);
+            out.writeInt(maxWidth);
+            out.writeInt(maxHeight);
+            out.writeUTF(password);
+            out.writeInt(pages.length);
+            for (int i = 0; i < pages.length; i++) {
+                out.writeInt(pages[i]);
+                out.writeFloat(pageWidths[i]);
+                out.writeFloat(pageHeights[i]);
+            }
+            writeProperties(out, Collections.emptyMap());
+        }
+    }
+
+    /**
+     * Receives the pages converted by a {@link PageTask}.
+     */
+    interface PageListener {
+        void pageConverted(int page, File file);
+    }
+
+    private static final class Attempt {
+
+        private final ProcessUtils.Result result;
+        private final boolean outOfMemory;
+
+        Attempt(final ProcessUtils.Result result, final boolean outOfMemory) {
+            this.result = result;
+            this.outOfMemory = outOfMemory;
+        }
+    }
+
+    private static final class Worker {
+
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final long heapMB;
+
+        private int jobCount;
+        private long committedHeap;
+        private long peakHeap;
+        private boolean outOfMemory;
+        private boolean reusable = true;
+
+        /**
+         * Starts a worker and waits for it to be ready. A worker that is not
+         * ready within the timeout is killed, so a JVM that hangs on startup
+         * does not block the conversion waiting for it.
+         */
+        Worker(final List<String> command, final long heapMB, final ScheduledExecutorService watchdog,
+               final long startTimeout) throws IOException {
+            this.heapMB = heapMB;
+            process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            final ScheduledFuture<?> timer;
+            try {
+                timer = watchdog.schedule(() -> {
+                    timedOut.set(true);
+                    process.destroyForcibly();
+                }, startTimeout, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                process.destroyForcibly();
+                throw new IOException("Conversion worker pool has shut down", e);
+            }
+
+            try {
+                if (in.readByte() != ConversionWorker.MSG_READY) {
+                    process.destroyForcibly();
+                    throw new IOException("Conversion worker failed to start");
+                }
+            } catch (final IOException e) {
+                process.destroyForcibly();
+                if (timedOut.get()) {
+                    throw new IOException("Conversion worker did not start within " + startTimeout + "ms", e);
+                }
+                throw e;
+            } finally {
+                timer.cancel(false);
+            }
+        }
+
+        ProcessUtils.Result run(final Task task, final String uuid, final long timeout,
+                                final ScheduledExecutorService watchdog, final PageListener listener) throws IOException {
+            jobCount++;
+
+            task.write(out, uuid);
+            out.flush();
+
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            final ScheduledFuture<?> timer = watchdog.schedule(() -> {
+                timedOut.set(true);
+                process.destroyForcibly();
+            }, timeout, TimeUnit.MILLISECONDS);
+
+            try {
+                byte message;
+                while ((message = in.readByte()) == ConversionWorker.MSG_PAGE) {
+                    final int page = in.readInt();
+                    final File file = new File(in.readUTF());
+                    if (listener != null) {
+                        try {
+                            listener.pageConverted(page, file);
+                        } catch (final RuntimeException e) {
+                            LOG.log(Level.WARNING, "Page listener failed for " + uuid, e);
+                        }
+                    }
+                }
+                if (message != ConversionWorker.MSG_DONE) {
+                    throw new IOException("Unexpected message from conversion worker");
+                }
+                final byte status = in.readByte();
+                committedHeap = in.readLong();
+                peakHeap = in.readLong();
+
+                switch (status) {
+                    case ConversionWorker.STATUS_SUCCESS:
+                        return ProcessUtils.Result.SUCCESS;
+                    case ConversionWorker.STATUS_OUT_OF_MEMORY:
+                        LOG.log(Level.SEVERE, "Conversion worker ran out of memory converting {0}", uuid);
+                        reusable = false;
+                        outOfMemory = true;
+                        return ProcessUtils.Result.ERROR;
+                    default:
+                        return ProcessUtils.Result.ERROR;
+                }
+            } catch (final IOException e) {
+                reusable = false;
+                if (timedOut.get()) {
+                    return ProcessUtils.Result.TIMEOUT;
+                }
+                throw e;
+            } finally {
+                timer.cancel(false);
+            }
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        boolean isReusable() {
+            return reusable && process.isAlive();
+        }
+
+        void stop() {
+            try {
+                out.writeByte(ConversionWorker.OP_SHUTDOWN);
+                out.flush();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (final IOException e) {
+                process.destroyForcibly();
+            } catch (final InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
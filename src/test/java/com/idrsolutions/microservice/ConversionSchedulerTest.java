@@ -0,0 +1,125 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversionSchedulerTest {
+
+    @Test
+    void executeOrdersConversionsBetweenTenants() throws InterruptedException {
+        final ConversionScheduler scheduler = new ConversionScheduler(1, 1, 0, 60000);
+        try {
+            final CountDownLatch blocked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            scheduler.execute("blocker", 0, () -> {
+                blocked.countDown();
+                await(release);
+            });
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            final List<String> order = new CopyOnWriteArrayList<>();
+            final CountDownLatch finished = new CountDownLatch(4);
+            for (final String uuid : new String[] {"a1", "a2", "a3", "b1"}) {
+                scheduler.submitted(uuid, uuid.substring(0, 1));
+                scheduler.execute(uuid, 10, () -> {
+                    order.add(uuid);
+                    finished.countDown();
+                });
+            }
+            assertEquals(4, scheduler.getConversionsWaiting());
+
+            release.countDown();
+            assertTrue(finished.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("a1", "b1", "a2", "a3"), order);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void timedOutRequestIsNotChargedToTenant() throws InterruptedException {
+        final ConversionScheduler scheduler = new ConversionScheduler(1, 1, 0, 60000);
+        try {
+            final ConversionScheduler.Slot held = scheduler.acquire(job(scheduler, "held", "c"), 10, 0);
+            assertNotNull(held);
+            assertNull(scheduler.acquire(job(scheduler, "timedOut", "a"), 1000, 10));
+
+            final List<String> order = new CopyOnWriteArrayList<>();
+            final Thread first = waitForSlot(scheduler, "a", order);
+            awaitQueueDepth(scheduler, 1);
+            final Thread second = waitForSlot(scheduler, "b", order);
+            awaitQueueDepth(scheduler, 2);
+
+            // Both requests cost the same, so tenant a keeps its turn only if the timed out request was rolled back
+            scheduler.release(held);
+            first.join(5000);
+            second.join(5000);
+            assertEquals(List.of("a", "b"), order);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private static ConversionScheduler.Job job(final ConversionScheduler scheduler, final String uuid, final String tenant) {
+        scheduler.submitted(uuid, tenant);
+        return scheduler.startJob(uuid, 10, queueWaitTime -> { });
+    }
+
+    private static Thread waitForSlot(final ConversionScheduler scheduler, final String tenant, final List<String> order) {
+        final ConversionScheduler.Job job = job(scheduler, tenant + "-job", tenant);
+        final Thread thread = new Thread(() -> {
+            try {
+                final ConversionScheduler.Slot slot = scheduler.acquire(job, 10, 5000);
+                order.add(tenant);
+                scheduler.release(slot);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueDepth(final ConversionScheduler scheduler, final int depth) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueueDepth() < depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, scheduler.getQueueDepth());
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
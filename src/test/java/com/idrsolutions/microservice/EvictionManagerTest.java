@@ -0,0 +1,158 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EvictionManagerTest {
+
+    // Far above the size of the test files, so nothing is evicted
+    private static final long MAX_SIZE_MB = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    private File inputDir;
+    private File outputDir;
+    private File indexFile;
+
+    @BeforeEach
+    void createDirs() throws IOException {
+        inputDir = Files.createDirectory(tempDir.resolve("input")).toFile();
+        outputDir = Files.createDirectory(tempDir.resolve("output")).toFile();
+        indexFile = new File(outputDir, EvictionManager.INDEX_NAME);
+    }
+
+    @Test
+    void readIndexReplaysJournal() throws IOException {
+        Files.write(indexFile.toPath(), List.of(
+                "A\ta\t100\t1000",
+                "A\tb\t200\t2000",
+                "A\tc\t300\t3000",
+                "T\ta\t4000",
+                "D\tc"), StandardCharsets.UTF_8);
+
+        final EvictionManager manager = createManager();
+        manager.shutdown();
+
+        assertEquals(2, manager.getEntryCount());
+        assertEquals(300, manager.getTotalBytes());
+        // Compacted in least recently downloaded order
+        assertEquals(List.of("A\tb\t200\t2000", "A\ta\t100\t4000"),
+                Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readIndexIgnoresInvalidLines() throws IOException {
+        Files.write(indexFile.toPath(), List.of(
+                "A\ta\t100\t1000",
+                "A\tb\tlarge\t2000",
+                "T\tmissing\t3000",
+                "X\ta",
+                "A\tc\t3"), StandardCharsets.UTF_8);
+
+        final EvictionManager manager = createManager();
+        manager.shutdown();
+
+        assertEquals(1, manager.getEntryCount());
+        assertEquals(100, manager.getTotalBytes());
+    }
+
+    @Test
+    void readIndexRestoresRecordedConversions() throws IOException {
+        writeFile(new File(inputDir, "a/input.pdf"), 10);
+        writeFile(new File(outputDir, "a.zip"), 20);
+        writeFile(new File(inputDir, "b/input.pdf"), 30);
+        writeFile(new File(outputDir, "b/1.png"), 40);
+
+        EvictionManager manager = createManager();
+        manager.record("a");
+        manager.record("b");
+        manager.forget("a");
+        manager.shutdown();
+
+        manager = createManager();
+        manager.shutdown();
+
+        assertEquals(1, manager.getEntryCount());
+        assertEquals(70, manager.getTotalBytes());
+    }
+
+    @Test
+    void scansPathsWithoutIndex() throws IOException {
+        writeFile(new File(inputDir, "a/input.pdf"), 10);
+        writeFile(new File(outputDir, "a.zip"), 20);
+        writeFile(new File(outputDir, "a/1.png"), 30);
+        writeFile(new File(outputDir, "sync-b/1.png"), 40);
+        writeFile(new File(outputDir, "cache/c.zip"), 50);
+
+        final EvictionManager manager = createManager();
+        manager.shutdown();
+
+        assertEquals(1, manager.getEntryCount());
+        assertEquals(60, manager.getTotalBytes());
+        assertEquals(1, Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    void sparesConversionsYoungerThanMinAge() throws Exception {
+        writeFile(new File(outputDir, "old.zip"), 600 * 1024);
+        writeFile(new File(outputDir, "new.zip"), 1500 * 1024);
+        Files.write(indexFile.toPath(), List.of("A\told\t" + 600 * 1024 + "\t1000"), StandardCharsets.UTF_8);
+
+        // Both conversions together are over the budget, and so is the one that just finished on its own
+        final EvictionManager manager = new EvictionManager(inputDir, outputDir, 1, 90, 80, 3600000, new JobStateWriter(0));
+        try {
+            manager.record("new");
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (manager.getEvictions() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for eviction");
+                Thread.sleep(10);
+            }
+        } finally {
+            manager.shutdown();
+        }
+
+        assertFalse(new File(outputDir, "old.zip").exists());
+        assertTrue(new File(outputDir, "new.zip").exists());
+        assertEquals(1, manager.getEntryCount());
+    }
+
+    private EvictionManager createManager() {
+        return new EvictionManager(inputDir, outputDir, MAX_SIZE_MB, 90, 80, 0, new JobStateWriter(0));
+    }
+
+    private static void writeFile(final File file, final int size) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), new byte[size]);
+    }
+}
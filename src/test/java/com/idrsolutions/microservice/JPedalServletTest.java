@@ -0,0 +1,133 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JPedalServletTest {
+
+    @Test
+    void parsePagesSelectsEveryPageWhenUnset() {
+        assertArrayEquals(new int[]{1, 2, 3}, JPedalServlet.parsePages(null, 3));
+        assertArrayEquals(new int[]{1, 2, 3}, JPedalServlet.parsePages("", 3));
+    }
+
+    @Test
+    void parsePagesReadsPagesAndRanges() {
+        assertArrayEquals(new int[]{2}, JPedalServlet.parsePages("2", 5));
+        assertArrayEquals(new int[]{1, 3, 4, 5}, JPedalServlet.parsePages("1,3-5", 5));
+        assertArrayEquals(new int[]{4, 5, 6}, JPedalServlet.parsePages("4-", 6));
+        assertArrayEquals(new int[]{3}, JPedalServlet.parsePages("3-3", 3));
+    }
+
+    @Test
+    void parsePagesSortsAndRemovesDuplicates() {
+        assertArrayEquals(new int[]{1, 2, 3, 4, 7}, JPedalServlet.parsePages("7,2-4,1,3", 8));
+    }
+
+    @Test
+    void parsePagesRejectsReversedRange() {
+        assertThrows(IllegalArgumentException.class, () -> JPedalServlet.parsePages("5-2", 8));
+    }
+
+    @Test
+    void parsePagesRejectsPagesBeyondTheEnd() {
+        assertThrows(IllegalArgumentException.class, () -> JPedalServlet.parsePages("4", 3));
+        assertThrows(IllegalArgumentException.class, () -> JPedalServlet.parsePages("2-4", 3));
+        assertThrows(IllegalArgumentException.class, () -> JPedalServlet.parsePages("4-", 3));
+    }
+
+    @Test
+    void splitPagesSplitsEqualWeightsEvenly() {
+        final List<int[]> shards = JPedalServlet.splitPages(new int[]{1, 2, 3, 4, 5, 6}, new float[]{1, 1, 1, 1, 1, 1}, 3);
+
+        assertEquals(3, shards.size());
+        assertArrayEquals(new int[]{1, 2}, shards.get(0));
+        assertArrayEquals(new int[]{3, 4}, shards.get(1));
+        assertArrayEquals(new int[]{5, 6}, shards.get(2));
+    }
+
+    @Test
+    void splitPagesBalancesByWeight() {
+        final List<int[]> shards = JPedalServlet.splitPages(new int[]{1, 2, 3, 4}, new float[]{10, 1, 1, 1}, 2);
+
+        assertArrayEquals(new int[]{1}, shards.get(0));
+        assertArrayEquals(new int[]{2, 3, 4}, shards.get(1));
+    }
+
+    @Test
+    void splitPagesGivesEveryShardAPage() {
+        final List<int[]> shards = JPedalServlet.splitPages(new int[]{1, 2, 3, 4}, new float[]{1, 1, 1, 10}, 3);
+
+        assertArrayEquals(new int[]{1, 2}, shards.get(0));
+        assertArrayEquals(new int[]{3}, shards.get(1));
+        assertArrayEquals(new int[]{4}, shards.get(2));
+    }
+
+    @Test
+    void splitPagesKeepsSelectedPageNumbers() {
+        final List<int[]> shards = JPedalServlet.splitPages(new int[]{2, 5, 9}, new float[]{1, 1, 1}, 3);
+
+        assertArrayEquals(new int[]{2}, shards.get(0));
+        assertArrayEquals(new int[]{5}, shards.get(1));
+        assertArrayEquals(new int[]{9}, shards.get(2));
+    }
+
+    @Test
+    void pageOutputKeepsExampleLayoutByDefault() {
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("mode", "convertToImages");
+        settings.put("format", "png");
+        final Properties properties = new Properties();
+        properties.setProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED, "false");
+
+        assertNull(JPedalServlet.getPageOutputType(settings, properties));
+
+        properties.setProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED, "true");
+        assertEquals(PageConverter.TYPE_IMAGES, JPedalServlet.getPageOutputType(settings, properties));
+    }
+
+    @Test
+    void pageOutputUsedWhenPagesAreSelectedOrBounded() {
+        final Properties properties = new Properties();
+        properties.setProperty(JPedalServletContextListener.KEY_PROPERTY_PAGE_OUTPUT_ENABLED, "false");
+        final Map<String, String> settings = new HashMap<>();
+        settings.put("mode", "convertToImages");
+        settings.put("format", "png");
+
+        settings.put("pages", "");
+        assertNull(JPedalServlet.getPageOutputType(settings, properties));
+        settings.put("pages", "1-2");
+        assertEquals(PageConverter.TYPE_IMAGES, JPedalServlet.getPageOutputType(settings, properties));
+
+        settings.remove("pages");
+        settings.put("maxWidth", "200");
+        assertEquals(PageConverter.TYPE_IMAGES, JPedalServlet.getPageOutputType(settings, properties));
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JobQueueTest {
+
+    private static final long POLL_INTERVAL = 20;
+    private static final long LEASE_TIME = 1000;
+    private static final long TIMEOUT = 10000;
+
+    @TempDir
+    Path tempDir;
+
+    private String url;
+    // Keeps the in-memory database open between the connections of the queues
+    private Connection keepAlive;
+    private File sharedDir;
+    private File inputFile;
+
+    @BeforeEach
+    void createDatabase() throws IOException, SQLException {
+        url = "jdbc:h2:mem:" + UUID.randomUUID();
+        keepAlive = DriverManager.getConnection(url);
+        sharedDir = Files.createDirectory(tempDir.resolve("shared")).toFile();
+        inputFile = tempDir.resolve("input.pdf").toFile();
+        Files.write(inputFile.toPath(), new byte[16]);
+    }
+
+    @AfterEach
+    void closeDatabase() throws SQLException {
+        keepAlive.close();
+    }
+
+    @Test
+    void eachConversionIsClaimedByOneNode() throws Exception {
+        final int jobCount = 8;
+        final Map<String, AtomicInteger> runs = new ConcurrentHashMap<>();
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final CountDownLatch finished = new CountDownLatch(jobCount);
+        final JobQueue.Handler handler = job -> {
+            runs.computeIfAbsent(job.getUuid(), uuid -> new AtomicInteger()).incrementAndGet();
+            attempts.put(job.getUuid(), job.getAttempt());
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        };
+
+        final JobQueue nodeA = createQueue(LEASE_TIME);
+        final JobQueue nodeB = createQueue(LEASE_TIME);
+        try {
+            for (int i = 0; i < jobCount; i++) {
+                nodeA.enqueue("job-" + i, inputFile, "http://localhost", null, i);
+            }
+            nodeA.start(handler);
+            nodeB.start(handler);
+
+            assertTrue(finished.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            waitFor(() -> countRows() == 0);
+        } finally {
+            nodeA.shutdown();
+            nodeB.shutdown();
+        }
+
+        assertEquals(jobCount, runs.size());
+        for (int i = 0; i < jobCount; i++) {
+            assertEquals(1, runs.get("job-" + i).get());
+            assertEquals(1, attempts.get("job-" + i).intValue());
+            assertFalse(new File(sharedDir, "job-" + i).exists());
+        }
+    }
+
+    @Test
+    void reclaimsConversionWhoseLeaseExpired() throws Exception {
+        final long leaseTime = 300;
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final JobQueue node = createQueue(leaseTime);
+        try {
+            node.enqueue("job", inputFile, "http://localhost", null, 0);
+            // Claimed by a node that has since died, so its lease is never renewed
+            final long expiry = System.currentTimeMillis() + leaseTime;
+            try (Connection connection = DriverManager.getConnection(url);
+                 PreparedStatement statement = connection.prepareStatement(
+                         "UPDATE jpedal_job_queue SET owner = 'dead-node', lease_expiry = ?, attempts = 1")) {
+                statement.setLong(1, expiry);
+                statement.executeUpdate();
+            }
+
+            node.start(job -> attempts.put(job.getUuid(), job.getAttempt()));
+
+            waitFor(() -> attempts.containsKey("job"));
+            assertTrue(System.currentTimeMillis() >= expiry);
+            assertEquals(2, attempts.get("job").intValue());
+            waitFor(() -> countRows() == 0);
+        } finally {
+            node.shutdown();
+        }
+    }
+
+    @Test
+    void renewsLeasesOnlyOfRunningConversions() throws Exception {
+        final long leaseTime = 300;
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final JobQueue node = createQueue(leaseTime);
+        try {
+            node.enqueue("job", inputFile, "http://localhost", null, 0);
+            node.start(job -> {
+                attempts.merge(job.getUuid(), job.getAttempt(), Math::max);
+                if ("job".equals(job.getUuid())) {
+                    started.countDown();
+                    try {
+                        release.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // Owned by this node but no longer running on it, so its lease must be left to expire
+            try (Connection connection = DriverManager.getConnection(url);
+                 PreparedStatement statement = connection.prepareStatement("INSERT INTO jpedal_job_queue"
+                         + " (uuid, input_file, context_url, tenant, submitted_at, owner, lease_expiry, attempts)"
+                         + " VALUES ('stale', 'stale/input.pdf', 'http://localhost', NULL, 1,"
+                         + " (SELECT owner FROM jpedal_job_queue WHERE uuid = 'job'), ?, 1)")) {
+                statement.setLong(1, System.currentTimeMillis() + leaseTime);
+                statement.executeUpdate();
+            }
+
+            waitFor(() -> attempts.containsKey("stale"));
+            assertEquals(2, attempts.get("stale").intValue());
+            // The running conversion kept its lease, so was never claimed again
+            assertEquals(1, attempts.get("job").intValue());
+        } finally {
+            release.countDown();
+            node.shutdown();
+        }
+    }
+
+    @Test
+    void shutdownReturnsRunningConversionsToQueue() throws Exception {
+        final JobStateWriter stateWriter = new JobStateWriter(0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final JobQueue nodeA = createQueue(LEASE_TIME, stateWriter);
+        nodeA.enqueue("job", inputFile, "http://localhost", null, 0);
+        nodeA.start(job -> {
+            started.countDown();
+            try {
+                Thread.sleep(TIMEOUT);
+            } catch (final InterruptedException e) {
+                // The interrupted run would fail the conversion, which must not be written
+                stateWriter.setError(job.getUuid(), 1220, "An error occurred during the conversion");
+                interrupted.countDown();
+            }
+        });
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        nodeA.shutdown();
+
+        assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(stateWriter.isDetached("job"));
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement statement = connection.prepareStatement(
+                     "SELECT owner, lease_expiry, attempts FROM jpedal_job_queue WHERE uuid = 'job'");
+             ResultSet resultSet = statement.executeQuery()) {
+            assertTrue(resultSet.next());
+            assertNull(resultSet.getString(1));
+            assertEquals(0, resultSet.getLong(2));
+            assertEquals(0, resultSet.getInt(3));
+        }
+        assertTrue(new File(sharedDir, "job/input.pdf").exists());
+
+        // Claimed straight away by another node, without counting the interrupted run as an attempt
+        final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+        final JobQueue nodeB = createQueue(LEASE_TIME);
+        try {
+            nodeB.start(job -> attempts.put(job.getUuid(), job.getAttempt()));
+            waitFor(() -> attempts.containsKey("job"));
+            assertEquals(1, attempts.get("job").intValue());
+            waitFor(() -> countRows() == 0);
+        } finally {
+            nodeB.shutdown();
+        }
+    }
+
+    private JobQueue createQueue(final long leaseTime) throws SQLException {
+        return createQueue(leaseTime, new JobStateWriter(0));
+    }
+
+    private JobQueue createQueue(final long leaseTime, final JobStateWriter stateWriter) throws SQLException {
+        return new JobQueue(() -> DriverManager.getConnection(url), sharedDir, 2, POLL_INTERVAL, leaseTime, 3,
+                stateWriter);
+    }
+
+    private int countRows() {
+        try (Connection connection = DriverManager.getConnection(url);
+             PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM jpedal_job_queue");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        } catch (final SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the job queue");
+            Thread.sleep(10);
+        }
+    }
+}
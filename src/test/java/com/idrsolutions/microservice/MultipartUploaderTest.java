@@ -0,0 +1,105 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class MultipartUploaderTest {
+
+    private static final int PART_SIZE = 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void uploadsPartsToLocalObjectStore() throws IOException {
+        final File root = tempDir.resolve("store").toFile();
+        final MultipartUploader uploader = new MultipartUploader(new LocalObjectStore(root), PART_SIZE, 2);
+        try {
+            final byte[] data = randomBytes(PART_SIZE * 5 / 2);
+            final MultipartUploader.UploadStream out = uploader.start("output.zip", "uuid");
+            // Written in uneven chunks so parts are cut across writes
+            for (int offset = 0; offset < data.length; offset += 700) {
+                out.write(data, offset, Math.min(700, data.length - offset));
+            }
+            out.close();
+
+            final File target = new File(new File(root, "uuid"), "output.zip");
+            assertEquals(target.toURI().toString(), out.getRemoteUrl());
+            assertEquals(data.length, out.getBytesWritten());
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+            assertEquals(0, countFiles(new File(root, ".uploads")));
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    @Test
+    void uploadsEmptyFile() throws IOException {
+        final File root = tempDir.resolve("store").toFile();
+        final MultipartUploader uploader = new MultipartUploader(new LocalObjectStore(root), PART_SIZE, 2);
+        try {
+            final MultipartUploader.UploadStream out = uploader.start("empty.zip", "uuid");
+            out.close();
+
+            assertEquals(0, new File(new File(root, "uuid"), "empty.zip").length());
+            assertEquals(0, countFiles(new File(root, ".uploads")));
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    @Test
+    void abortLeavesNothingBehind() throws IOException {
+        final File root = tempDir.resolve("store").toFile();
+        final MultipartUploader uploader = new MultipartUploader(new LocalObjectStore(root), PART_SIZE, 2);
+        try {
+            final MultipartUploader.UploadStream out = uploader.start("output.zip", "uuid");
+            out.write(randomBytes(PART_SIZE * 3));
+            out.abort();
+
+            assertFalse(new File(root, "uuid").exists());
+            assertEquals(0, countFiles(new File(root, ".uploads")));
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static int countFiles(final File dir) {
+        final File[] files = dir.listFiles();
+        return files != null ? files.length : 0;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class OutputFileServletTest {
+
+    @Test
+    void parseRangeReadsClosedRange() {
+        assertArrayEquals(new long[]{0, 99}, OutputFileServlet.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[]{500, 999}, OutputFileServlet.parseRange("bytes= 500 - 999 ", 1000));
+    }
+
+    @Test
+    void parseRangeClampsEndToFile() {
+        assertArrayEquals(new long[]{900, 999}, OutputFileServlet.parseRange("bytes=900-5000", 1000));
+    }
+
+    @Test
+    void parseRangeReadsOpenRange() {
+        assertArrayEquals(new long[]{200, 999}, OutputFileServlet.parseRange("bytes=200-", 1000));
+    }
+
+    @Test
+    void parseRangeReadsSuffixRange() {
+        assertArrayEquals(new long[]{900, 999}, OutputFileServlet.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[]{0, 999}, OutputFileServlet.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    void parseRangeRejectsRangeOutsideFile() {
+        assertSame(OutputFileServlet.UNSATISFIABLE, OutputFileServlet.parseRange("bytes=1000-", 1000));
+        assertSame(OutputFileServlet.UNSATISFIABLE, OutputFileServlet.parseRange("bytes=1000-1100", 1000));
+        assertSame(OutputFileServlet.UNSATISFIABLE, OutputFileServlet.parseRange("bytes=-0", 1000));
+        assertSame(OutputFileServlet.UNSATISFIABLE, OutputFileServlet.parseRange("bytes=-10", 0));
+    }
+
+    @Test
+    void parseRangeIgnoresUnsupportedHeaders() {
+        assertNull(OutputFileServlet.parseRange("items=0-10", 1000));
+        assertNull(OutputFileServlet.parseRange("bytes=0-10,20-30", 1000));
+        assertNull(OutputFileServlet.parseRange("bytes=10", 1000));
+        assertNull(OutputFileServlet.parseRange("bytes=50-10", 1000));
+        assertNull(OutputFileServlet.parseRange("bytes=a-b", 1000));
+    }
+}
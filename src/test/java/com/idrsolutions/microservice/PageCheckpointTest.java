@@ -0,0 +1,174 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageCheckpointTest {
+
+    private static final int[] PAGES = {1, 2, 3};
+    private static final long INPUT_LENGTH = 12345;
+
+    @TempDir
+    Path tempDir;
+
+    private File outputDir;
+
+    @BeforeEach
+    void createOutputDir() throws IOException {
+        // Nested so a page file can be written outside it
+        outputDir = Files.createDirectory(tempDir.resolve("output")).toFile();
+    }
+
+    @Test
+    void resumeWithoutCheckpointStartsFromScratch() throws IOException {
+        assertFalse(PageCheckpoint.exists(outputDir));
+
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        assertTrue(checkpoint.resume(PAGES, INPUT_LENGTH).isEmpty());
+        checkpoint.close();
+
+        assertTrue(PageCheckpoint.exists(outputDir));
+    }
+
+    @Test
+    void resumeReturnsRecordedPages() throws IOException {
+        final File page1 = writePage("1.png", "first");
+        final File page3 = writePage("pages/3.png", "third");
+        recordPages(page1, null, page3);
+
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        final Map<Integer, File> completed = checkpoint.resume(PAGES, INPUT_LENGTH);
+        checkpoint.close();
+
+        assertEquals(2, completed.size());
+        assertEquals(page1.getCanonicalFile(), completed.get(1).getCanonicalFile());
+        assertEquals(page3.getCanonicalFile(), completed.get(3).getCanonicalFile());
+    }
+
+    @Test
+    void resumeKeepsPagesAcrossRepeatedRuns() throws IOException {
+        final File page1 = writePage("1.png", "first");
+        recordPages(page1, null, null);
+
+        PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        assertEquals(1, checkpoint.resume(PAGES, INPUT_LENGTH).size());
+        checkpoint.record(2, writePage("2.png", "second"));
+        checkpoint.close();
+
+        checkpoint = new PageCheckpoint(outputDir);
+        final Map<Integer, File> completed = checkpoint.resume(PAGES, INPUT_LENGTH);
+        checkpoint.close();
+
+        assertEquals(2, completed.size());
+        assertTrue(completed.containsKey(1));
+        assertTrue(completed.containsKey(2));
+    }
+
+    @Test
+    void resumeSkipsPagesWhoseFileChanged() throws IOException {
+        final File page1 = writePage("1.png", "first");
+        final File page2 = writePage("2.png", "second");
+        recordPages(page1, page2, null);
+        Files.write(page1.toPath(), "rewritten".getBytes(StandardCharsets.UTF_8));
+        Files.delete(page2.toPath());
+
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        final Map<Integer, File> completed = checkpoint.resume(PAGES, INPUT_LENGTH);
+        checkpoint.close();
+
+        assertTrue(completed.isEmpty());
+    }
+
+    @Test
+    void resumeIgnoresCheckpointOfDifferentConversion() throws IOException {
+        recordPages(writePage("1.png", "first"), null, null);
+
+        PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        assertTrue(checkpoint.resume(PAGES, INPUT_LENGTH + 1).isEmpty());
+        checkpoint.close();
+
+        recordPages(writePage("1.png", "first"), null, null);
+
+        checkpoint = new PageCheckpoint(outputDir);
+        assertTrue(checkpoint.resume(new int[]{1, 2}, INPUT_LENGTH).isEmpty());
+        checkpoint.close();
+    }
+
+    @Test
+    void resumeIgnoresInvalidLines() throws IOException {
+        final File page1 = writePage("1.png", "first");
+        writePage("../outside.png", "outside");
+        recordPages(page1, null, null);
+        Files.write(new File(outputDir, PageCheckpoint.FILE_NAME).toPath(),
+                "2\t../outside.png\t7\nx\t2.png\t6\n3\t3.p".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        final Map<Integer, File> completed = checkpoint.resume(PAGES, INPUT_LENGTH);
+        checkpoint.close();
+
+        assertEquals(1, completed.size());
+        assertTrue(completed.containsKey(1));
+    }
+
+    @Test
+    void deleteRemovesCheckpoint() throws IOException {
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        checkpoint.resume(PAGES, INPUT_LENGTH);
+        checkpoint.delete();
+
+        assertFalse(PageCheckpoint.exists(outputDir));
+    }
+
+    /**
+     * Records the given page files, null for a page that was not converted,
+     * as a run of the conversion would.
+     */
+    private void recordPages(final File... pageFiles) throws IOException {
+        final PageCheckpoint checkpoint = new PageCheckpoint(outputDir);
+        checkpoint.resume(PAGES, INPUT_LENGTH);
+        for (int i = 0; i < pageFiles.length; i++) {
+            if (pageFiles[i] != null) {
+                checkpoint.record(PAGES[i], pageFiles[i]);
+            }
+        }
+        checkpoint.close();
+    }
+
+    private File writePage(final String name, final String content) throws IOException {
+        final Path path = outputDir.toPath().resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path.toFile();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PageConverterTest {
+
+    @Test
+    void getBoundedScalingShrinksLargePagesToFit() {
+        assertEquals(0.5f, PageConverter.getBoundedScaling(400, 800, 2, 200, 0));
+        assertEquals(0.25f, PageConverter.getBoundedScaling(400, 800, 2, 0, 200));
+        assertEquals(0.25f, PageConverter.getBoundedScaling(400, 800, 2, 200, 200));
+    }
+
+    @Test
+    void getBoundedScalingDoesNotEnlargeSmallPages() {
+        assertEquals(1.5f, PageConverter.getBoundedScaling(100, 100, 1.5f, 99999, 99999));
+        assertEquals(1, PageConverter.getBoundedScaling(612, 792, 1, 2000, 0));
+    }
+
+    @Test
+    void getBoundedScalingUsesScalingWhenPageSizeIsUnknown() {
+        assertEquals(1.5f, PageConverter.getBoundedScaling(0, 0, 1.5f, 100, 100));
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * JPedal Microservice Example
+ *
+ * Project Info: https://github.com/idrsolutions/jpedal-microservice-example
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.idrsolutions.microservice;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PdfProbeTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsPagesFromCrossReferenceTable() throws IOException {
+        final File pdf = write(classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R 4 0 R 5 0 R] /Count 3 /MediaBox [0 0 200 300] >>",
+                "<< /Type /Page /Parent 2 0 R >>",
+                "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 400 500] /Rotate 90 >>",
+                "<< /Type /Page /Parent 2 0 R /MediaBox [10 20 110 70] >>"));
+
+        final PdfProbe.Info info = PdfProbe.probe(pdf);
+
+        assertFalse(info.isEncrypted());
+        assertEquals(3, info.getPageCount());
+        assertEquals(200, info.getPageWidth(1));
+        assertEquals(300, info.getPageHeight(1));
+        assertEquals(500, info.getPageWidth(2));
+        assertEquals(400, info.getPageHeight(2));
+        assertEquals(100, info.getPageWidth(3));
+        assertEquals(50, info.getPageHeight(3));
+        assertEquals(200000, info.getMaxPageArea());
+    }
+
+    @Test
+    void inheritsMediaBoxAndRotationThroughNestedPageTree() throws IOException {
+        final File pdf = write(classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R 5 0 R] /Count 2 /Rotate 270 /MediaBox 6 0 R >>",
+                "<< /Type /Pages /Parent 2 0 R /Kids [4 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 3 0 R >>",
+                "<< /Type /Page /Parent 2 0 R /Rotate 0 >>",
+                "[0 0 100 200]"));
+
+        final PdfProbe.Info info = PdfProbe.probe(pdf);
+
+        assertEquals(2, info.getPageCount());
+        assertEquals(200, info.getPageWidth(1));
+        assertEquals(100, info.getPageHeight(1));
+        assertEquals(100, info.getPageWidth(2));
+        assertEquals(200, info.getPageHeight(2));
+    }
+
+    @Test
+    void defaultsToLetterSizeWithoutMediaBox() throws IOException {
+        final File pdf = write(classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 2 0 R >>"));
+
+        final PdfProbe.Info info = PdfProbe.probe(pdf);
+
+        assertEquals(1, info.getPageCount());
+        assertEquals(612, info.getPageWidth(1));
+        assertEquals(792, info.getPageHeight(1));
+    }
+
+    @Test
+    void reportsEncryptedDocumentWithoutPages() throws IOException {
+        final File pdf = write(classicPdf(" /Encrypt 4 0 R",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 2 0 R >>",
+                "<< /Filter /Standard /V 2 /R 3 >>"));
+
+        final PdfProbe.Info info = PdfProbe.probe(pdf);
+
+        assertTrue(info.isEncrypted());
+        assertEquals(-1, info.getPageCount());
+    }
+
+    @Test
+    void readsPagesFromCrossReferenceAndObjectStreams() throws IOException {
+        final File pdf = write(compressedPdf(
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R 4 0 R] /Count 2 /MediaBox [0 0 300 400] >>",
+                "<< /Type /Page /Parent 2 0 R >>",
+                "<< /Type /Page /Parent 2 0 R /Rotate 90 >>"));
+
+        final PdfProbe.Info info = PdfProbe.probe(pdf);
+
+        assertFalse(info.isEncrypted());
+        assertEquals(2, info.getPageCount());
+        assertEquals(300, info.getPageWidth(1));
+        assertEquals(400, info.getPageHeight(1));
+        assertEquals(400, info.getPageWidth(2));
+        assertEquals(300, info.getPageHeight(2));
+    }
+
+    @Test
+    void rejectsPageTreeWithCycle() throws IOException {
+        final File pdf = write(classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Pages /Kids [2 0 R] /Count 1 >>"));
+
+        assertThrows(IOException.class, () -> PdfProbe.probe(pdf));
+    }
+
+    @Test
+    void rejectsDamagedFile() throws IOException {
+        final byte[] valid = classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 2 0 R >>");
+        final byte[] truncated = new byte[valid.length / 2];
+        System.arraycopy(valid, 0, truncated, 0, truncated.length);
+
+        assertThrows(IOException.class, () -> PdfProbe.probe(write(truncated)));
+        assertThrows(IOException.class, () -> PdfProbe.probe(write("not a pdf".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    void rejectsObjectNotMatchingItsReference() throws IOException {
+        final String valid = new String(classicPdf("",
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 2 0 R >>"), StandardCharsets.US_ASCII);
+
+        assertThrows(IOException.class, () -> PdfProbe.probe(write(valid.replace("\n3 0 obj", "\n9 0 obj")
+                .getBytes(StandardCharsets.US_ASCII))));
+        assertThrows(IOException.class, () -> PdfProbe.probe(write(valid.replace("\n3 0 obj", "\n3 1 obj")
+                .getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    void rejectsStreamInflatingFarPastFileSize() throws IOException {
+        final StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 4 * 1024 * 1024; i++) {
+            padding.append(' ');
+        }
+        final File pdf = write(compressedPdf(
+                "<< /Type /Catalog /Pages 2 0 R >>",
+                "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+                "<< /Type /Page /Parent 2 0 R" + padding + " >>"));
+
+        assertThrows(IOException.class, () -> PdfProbe.probe(pdf));
+    }
+
+    private File write(final byte[] data) throws IOException {
+        final File file = Files.createTempFile(tempDir, "probe", ".pdf").toFile();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Builds a PDF with a cross reference table, numbering the given objects
+     * from 1 with the first as the document catalog.
+     */
+    private static byte[] classicPdf(final String trailerEntries, final String... objects) {
+        final StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        final int[] offsets = new int[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            offsets[i] = pdf.length();
+            pdf.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+        }
+        final int startXref = pdf.length();
+        pdf.append("xref\n0 ").append(objects.length + 1).append('\n');
+        pdf.append("0000000000 65535 f \n");
+        for (final int offset : offsets) {
+            pdf.append(String.format("%010d 00000 n \n", offset));
+        }
+        pdf.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R").append(trailerEntries)
+                .append(" >>\nstartxref\n").append(startXref).append("\n%%EOF\n");
+        return pdf.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Builds a PDF with the given objects, numbered from 1, in an object
+     * stream, indexed by a cross reference stream using the PNG Up predictor.
+     */
+    private static byte[] compressedPdf(final String... objects) {
+        final int objectStreamNumber = objects.length + 1;
+        final int xrefStreamNumber = objects.length + 2;
+
+        final StringBuilder header = new StringBuilder();
+        final StringBuilder body = new StringBuilder();
+        for (int i = 0; i < objects.length; i++) {
+            header.append(i + 1).append(' ').append(body.length()).append(' ');
+            body.append(objects[i]).append('\n');
+        }
+        final byte[] objectStreamData = deflate((header.toString() + body).getBytes(StandardCharsets.US_ASCII));
+
+        final ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        write(pdf, "%PDF-1.5\n");
+        final int objectStreamOffset = pdf.size();
+        write(pdf, objectStreamNumber + " 0 obj\n<< /Type /ObjStm /N " + objects.length + " /First " + header.length()
+                + " /Filter /FlateDecode /Length " + objectStreamData.length + " >>\nstream\n");
+        pdf.write(objectStreamData, 0, objectStreamData.length);
+        write(pdf, "\nendstream\nendobj\n");
+        final int xrefStreamOffset = pdf.size();
+
+        // Entries of type, field 2 and field 3 with widths of 1, 2 and 1 bytes
+        final int size = xrefStreamNumber + 1;
+        final byte[][] rows = new byte[size][];
+        rows[0] = new byte[]{0, 0, 0, (byte) 255};
+        for (int i = 0; i < objects.length; i++) {
+            rows[i + 1] = new byte[]{2, 0, (byte) objectStreamNumber, (byte) i};
+        }
+        rows[objectStreamNumber] = new byte[]{1, (byte) (objectStreamOffset >> 8), (byte) objectStreamOffset, 0};
+        rows[xrefStreamNumber] = new byte[]{1, (byte) (xrefStreamOffset >> 8), (byte) xrefStreamOffset, 0};
+        final byte[] predicted = new byte[size * 5];
+        for (int row = 0; row < size; row++) {
+            predicted[row * 5] = 2;
+            for (int i = 0; i < 4; i++) {
+                final int up = row > 0 ? rows[row - 1][i] : 0;
+                predicted[row * 5 + 1 + i] = (byte) (rows[row][i] - up);
+            }
+        }
+        final byte[] xrefStreamData = deflate(predicted);
+
+        write(pdf, xrefStreamNumber + " 0 obj\n<< /Type /XRef /Size " + size + " /W [1 2 1] /Root 1 0 R"
+                + " /Filter /FlateDecode /DecodeParms << /Predictor 12 /Columns 4 >> /Length " + xrefStreamData.length
+                + " >>\nstream\n");
+        pdf.write(xrefStreamData, 0, xrefStreamData.length);
+        write(pdf, "\nendstream\nendobj\nstartxref\n" + xrefStreamOffset + "\n%%EOF\n");
+        return pdf.toByteArray();
+    }
+
+    private static void write(final ByteArrayOutputStream out, final String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] deflate(final byte[] data) {
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}